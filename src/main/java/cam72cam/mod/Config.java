@@ -9,6 +9,18 @@ public class Config {
     @ConfigFile.Comment("Size of each sprite in the texture sheet")
     public static int SpriteSize = 128;
 
+    @ConfigFile.Comment("Generate item sprites the first time they are drawn instead of all at once on resource reload")
+    public static boolean LazySprites = true;
+
+    @ConfigFile.Comment("Milliseconds per frame which may be spent generating item sprites (when LazySprites is enabled)")
+    public static int SpriteFrameBudget = 4;
+
+    @ConfigFile.Comment("GPU memory (MB) UMC textures and models may use before the least recently used are evicted, 0 for half of the reported VRAM")
+    public static int GPUMemoryBudgetMB = 0;
+
+    @ConfigFile.Comment("Also evict once the driver reports less free GPU memory (MB) than this (NVIDIA/AMD drivers only)")
+    public static int GPUMemoryReserveMB = 256;
+
     @ConfigFile.Comment("Enable Debug Logging")
     public static boolean DebugLogging = false;
 }
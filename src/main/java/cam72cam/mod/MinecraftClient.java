@@ -57,6 +57,11 @@ public class MinecraftClient {
         return Minecraft.getMinecraft().objectMouseOver != null && Minecraft.getMinecraft().objectMouseOver.typeOfHit == RayTraceResult.Type.BLOCK ? new Vec3d(Minecraft.getMinecraft().objectMouseOver.hitVec) : null;
     }
 
+    /** Is this the main client thread (the only thread which may make GL calls)? */
+    public static boolean isRenderThread() {
+        return Minecraft.getMinecraft().isCallingFromMinecraftThread();
+    }
+
     /** Is the game in the paused state? */
     public static boolean isPaused() {
         return Minecraft.getMinecraft().isGamePaused();
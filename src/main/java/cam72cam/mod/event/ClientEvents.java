@@ -39,6 +39,8 @@ public class ClientEvents {
     }
 
     public static final Event<Runnable> TICK = new Event<>();
+    /** Start of every rendered frame */
+    public static final Event<Runnable> FRAME = new Event<>();
     public static final Event<Function<Player.Hand, Boolean>> CLICK = new Event<>();
     public static final Event<Runnable> MODEL_CREATE = new Event<>();
     public static final Event<Consumer<ModelBakeEvent>> MODEL_BAKE = new Event<>();
@@ -61,6 +63,13 @@ public class ClientEvents {
             TICK.execute(Runnable::run);
         }
 
+        @SubscribeEvent
+        public static void onRenderTick(TickEvent.RenderTickEvent event) {
+            if (event.phase == TickEvent.Phase.START) {
+                FRAME.execute(Runnable::run);
+            }
+        }
+
         @SubscribeEvent
         public static void onClick(MouseEvent event) {
             int attackID = Minecraft.getMinecraft().gameSettings.keyBindAttack.getKeyCode() + 100;
@@ -27,20 +27,30 @@ class ItemButton extends GuiButton {
         // Pollutes global state...
         RenderHelper.enableGUIStandardItemLighting();
 
-        FontRenderer font = stack.internal.getItem().getFontRenderer(stack.internal);
         try (
                 OpenGL.With matrix = OpenGL.matrix();
         ) {
             GL11.glTranslated(x, y, 0);
             GL11.glScaled(2, 2, 1);
             mc.getRenderItem().renderItemAndEffectIntoGUI(stack.internal, 0, 0);
-            mc.getRenderItem().renderItemOverlays(font, stack.internal, 0, 0);
         }
 
         // Pollutes global state...
         RenderHelper.disableStandardItemLighting();
     }
 
+    /** Stack size / durability, drawn once the item sprites have been flushed so they end up on top */
+    public void drawOverlay(Minecraft mc) {
+        FontRenderer font = stack.internal.getItem().getFontRenderer(stack.internal);
+        try (
+                OpenGL.With matrix = OpenGL.matrix();
+        ) {
+            GL11.glTranslated(x, y, 0);
+            GL11.glScaled(2, 2, 1);
+            mc.getRenderItem().renderItemOverlays(font, stack.internal, 0, 0);
+        }
+    }
+
     public boolean isMouseOver(int mouseX, int mouseY) {
         return mouseX >= this.x && mouseX < this.x + 32 && mouseY >= this.y && mouseY < this.y + 32;
     }
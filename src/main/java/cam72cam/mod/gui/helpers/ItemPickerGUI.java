@@ -1,6 +1,8 @@
 package cam72cam.mod.gui.helpers;
 
 import cam72cam.mod.item.ItemStack;
+import cam72cam.mod.render.OpenGL;
+import cam72cam.mod.render.SpriteBatch;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.GuiButton;
 import net.minecraft.client.gui.GuiScreen;
@@ -56,7 +58,15 @@ public class ItemPickerGUI {
         @Override
         public void drawScreen(int mouseX, int mouseY, float partialTicks) {
             this.drawDefaultBackground();
-            super.drawScreen(mouseX, mouseY, partialTicks);
+            // Item sprites on the buttons are drawn together, before the overlays and tooltips
+            try (OpenGL.With batch = SpriteBatch.begin()) {
+                super.drawScreen(mouseX, mouseY, partialTicks);
+            }
+            for (GuiButton button : this.buttonList) {
+                if (button instanceof ItemButton) {
+                    ((ItemButton) button).drawOverlay(mc);
+                }
+            }
 
             for (GuiButton button : this.buttonList) {
                 if (button instanceof GuiScrollBar) continue;
@@ -0,0 +1,403 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.util.IntList;
+
+import java.util.Arrays;
+
+/**
+ * Quadric error mesh decimation (Garland/Heckbert) using half-edge collapses
+ *
+ * Vertices are only ever merged into one of their neighbors and never moved, so every output triangle can keep the
+ * uv/normal/material of the triangle it was derived from.  Open edges are weighted so that outlines survive.
+ */
+class MeshSimplifier {
+    private static final double BOUNDARY_WEIGHT = 100;
+
+    // Local vertex data
+    private final int[] ids;
+    private final double[] pos;
+    private final double[] quadrics;
+    private final IntList[] adjacent;
+    private final boolean[] removed;
+    private final int[] stamps;
+    // Last collapse which queued an edge to this vertex, avoids queueing shared edges twice
+    private final int[] queued;
+    private int collapses = 0;
+
+    // Local triangle data
+    private final int[] tris;
+    private final boolean[] dead;
+    private int liveTris;
+
+    // Binary min-heap of candidate collapses (from -> to)
+    private double[] heapCost = new double[1024];
+    private int[] heapFrom = new int[1024];
+    private int[] heapTo = new int[1024];
+    private int[] heapFromStamp = new int[1024];
+    private int[] heapToStamp = new int[1024];
+    private int heapSize = 0;
+
+    /**
+     * Simplify a triangle soup
+     *
+     * @param vertices xyz positions
+     * @param triangles 3 indices into vertices per triangle
+     * @param target maximum number of triangles to keep
+     * @return 4 ints per remaining triangle: source triangle, then the (possibly replaced) 3 vertex indices
+     */
+    static int[] simplify(float[] vertices, int[] triangles, int target) {
+        MeshSimplifier simplifier = new MeshSimplifier(vertices, triangles);
+        simplifier.collapse(target);
+        return simplifier.result();
+    }
+
+    private MeshSimplifier(float[] vertices, int[] triangles) {
+        // Remap the referenced vertices to a compact local range
+        ids = Arrays.stream(triangles).sorted().distinct().toArray();
+        tris = new int[triangles.length];
+        for (int i = 0; i < triangles.length; i++) {
+            tris[i] = Arrays.binarySearch(ids, triangles[i]);
+        }
+
+        int vertexCount = ids.length;
+        pos = new double[vertexCount * 3];
+        for (int i = 0; i < vertexCount; i++) {
+            pos[i * 3] = vertices[ids[i] * 3];
+            pos[i * 3 + 1] = vertices[ids[i] * 3 + 1];
+            pos[i * 3 + 2] = vertices[ids[i] * 3 + 2];
+        }
+        quadrics = new double[vertexCount * 10];
+        adjacent = new IntList[vertexCount];
+        removed = new boolean[vertexCount];
+        stamps = new int[vertexCount];
+        queued = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            adjacent[i] = new IntList(8);
+        }
+
+        int triCount = tris.length / 3;
+        dead = new boolean[triCount];
+        double[] normal = new double[3];
+        for (int t = 0; t < triCount; t++) {
+            int a = tris[t * 3];
+            int b = tris[t * 3 + 1];
+            int c = tris[t * 3 + 2];
+            if (a == b || b == c || a == c) {
+                // Degenerate, nothing to draw
+                dead[t] = true;
+                continue;
+            }
+            liveTris++;
+            adjacent[a].add(t);
+            adjacent[b].add(t);
+            adjacent[c].add(t);
+
+            double area = normal(a, b, c, normal);
+            if (area == 0) {
+                continue;
+            }
+            double d = -(normal[0] * pos[a * 3] + normal[1] * pos[a * 3 + 1] + normal[2] * pos[a * 3 + 2]);
+            addPlane(a, normal[0], normal[1], normal[2], d, area);
+            addPlane(b, normal[0], normal[1], normal[2], d, area);
+            addPlane(c, normal[0], normal[1], normal[2], d, area);
+        }
+
+        // Constrain open edges with a plane perpendicular to the triangle along the edge
+        for (int t = 0; t < triCount; t++) {
+            if (dead[t]) {
+                continue;
+            }
+            for (int e = 0; e < 3; e++) {
+                int a = tris[t * 3 + e];
+                int b = tris[t * 3 + (e + 1) % 3];
+                if (sharedTris(a, b) != 1) {
+                    continue;
+                }
+                if (normal(tris[t * 3], tris[t * 3 + 1], tris[t * 3 + 2], normal) == 0) {
+                    continue;
+                }
+                double ex = pos[b * 3] - pos[a * 3];
+                double ey = pos[b * 3 + 1] - pos[a * 3 + 1];
+                double ez = pos[b * 3 + 2] - pos[a * 3 + 2];
+                double px = ey * normal[2] - ez * normal[1];
+                double py = ez * normal[0] - ex * normal[2];
+                double pz = ex * normal[1] - ey * normal[0];
+                double len = Math.sqrt(px * px + py * py + pz * pz);
+                if (len == 0) {
+                    continue;
+                }
+                px /= len;
+                py /= len;
+                pz /= len;
+                double d = -(px * pos[a * 3] + py * pos[a * 3 + 1] + pz * pos[a * 3 + 2]);
+                double weight = BOUNDARY_WEIGHT * (ex * ex + ey * ey + ez * ez);
+                addPlane(a, px, py, pz, d, weight);
+                addPlane(b, px, py, pz, d, weight);
+            }
+        }
+
+        // Seed each edge once, from the lowest numbered triangle which contains it
+        for (int t = 0; t < triCount; t++) {
+            if (dead[t]) {
+                continue;
+            }
+            for (int e = 0; e < 3; e++) {
+                int a = tris[t * 3 + e];
+                int b = tris[t * 3 + (e + 1) % 3];
+                if (firstSharedTri(a, b) == t) {
+                    pushEdge(a, b);
+                }
+            }
+        }
+    }
+
+    private void collapse(int target) {
+        double[] before = new double[3];
+        double[] after = new double[3];
+
+        while (liveTris > target && heapSize > 0) {
+            int from = heapFrom[0];
+            int to = heapTo[0];
+            int fromStamp = heapFromStamp[0];
+            int toStamp = heapToStamp[0];
+            pop();
+
+            if (removed[from] || removed[to] || stamps[from] != fromStamp || stamps[to] != toStamp) {
+                // Stale entry
+                continue;
+            }
+            if (flips(from, to, before, after)) {
+                continue;
+            }
+
+            IntList fromTris = adjacent[from];
+            for (int i = 0; i < fromTris.size(); i++) {
+                int t = fromTris.get(i);
+                if (dead[t]) {
+                    continue;
+                }
+                if (contains(t, to)) {
+                    dead[t] = true;
+                    liveTris--;
+                    continue;
+                }
+                for (int c = 0; c < 3; c++) {
+                    if (tris[t * 3 + c] == from) {
+                        tris[t * 3 + c] = to;
+                    }
+                }
+                adjacent[to].add(t);
+            }
+            removed[from] = true;
+            adjacent[from] = null;
+            for (int i = 0; i < 10; i++) {
+                quadrics[to * 10 + i] += quadrics[from * 10 + i];
+            }
+            stamps[to]++;
+
+            // Drop dead triangles and re-evaluate every edge touching the merged vertex
+            IntList toTris = adjacent[to];
+            IntList live = new IntList(toTris.size());
+            for (int i = 0; i < toTris.size(); i++) {
+                int t = toTris.get(i);
+                if (!dead[t]) {
+                    live.add(t);
+                }
+            }
+            adjacent[to] = live;
+            collapses++;
+            for (int i = 0; i < live.size(); i++) {
+                int t = live.get(i);
+                for (int c = 0; c < 3; c++) {
+                    int other = tris[t * 3 + c];
+                    if (other != to && queued[other] != collapses) {
+                        queued[other] = collapses;
+                        pushEdge(to, other);
+                    }
+                }
+            }
+        }
+    }
+
+    private int[] result() {
+        IntList out = new IntList(liveTris * 4);
+        for (int t = 0; t < dead.length; t++) {
+            if (!dead[t]) {
+                out.add(t);
+                out.add(ids[tris[t * 3]]);
+                out.add(ids[tris[t * 3 + 1]]);
+                out.add(ids[tris[t * 3 + 2]]);
+            }
+        }
+        return out.toArray();
+    }
+
+    /** Would moving from onto to fold over (or collapse) any triangle which survives? */
+    private boolean flips(int from, int to, double[] before, double[] after) {
+        IntList fromTris = adjacent[from];
+        for (int i = 0; i < fromTris.size(); i++) {
+            int t = fromTris.get(i);
+            if (dead[t] || contains(t, to)) {
+                continue;
+            }
+            int a = tris[t * 3];
+            int b = tris[t * 3 + 1];
+            int c = tris[t * 3 + 2];
+            normal(a, b, c, before);
+            normal(a == from ? to : a, b == from ? to : b, c == from ? to : c, after);
+            if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(int t, int v) {
+        return tris[t * 3] == v || tris[t * 3 + 1] == v || tris[t * 3 + 2] == v;
+    }
+
+    private int sharedTris(int a, int b) {
+        int count = 0;
+        IntList aTris = adjacent[a];
+        for (int i = 0; i < aTris.size(); i++) {
+            if (!dead[aTris.get(i)] && contains(aTris.get(i), b)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int firstSharedTri(int a, int b) {
+        int first = Integer.MAX_VALUE;
+        IntList aTris = adjacent[a];
+        for (int i = 0; i < aTris.size(); i++) {
+            int t = aTris.get(i);
+            if (!dead[t] && contains(t, b)) {
+                first = Math.min(first, t);
+            }
+        }
+        return first;
+    }
+
+    /** Unit normal into out, returns the triangle area (0 if degenerate) */
+    private double normal(int a, int b, int c, double[] out) {
+        double ux = pos[b * 3] - pos[a * 3];
+        double uy = pos[b * 3 + 1] - pos[a * 3 + 1];
+        double uz = pos[b * 3 + 2] - pos[a * 3 + 2];
+        double vx = pos[c * 3] - pos[a * 3];
+        double vy = pos[c * 3 + 1] - pos[a * 3 + 1];
+        double vz = pos[c * 3 + 2] - pos[a * 3 + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (len == 0) {
+            out[0] = out[1] = out[2] = 0;
+            return 0;
+        }
+        out[0] = nx / len;
+        out[1] = ny / len;
+        out[2] = nz / len;
+        return len / 2;
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d, double weight) {
+        int q = v * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /** Error of placing the merged (u + v) vertex at the position of target */
+    private double error(int u, int v, int target) {
+        double x = pos[target * 3];
+        double y = pos[target * 3 + 1];
+        double z = pos[target * 3 + 2];
+        int qu = u * 10;
+        int qv = v * 10;
+        double[] q = quadrics;
+        return (q[qu] + q[qv]) * x * x + 2 * (q[qu + 1] + q[qv + 1]) * x * y + 2 * (q[qu + 2] + q[qv + 2]) * x * z + 2 * (q[qu + 3] + q[qv + 3]) * x
+                + (q[qu + 4] + q[qv + 4]) * y * y + 2 * (q[qu + 5] + q[qv + 5]) * y * z + 2 * (q[qu + 6] + q[qv + 6]) * y
+                + (q[qu + 7] + q[qv + 7]) * z * z + 2 * (q[qu + 8] + q[qv + 8]) * z
+                + (q[qu + 9] + q[qv + 9]);
+    }
+
+    /** Queue the cheaper direction of collapsing the edge a-b */
+    private void pushEdge(int a, int b) {
+        double toB = error(a, b, b);
+        double toA = error(a, b, a);
+        if (toB <= toA) {
+            push(Math.max(0, toB), a, b);
+        } else {
+            push(Math.max(0, toA), b, a);
+        }
+    }
+
+    private void push(double cost, int from, int to) {
+        if (heapSize == heapCost.length) {
+            int size = heapSize * 2;
+            heapCost = Arrays.copyOf(heapCost, size);
+            heapFrom = Arrays.copyOf(heapFrom, size);
+            heapTo = Arrays.copyOf(heapTo, size);
+            heapFromStamp = Arrays.copyOf(heapFromStamp, size);
+            heapToStamp = Arrays.copyOf(heapToStamp, size);
+        }
+        int i = heapSize++;
+        set(i, cost, from, to, stamps[from], stamps[to]);
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapCost[parent] <= heapCost[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void pop() {
+        heapSize--;
+        set(0, heapCost[heapSize], heapFrom[heapSize], heapTo[heapSize], heapFromStamp[heapSize], heapToStamp[heapSize]);
+        int i = 0;
+        while (true) {
+            int left = i * 2 + 1;
+            int right = left + 1;
+            int smallest = i;
+            if (left < heapSize && heapCost[left] < heapCost[smallest]) {
+                smallest = left;
+            }
+            if (right < heapSize && heapCost[right] < heapCost[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void set(int i, double cost, int from, int to, int fromStamp, int toStamp) {
+        heapCost[i] = cost;
+        heapFrom[i] = from;
+        heapTo[i] = to;
+        heapFromStamp[i] = fromStamp;
+        heapToStamp[i] = toStamp;
+    }
+
+    private void swap(int i, int j) {
+        double cost = heapCost[i];
+        int from = heapFrom[i];
+        int to = heapTo[i];
+        int fromStamp = heapFromStamp[i];
+        int toStamp = heapToStamp[i];
+        set(i, heapCost[j], heapFrom[j], heapTo[j], heapFromStamp[j], heapToStamp[j]);
+        set(j, cost, from, to, fromStamp, toStamp);
+    }
+}
@@ -0,0 +1,614 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.math.Vec3d;
+
+import java.util.Map;
+
+/**
+ * Bounding volume hierarchy over the triangles of an OBJModel (or a subset of its groups)
+ *
+ * Built with binned SAH splits into flat arrays.  Keeps its own reference to the vertex positions so it stays valid
+ * after OBJRender releases the model's arrays.  Queries write into a caller supplied Hit, which can be reused
+ * between queries to keep them allocation free.
+ */
+public class OBJBVH {
+    private static final int BINS = 12;
+    private static final int MAX_LEAF = 8;
+
+    private final float[] vertices;
+    private final String[] groupNames;
+    // Per triangle, in BVH order
+    private final int[] triVerts;
+    private final int[] triFaces;
+    private final int[] triGroups;
+    // Per node: minX, minY, minZ, maxX, maxY, maxZ
+    private final float[] nodeBounds;
+    // Per node: first child (interior) or first triangle (leaf), triangle count (0 for interior)
+    private final int[] nodeData;
+    private final int maxDepth;
+
+    /** Query result, reuse between queries to avoid allocation */
+    public static class Hit {
+        /** Ray distance (raycast) or point distance (nearest) */
+        public double distance;
+        public int face;
+        public String group;
+        /** Hit point, or closest point on the model for nearest queries */
+        public double x;
+        public double y;
+        public double z;
+
+        private int[] stack = new int[64];
+        private final double[] scratch = new double[3];
+
+        public Vec3d point() {
+            return new Vec3d(x, y, z);
+        }
+    }
+
+    public OBJBVH(OBJModel model) {
+        this(model, model.groups());
+    }
+
+    /** Must be built before OBJRender.createVBA(), which releases the model's geometry */
+    public OBJBVH(OBJModel model, Iterable<String> groups) {
+        this(model.vertices, model.faceVerts, model.groups, groups);
+    }
+
+    OBJBVH(float[] vertices, int[] faceVerts, Map<String, int[]> groups, Iterable<String> include) {
+        this.vertices = vertices;
+
+        int groupCount = 0;
+        int count = 0;
+        for (String group : include) {
+            groupCount++;
+            count += groups.get(group).length;
+        }
+        groupNames = new String[groupCount];
+        int[] faces = new int[count];
+        int[] faceGroups = new int[count];
+        int idx = 0;
+        int groupIdx = 0;
+        for (String group : include) {
+            groupNames[groupIdx] = group;
+            for (int face : groups.get(group)) {
+                faces[idx] = face;
+                faceGroups[idx] = groupIdx;
+                idx++;
+            }
+            groupIdx++;
+        }
+
+        float[] triBounds = new float[count * 6];
+        float[] centroids = new float[count * 3];
+        for (int i = 0; i < count; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (int c = 0; c < 3; c++) {
+                    float v = vertices[faceVerts[faces[i] * 9 + c * 3] * 3 + axis];
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                triBounds[i * 6 + axis] = min;
+                triBounds[i * 6 + 3 + axis] = max;
+                centroids[i * 3 + axis] = (min + max) / 2;
+            }
+        }
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        int maxNodes = Math.max(1, count * 2 - 1);
+        float[] bounds = new float[maxNodes * 6];
+        int[] data = new int[maxNodes * 2];
+        data[1] = count;
+        int nodeCount = 1;
+        int depth = 0;
+
+        float[] binBounds = new float[BINS * 6];
+        int[] binCounts = new int[BINS];
+        float[] rightArea = new float[BINS];
+        int[] rightCount = new int[BINS];
+        float[] cmin = new float[3];
+        float[] cmax = new float[3];
+
+        // node, depth pairs
+        int[] work = new int[128];
+        int workSize = 0;
+        work[workSize++] = 0;
+        work[workSize++] = 0;
+        while (workSize > 0) {
+            int nodeDepth = work[--workSize];
+            int node = work[--workSize];
+            depth = Math.max(depth, nodeDepth);
+            int first = data[node * 2];
+            int num = data[node * 2 + 1];
+
+            // Node and centroid bounds
+            for (int axis = 0; axis < 3; axis++) {
+                cmin[axis] = Float.POSITIVE_INFINITY;
+                cmax[axis] = Float.NEGATIVE_INFINITY;
+                bounds[node * 6 + axis] = Float.POSITIVE_INFINITY;
+                bounds[node * 6 + 3 + axis] = Float.NEGATIVE_INFINITY;
+            }
+            for (int i = first; i < first + num; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[node * 6 + axis] = Math.min(bounds[node * 6 + axis], triBounds[i * 6 + axis]);
+                    bounds[node * 6 + 3 + axis] = Math.max(bounds[node * 6 + 3 + axis], triBounds[i * 6 + 3 + axis]);
+                    cmin[axis] = Math.min(cmin[axis], centroids[i * 3 + axis]);
+                    cmax[axis] = Math.max(cmax[axis], centroids[i * 3 + axis]);
+                }
+            }
+            if (num <= 2) {
+                continue;
+            }
+
+            // Binned SAH along the widest centroid axis
+            int bestAxis = -1;
+            int bestSplit = 0;
+            float bestCost = Float.POSITIVE_INFINITY;
+            int axis = 0;
+            for (int k = 1; k < 3; k++) {
+                if (cmax[k] - cmin[k] > cmax[axis] - cmin[axis]) {
+                    axis = k;
+                }
+            }
+            float extent = cmax[axis] - cmin[axis];
+            if (extent > 0) {
+                for (int b = 0; b < BINS; b++) {
+                    binCounts[b] = 0;
+                    for (int k = 0; k < 3; k++) {
+                        binBounds[b * 6 + k] = Float.POSITIVE_INFINITY;
+                        binBounds[b * 6 + 3 + k] = Float.NEGATIVE_INFINITY;
+                    }
+                }
+                float binScale = BINS / extent;
+                for (int i = first; i < first + num; i++) {
+                    int b = Math.min(BINS - 1, (int) ((centroids[i * 3 + axis] - cmin[axis]) * binScale));
+                    binCounts[b]++;
+                    for (int k = 0; k < 3; k++) {
+                        float min = triBounds[i * 6 + k];
+                        float max = triBounds[i * 6 + 3 + k];
+                        if (min < binBounds[b * 6 + k]) {
+                            binBounds[b * 6 + k] = min;
+                        }
+                        if (max > binBounds[b * 6 + 3 + k]) {
+                            binBounds[b * 6 + 3 + k] = max;
+                        }
+                    }
+                }
+
+                // Sweep from the right, then from the left evaluating each split
+                float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+                float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+                int sum = 0;
+                for (int b = BINS - 1; b > 0; b--) {
+                    sum += binCounts[b];
+                    if (binCounts[b] != 0) {
+                        minX = Math.min(minX, binBounds[b * 6]);
+                        minY = Math.min(minY, binBounds[b * 6 + 1]);
+                        minZ = Math.min(minZ, binBounds[b * 6 + 2]);
+                        maxX = Math.max(maxX, binBounds[b * 6 + 3]);
+                        maxY = Math.max(maxY, binBounds[b * 6 + 4]);
+                        maxZ = Math.max(maxZ, binBounds[b * 6 + 5]);
+                    }
+                    rightCount[b] = sum;
+                    rightArea[b] = sum == 0 ? 0 : area(maxX - minX, maxY - minY, maxZ - minZ);
+                }
+                minX = minY = minZ = Float.POSITIVE_INFINITY;
+                maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+                sum = 0;
+                for (int b = 0; b < BINS - 1; b++) {
+                    sum += binCounts[b];
+                    if (binCounts[b] != 0) {
+                        minX = Math.min(minX, binBounds[b * 6]);
+                        minY = Math.min(minY, binBounds[b * 6 + 1]);
+                        minZ = Math.min(minZ, binBounds[b * 6 + 2]);
+                        maxX = Math.max(maxX, binBounds[b * 6 + 3]);
+                        maxY = Math.max(maxY, binBounds[b * 6 + 4]);
+                        maxZ = Math.max(maxZ, binBounds[b * 6 + 5]);
+                    }
+                    if (sum == 0 || rightCount[b + 1] == 0) {
+                        continue;
+                    }
+                    float cost = sum * area(maxX - minX, maxY - minY, maxZ - minZ) + rightCount[b + 1] * rightArea[b + 1];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestSplit = b + 1;
+                    }
+                }
+            }
+
+            float leafCost = num * area(
+                    bounds[node * 6 + 3] - bounds[node * 6],
+                    bounds[node * 6 + 4] - bounds[node * 6 + 1],
+                    bounds[node * 6 + 5] - bounds[node * 6 + 2]
+            );
+            if (bestAxis == -1 ? num <= MAX_LEAF * 4 : num <= MAX_LEAF && bestCost >= leafCost) {
+                // All centroids coincide, or splitting doesn't pay off
+                continue;
+            }
+
+            int mid;
+            if (bestAxis == -1) {
+                // Identical centroids, split arbitrarily to keep leaves small
+                mid = first + num / 2;
+            } else {
+                float binScale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+                int i = first;
+                int j = first + num - 1;
+                while (i <= j) {
+                    int b = Math.min(BINS - 1, (int) ((centroids[i * 3 + bestAxis] - cmin[bestAxis]) * binScale));
+                    if (b < bestSplit) {
+                        i++;
+                    } else {
+                        swap(order, triBounds, centroids, i, j);
+                        j--;
+                    }
+                }
+                mid = i;
+            }
+
+            int left = nodeCount;
+            nodeCount += 2;
+            data[left * 2] = first;
+            data[left * 2 + 1] = mid - first;
+            data[(left + 1) * 2] = mid;
+            data[(left + 1) * 2 + 1] = first + num - mid;
+            data[node * 2] = left;
+            data[node * 2 + 1] = 0;
+
+            if (workSize + 4 > work.length) {
+                int[] grown = new int[work.length * 2];
+                System.arraycopy(work, 0, grown, 0, workSize);
+                work = grown;
+            }
+            work[workSize++] = left;
+            work[workSize++] = nodeDepth + 1;
+            work[workSize++] = left + 1;
+            work[workSize++] = nodeDepth + 1;
+        }
+
+        this.maxDepth = depth;
+        this.nodeBounds = new float[nodeCount * 6];
+        System.arraycopy(bounds, 0, nodeBounds, 0, nodeBounds.length);
+        this.nodeData = new int[nodeCount * 2];
+        System.arraycopy(data, 0, nodeData, 0, nodeData.length);
+
+        triVerts = new int[count * 3];
+        triFaces = new int[count];
+        triGroups = new int[count];
+        for (int i = 0; i < count; i++) {
+            int tri = order[i];
+            triFaces[i] = faces[tri];
+            triGroups[i] = faceGroups[tri];
+            for (int c = 0; c < 3; c++) {
+                triVerts[i * 3 + c] = faceVerts[faces[tri] * 9 + c * 3];
+            }
+        }
+    }
+
+    /** Keeps the per triangle build data in BVH order so the build passes read it sequentially */
+    private static void swap(int[] order, float[] triBounds, float[] centroids, int i, int j) {
+        int tri = order[i];
+        order[i] = order[j];
+        order[j] = tri;
+        for (int k = 0; k < 6; k++) {
+            float tmp = triBounds[i * 6 + k];
+            triBounds[i * 6 + k] = triBounds[j * 6 + k];
+            triBounds[j * 6 + k] = tmp;
+        }
+        for (int k = 0; k < 3; k++) {
+            float tmp = centroids[i * 3 + k];
+            centroids[i * 3 + k] = centroids[j * 3 + k];
+            centroids[j * 3 + k] = tmp;
+        }
+    }
+
+    private static float area(float x, float y, float z) {
+        return x * y + y * z + z * x;
+    }
+
+    private int[] stack(Hit hit) {
+        // Children are pushed in pairs
+        if (hit.stack.length < maxDepth + 2) {
+            hit.stack = new int[maxDepth + 2];
+        }
+        return hit.stack;
+    }
+
+    public boolean raycast(Vec3d origin, Vec3d direction, double maxDistance, Hit hit) {
+        return raycast(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, maxDistance, hit);
+    }
+
+    /**
+     * Find the closest triangle along the ray (both faces count)
+     * @param maxDistance in units of direction's length
+     * @return true if hit was filled in
+     */
+    public boolean raycast(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance, Hit hit) {
+        if (triFaces.length == 0) {
+            return false;
+        }
+        double idx = 1 / dx;
+        double idy = 1 / dy;
+        double idz = 1 / dz;
+
+        int[] stack = stack(hit);
+        int sp = 0;
+        double best = maxDistance;
+        int found = -1;
+
+        if (slab(0, ox, oy, oz, idx, idy, idz, best) < best) {
+            stack[sp++] = 0;
+        }
+        while (sp > 0) {
+            int node = stack[--sp];
+            int count = nodeData[node * 2 + 1];
+            if (count != 0) {
+                int first = nodeData[node * 2];
+                for (int tri = first; tri < first + count; tri++) {
+                    double t = intersect(tri, ox, oy, oz, dx, dy, dz);
+                    if (t >= 0 && t < best) {
+                        best = t;
+                        found = tri;
+                    }
+                }
+                continue;
+            }
+            int left = nodeData[node * 2];
+            double dl = slab(left, ox, oy, oz, idx, idy, idz, best);
+            double dr = slab(left + 1, ox, oy, oz, idx, idy, idz, best);
+            // Nearest child is popped first
+            if (dl <= dr) {
+                if (dr < best) {
+                    stack[sp++] = left + 1;
+                }
+                if (dl < best) {
+                    stack[sp++] = left;
+                }
+            } else {
+                if (dl < best) {
+                    stack[sp++] = left;
+                }
+                if (dr < best) {
+                    stack[sp++] = left + 1;
+                }
+            }
+        }
+
+        if (found == -1) {
+            return false;
+        }
+        hit.distance = best;
+        hit.face = triFaces[found];
+        hit.group = groupNames[triGroups[found]];
+        hit.x = ox + dx * best;
+        hit.y = oy + dy * best;
+        hit.z = oz + dz * best;
+        return true;
+    }
+
+    /** @return entry distance of the ray into the node, or infinity if it misses within maxDistance */
+    private double slab(int node, double ox, double oy, double oz, double idx, double idy, double idz, double maxDistance) {
+        int b = node * 6;
+        double tx1 = (nodeBounds[b] - ox) * idx;
+        double tx2 = (nodeBounds[b + 3] - ox) * idx;
+        double tmin = Math.min(tx1, tx2);
+        double tmax = Math.max(tx1, tx2);
+        double ty1 = (nodeBounds[b + 1] - oy) * idy;
+        double ty2 = (nodeBounds[b + 4] - oy) * idy;
+        tmin = Math.max(tmin, Math.min(ty1, ty2));
+        tmax = Math.min(tmax, Math.max(ty1, ty2));
+        double tz1 = (nodeBounds[b + 2] - oz) * idz;
+        double tz2 = (nodeBounds[b + 5] - oz) * idz;
+        tmin = Math.max(tmin, Math.min(tz1, tz2));
+        tmax = Math.min(tmax, Math.max(tz1, tz2));
+        // NaN (axis aligned ray on a box face) falls through as a miss
+        if (tmax >= Math.max(tmin, 0) && tmin < maxDistance) {
+            return Math.max(tmin, 0);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /** Moller-Trumbore, @return ray distance or -1 */
+    private double intersect(int tri, double ox, double oy, double oz, double dx, double dy, double dz) {
+        int a = triVerts[tri * 3] * 3;
+        int b = triVerts[tri * 3 + 1] * 3;
+        int c = triVerts[tri * 3 + 2] * 3;
+        double ax = vertices[a];
+        double ay = vertices[a + 1];
+        double az = vertices[a + 2];
+        double e1x = vertices[b] - ax;
+        double e1y = vertices[b + 1] - ay;
+        double e1z = vertices[b + 2] - az;
+        double e2x = vertices[c] - ax;
+        double e2y = vertices[c + 1] - ay;
+        double e2z = vertices[c + 2] - az;
+
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+        double det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) < 1e-12) {
+            return -1;
+        }
+        double inv = 1 / det;
+        double sx = ox - ax;
+        double sy = oy - ay;
+        double sz = oz - az;
+        double u = (sx * px + sy * py + sz * pz) * inv;
+        if (u < 0 || u > 1) {
+            return -1;
+        }
+        double qx = sy * e1z - sz * e1y;
+        double qy = sz * e1x - sx * e1z;
+        double qz = sx * e1y - sy * e1x;
+        double v = (dx * qx + dy * qy + dz * qz) * inv;
+        if (v < 0 || u + v > 1) {
+            return -1;
+        }
+        return (e2x * qx + e2y * qy + e2z * qz) * inv;
+    }
+
+    public boolean nearest(Vec3d point, double maxDistance, Hit hit) {
+        return nearest(point.x, point.y, point.z, maxDistance, hit);
+    }
+
+    /** Closest triangle to the point, @return true if one was found within maxDistance */
+    public boolean nearest(double px, double py, double pz, double maxDistance, Hit hit) {
+        if (triFaces.length == 0) {
+            return false;
+        }
+        int[] stack = stack(hit);
+        int sp = 0;
+        double best = maxDistance * maxDistance;
+        int found = -1;
+        double bx = 0;
+        double by = 0;
+        double bz = 0;
+
+        if (boxDistanceSq(0, px, py, pz) <= best) {
+            stack[sp++] = 0;
+        }
+        while (sp > 0) {
+            int node = stack[--sp];
+            int count = nodeData[node * 2 + 1];
+            if (count != 0) {
+                int first = nodeData[node * 2];
+                for (int tri = first; tri < first + count; tri++) {
+                    double d = closestPoint(tri, px, py, pz, hit.scratch);
+                    if (d <= best) {
+                        best = d;
+                        found = tri;
+                        bx = hit.scratch[0];
+                        by = hit.scratch[1];
+                        bz = hit.scratch[2];
+                    }
+                }
+                continue;
+            }
+            int left = nodeData[node * 2];
+            double dl = boxDistanceSq(left, px, py, pz);
+            double dr = boxDistanceSq(left + 1, px, py, pz);
+            if (dl <= dr) {
+                if (dr <= best) {
+                    stack[sp++] = left + 1;
+                }
+                if (dl <= best) {
+                    stack[sp++] = left;
+                }
+            } else {
+                if (dl <= best) {
+                    stack[sp++] = left;
+                }
+                if (dr <= best) {
+                    stack[sp++] = left + 1;
+                }
+            }
+        }
+
+        if (found == -1) {
+            return false;
+        }
+        hit.distance = Math.sqrt(best);
+        hit.face = triFaces[found];
+        hit.group = groupNames[triGroups[found]];
+        hit.x = bx;
+        hit.y = by;
+        hit.z = bz;
+        return true;
+    }
+
+    /** @return name of the group closest to the point, null if none is within maxDistance */
+    public String nearestGroup(double px, double py, double pz, double maxDistance, Hit hit) {
+        return nearest(px, py, pz, maxDistance, hit) ? hit.group : null;
+    }
+
+    private double boxDistanceSq(int node, double px, double py, double pz) {
+        int b = node * 6;
+        double dx = Math.max(Math.max(nodeBounds[b] - px, 0), px - nodeBounds[b + 3]);
+        double dy = Math.max(Math.max(nodeBounds[b + 1] - py, 0), py - nodeBounds[b + 4]);
+        double dz = Math.max(Math.max(nodeBounds[b + 2] - pz, 0), pz - nodeBounds[b + 5]);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Closest point on the triangle (Ericson, Real-Time Collision Detection 5.1.5), @return squared distance */
+    private double closestPoint(int tri, double px, double py, double pz, double[] out) {
+        int ia = triVerts[tri * 3] * 3;
+        int ib = triVerts[tri * 3 + 1] * 3;
+        int ic = triVerts[tri * 3 + 2] * 3;
+        double ax = vertices[ia], ay = vertices[ia + 1], az = vertices[ia + 2];
+        double bx = vertices[ib], by = vertices[ib + 1], bz = vertices[ib + 2];
+        double cx = vertices[ic], cy = vertices[ic + 1], cz = vertices[ic + 2];
+
+        double abx = bx - ax, aby = by - ay, abz = bz - az;
+        double acx = cx - ax, acy = cy - ay, acz = cz - az;
+        double apx = px - ax, apy = py - ay, apz = pz - az;
+        double d1 = abx * apx + aby * apy + abz * apz;
+        double d2 = acx * apx + acy * apy + acz * apz;
+        double rx, ry, rz;
+        if (d1 <= 0 && d2 <= 0) {
+            rx = ax;
+            ry = ay;
+            rz = az;
+        } else {
+            double bpx = px - bx, bpy = py - by, bpz = pz - bz;
+            double d3 = abx * bpx + aby * bpy + abz * bpz;
+            double d4 = acx * bpx + acy * bpy + acz * bpz;
+            double cpx = px - cx, cpy = py - cy, cpz = pz - cz;
+            double d5 = abx * cpx + aby * cpy + abz * cpz;
+            double d6 = acx * cpx + acy * cpy + acz * cpz;
+            double vc = d1 * d4 - d3 * d2;
+            double vb = d5 * d2 - d1 * d6;
+            double va = d3 * d6 - d5 * d4;
+            if (d3 >= 0 && d4 <= d3) {
+                rx = bx;
+                ry = by;
+                rz = bz;
+            } else if (d6 >= 0 && d5 <= d6) {
+                rx = cx;
+                ry = cy;
+                rz = cz;
+            } else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+                double v = d1 / (d1 - d3);
+                rx = ax + abx * v;
+                ry = ay + aby * v;
+                rz = az + abz * v;
+            } else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+                double w = d2 / (d2 - d6);
+                rx = ax + acx * w;
+                ry = ay + acy * w;
+                rz = az + acz * w;
+            } else if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+                double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+                rx = bx + (cx - bx) * w;
+                ry = by + (cy - by) * w;
+                rz = bz + (cz - bz) * w;
+            } else {
+                double denom = va + vb + vc;
+                if (denom == 0) {
+                    // Degenerate triangle
+                    rx = ax;
+                    ry = ay;
+                    rz = az;
+                } else {
+                    double v = vb / denom;
+                    double w = vc / denom;
+                    rx = ax + abx * v + acx * w;
+                    ry = ay + aby * v + acy * w;
+                    rz = az + abz * v + acz * w;
+                }
+            }
+        }
+        out[0] = rx;
+        out[1] = ry;
+        out[2] = rz;
+        double ex = px - rx, ey = py - ry, ez = pz - rz;
+        return ex * ex + ey * ey + ez * ez;
+    }
+}
@@ -0,0 +1,425 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.math.Vec3d;
+import cam72cam.mod.render.GLTexture;
+import cam72cam.mod.resource.Identifier;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Pre-parsed binary copy of an OBJModel (and its MTLs) in the UMC cache dir
+ *
+ * The file is keyed by the same sha256 hashes OBJModel computes over its sources, so any change to the OBJ or
+ * one of its MTLs invalidates it.  A warm start only has to hash the sources and read this file.
+ *
+ * Files are read into the heap rather than mapped, a live mapping would keep a stale file from being deleted or
+ * replaced on some platforms (Windows).
+ */
+class OBJCache {
+    private static final int MAGIC = 0x554D434F; // UMCO
+    private static final int VERSION = 1;
+
+    private OBJCache() {}
+
+    static File cacheFile(Identifier modelLoc, double scale) {
+        return GLTexture.cacheFile(modelLoc.getPath().replace("/", ".") + "_" + scale + ".objcache");
+    }
+
+    /** Same hash that OBJModel computes for a single source file */
+    static long hash(Identifier source) throws IOException {
+        try (HashingInputStream input = new HashingInputStream(Hashing.sha256(), source.getLastResourceStream())) {
+            ByteStreams.exhaust(input);
+            return input.hash().asLong();
+        }
+    }
+
+    /**
+     * Fill model from the cache file
+     * @return the full model hash, or null if the cache is missing, stale or corrupt
+     */
+    static Long read(OBJModel model, File file, long objHash, double scale) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buff = readFile(file);
+
+            if (buff.getInt() != MAGIC || buff.getInt() != VERSION) {
+                throw new IOException("Invalid header");
+            }
+            if (buff.getLong() != objHash || buff.getDouble() != scale) {
+                // Source changed, will be replaced once the model is re-parsed
+                return null;
+            }
+            long hash = buff.getLong();
+            long expected = objHash;
+            int materialPaths = buff.getInt();
+            for (int i = 0; i < materialPaths; i++) {
+                expected += hash(model.modelLoc.getRelative(readString(buff)));
+            }
+            if (expected != hash) {
+                return null;
+            }
+
+            float[] vertices = readFloats(buff);
+            float[] vertexNormals = readFloats(buff);
+            float[] vertexTextures = readFloats(buff);
+            int[] faceVerts = readInts(buff);
+
+            String[] mtlNames = new String[readLength(buff, 1)];
+            for (int i = 0; i < mtlNames.length; i++) {
+                mtlNames[i] = buff.get() == 0 ? null : readString(buff).intern();
+            }
+            int[] faceMTLIdx = readInts(buff);
+            for (int idx : faceMTLIdx) {
+                if (idx < 0 || idx >= mtlNames.length) {
+                    throw new IOException("Invalid material index");
+                }
+            }
+
+            Map<String, int[]> groups = new LinkedHashMap<>();
+            Map<String, Vec3d> mins = new HashMap<>();
+            Map<String, Vec3d> maxs = new HashMap<>();
+            int groupCount = buff.getInt();
+            for (int i = 0; i < groupCount; i++) {
+                String name = readString(buff).intern();
+                groups.put(name, readInts(buff));
+                mins.put(name, new Vec3d(buff.getFloat(), buff.getFloat(), buff.getFloat()));
+                maxs.put(name, new Vec3d(buff.getFloat(), buff.getFloat(), buff.getFloat()));
+            }
+
+            Map<String, Material> materials = new HashMap<>();
+            int materialCount = buff.getInt();
+            for (int i = 0; i < materialCount; i++) {
+                Material mtl = new Material();
+                mtl.name = readString(buff);
+                if (buff.get() != 0) {
+                    mtl.texKd = new Identifier(readString(buff));
+                }
+                mtl.Ka = readColor(buff);
+                mtl.Kd = readColor(buff);
+                mtl.Ks = readColor(buff);
+                materials.put(mtl.name, mtl);
+            }
+
+            if (buff.getInt() != MAGIC || buff.hasRemaining()) {
+                throw new IOException("Invalid trailer");
+            }
+
+            model.vertices = vertices;
+            model.vertexNormals = vertexNormals;
+            model.vertexTextures = vertexTextures;
+            model.faceVerts = faceVerts;
+            model.mtlNames = mtlNames;
+            model.faceMTLIdx = faceMTLIdx;
+            model.groups = groups;
+            model.materials = materials;
+            model.mins.putAll(mins);
+            model.maxs.putAll(maxs);
+            return hash;
+        } catch (Exception e) {
+            ModCore.warn("Invalid model cache %s (%s), reparsing %s", file, e, model.modelLoc);
+            file.delete();
+            return null;
+        }
+    }
+
+    /** Write a freshly parsed model to the cache, failures are logged and otherwise ignored */
+    static void write(OBJModel model, File file, long objHash, double scale, List<String> materialPaths) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+            try (Writer out = new Writer(FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                out.ensure(4 + 4 + 8 + 8 + 8 + 4);
+                out.buff.putInt(MAGIC);
+                out.buff.putInt(VERSION);
+                out.buff.putLong(objHash);
+                out.buff.putDouble(scale);
+                out.buff.putLong(model.hash);
+                out.buff.putInt(materialPaths.size());
+                for (String path : materialPaths) {
+                    out.putString(path);
+                }
+
+                out.putFloats(model.vertices);
+                out.putFloats(model.vertexNormals);
+                out.putFloats(model.vertexTextures);
+                out.putInts(model.faceVerts);
+
+                out.ensure(4);
+                out.buff.putInt(model.mtlNames.length);
+                for (String name : model.mtlNames) {
+                    out.ensure(1);
+                    out.buff.put((byte) (name == null ? 0 : 1));
+                    if (name != null) {
+                        out.putString(name);
+                    }
+                }
+                out.putInts(model.faceMTLIdx);
+
+                out.ensure(4);
+                out.buff.putInt(model.groups.size());
+                for (Map.Entry<String, int[]> group : model.groups.entrySet()) {
+                    out.putString(group.getKey());
+                    out.putInts(group.getValue());
+                    Vec3d min = model.mins.get(group.getKey());
+                    Vec3d max = model.maxs.get(group.getKey());
+                    out.ensure(4 * 6);
+                    out.buff.putFloat((float) min.x).putFloat((float) min.y).putFloat((float) min.z);
+                    out.buff.putFloat((float) max.x).putFloat((float) max.y).putFloat((float) max.z);
+                }
+
+                out.ensure(4);
+                out.buff.putInt(model.materials.size());
+                for (Material mtl : model.materials.values()) {
+                    out.putString(mtl.name);
+                    out.ensure(1);
+                    out.buff.put((byte) (mtl.texKd == null ? 0 : 1));
+                    if (mtl.texKd != null) {
+                        out.putString(mtl.texKd.toString());
+                    }
+                    out.putColor(mtl.Ka);
+                    out.putColor(mtl.Kd);
+                    out.putColor(mtl.Ks);
+                }
+
+                out.ensure(4);
+                out.buff.putInt(MAGIC);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ModCore.catching(e, "Unable to write model cache %s", file);
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+        }
+    }
+
+    static File lodFile(Identifier modelLoc, double scale) {
+        return GLTexture.cacheFile(modelLoc.getPath().replace("/", ".") + "_" + scale + ".objlod");
+    }
+
+    /** @return the cached LOD levels, or null if the cache is missing, stale or was built for other ratios */
+    static List<OBJLOD> readLODs(File file, long hash, float[] ratios) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buff = readFile(file);
+
+            if (buff.getInt() != MAGIC || buff.getInt() != VERSION) {
+                throw new IOException("Invalid header");
+            }
+            if (buff.getLong() != hash || !Arrays.equals(readFloats(buff), ratios)) {
+                return null;
+            }
+
+            List<OBJLOD> lods = new ArrayList<>();
+            for (float ratio : ratios) {
+                Map<String, int[]> groups = new LinkedHashMap<>();
+                Map<String, int[]> vertices = new HashMap<>();
+                int groupCount = buff.getInt();
+                for (int i = 0; i < groupCount; i++) {
+                    String name = readString(buff).intern();
+                    groups.put(name, readInts(buff));
+                    vertices.put(name, readInts(buff));
+                }
+                lods.add(new OBJLOD(ratio, groups, vertices));
+            }
+
+            if (buff.getInt() != MAGIC || buff.hasRemaining()) {
+                throw new IOException("Invalid trailer");
+            }
+            return lods;
+        } catch (Exception e) {
+            ModCore.warn("Invalid LOD cache %s (%s), regenerating", file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /** Write generated LOD levels to the cache, failures are logged and otherwise ignored */
+    static void writeLODs(File file, long hash, float[] ratios, List<OBJLOD> lods) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+            try (Writer out = new Writer(FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                out.ensure(4 + 4 + 8);
+                out.buff.putInt(MAGIC);
+                out.buff.putInt(VERSION);
+                out.buff.putLong(hash);
+                out.putFloats(ratios);
+
+                for (OBJLOD lod : lods) {
+                    out.ensure(4);
+                    out.buff.putInt(lod.groups.size());
+                    for (Map.Entry<String, int[]> group : lod.groups.entrySet()) {
+                        out.putString(group.getKey());
+                        out.putInts(group.getValue());
+                        out.putInts(lod.vertices.get(group.getKey()));
+                    }
+                }
+
+                out.ensure(4);
+                out.buff.putInt(MAGIC);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ModCore.catching(e, "Unable to write LOD cache %s", file);
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+        }
+    }
+
+    /** Whole file in a heap buffer, the channel is closed before anything is decided about the file */
+    private static ByteBuffer readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large");
+            }
+            ByteBuffer buff = ByteBuffer.allocate((int) channel.size());
+            while (buff.hasRemaining()) {
+                if (channel.read(buff) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            buff.flip();
+            return buff;
+        }
+    }
+
+    /** Array length prefix, checked against what is left so a corrupt length can't cause a huge allocation */
+    private static int readLength(ByteBuffer buff, int elementSize) throws IOException {
+        int len = buff.getInt();
+        if (len < 0 || (long) len * elementSize > buff.remaining()) {
+            throw new IOException("Invalid length " + len);
+        }
+        return len;
+    }
+
+    private static String readString(ByteBuffer buff) throws IOException {
+        byte[] data = new byte[readLength(buff, 1)];
+        buff.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static float[] readFloats(ByteBuffer buff) throws IOException {
+        float[] data = new float[readLength(buff, 4)];
+        buff.asFloatBuffer().get(data);
+        buff.position(buff.position() + data.length * 4);
+        return data;
+    }
+
+    private static int[] readInts(ByteBuffer buff) throws IOException {
+        int[] data = new int[readLength(buff, 4)];
+        buff.asIntBuffer().get(data);
+        buff.position(buff.position() + data.length * 4);
+        return data;
+    }
+
+    private static FloatBuffer readColor(ByteBuffer buff) {
+        if (buff.get() == 0) {
+            return null;
+        }
+        FloatBuffer color = ByteBuffer.allocateDirect(4 * 4).asFloatBuffer();
+        for (int i = 0; i < 4; i++) {
+            color.put(buff.getFloat());
+        }
+        color.position(0);
+        return color;
+    }
+
+    /** Chunked writer so large arrays don't need to be staged in memory */
+    private static class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buff = ByteBuffer.allocateDirect(1 << 16);
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void flush() throws IOException {
+            buff.flip();
+            while (buff.hasRemaining()) {
+                channel.write(buff);
+            }
+            buff.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buff.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void putString(String str) throws IOException {
+            byte[] data = str.getBytes(StandardCharsets.UTF_8);
+            ensure(4);
+            buff.putInt(data.length);
+            for (int offset = 0; offset < data.length; ) {
+                ensure(1);
+                int len = Math.min(buff.remaining(), data.length - offset);
+                buff.put(data, offset, len);
+                offset += len;
+            }
+        }
+
+        private void putFloats(float[] data) throws IOException {
+            ensure(4);
+            buff.putInt(data.length);
+            for (int offset = 0; offset < data.length; ) {
+                ensure(4);
+                int len = Math.min(buff.remaining() / 4, data.length - offset);
+                buff.asFloatBuffer().put(data, offset, len);
+                buff.position(buff.position() + len * 4);
+                offset += len;
+            }
+        }
+
+        private void putInts(int[] data) throws IOException {
+            ensure(4);
+            buff.putInt(data.length);
+            for (int offset = 0; offset < data.length; ) {
+                ensure(4);
+                int len = Math.min(buff.remaining() / 4, data.length - offset);
+                buff.asIntBuffer().put(data, offset, len);
+                buff.position(buff.position() + len * 4);
+                offset += len;
+            }
+        }
+
+        private void putColor(FloatBuffer color) throws IOException {
+            ensure(1 + 4 * 4);
+            buff.put((byte) (color == null ? 0 : 1));
+            if (color != null) {
+                for (int i = 0; i < 4; i++) {
+                    buff.putFloat(color.get(i));
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+}
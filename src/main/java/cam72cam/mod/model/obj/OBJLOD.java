@@ -0,0 +1,19 @@
+package cam72cam.mod.model.obj;
+
+import java.util.Map;
+
+/** Simplified copy of an OBJModel's groups, see OBJModel.generateLODs */
+public class OBJLOD {
+    /** Fraction of the original triangles this level was built for */
+    public final float ratio;
+    /** Per group: source face of each remaining triangle (material, uvs and normals come from it) */
+    public final Map<String, int[]> groups;
+    /** Per group: vertex index of each corner (3 per triangle), replaces the vertex of the source face's corner */
+    public final Map<String, int[]> vertices;
+
+    OBJLOD(float ratio, Map<String, int[]> groups, Map<String, int[]> vertices) {
+        this.ratio = ratio;
+        this.groups = groups;
+        this.vertices = vertices;
+    }
+}
@@ -4,22 +4,27 @@ import cam72cam.mod.math.Vec3d;
 import cam72cam.mod.resource.Identifier;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingInputStream;
-import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.function.Consumer;
 
 public class OBJModel {
     public final Identifier modelLoc;
     // LinkedHashMap is ordered
-    public Map<String, int[]> groups = new LinkedHashMap<>();
+    public Map<String, int[]> groups;
     public float[] vertices;
     public float[] vertexNormals;
     public float[] vertexTextures;
     public int[] faceVerts;
+    // Material of each face, as an index into mtlNames
+    public String[] mtlNames;
+    public int[] faceMTLIdx;
+    /** @deprecated expanded copy of mtlNames/faceMTLIdx kept for older callers, use {@link #faceMTL(int)} */
+    @Deprecated
     public String[] faceMTLs;
     public byte[] offsetU;
     public byte[] offsetV;
@@ -29,9 +34,12 @@ public class OBJModel {
     public float darken;
 
     public final long hash;
+    private final double scale;
+    /** Simplified levels from generateLODs, null if none were requested */
+    public List<OBJLOD> lods;
 
-    private final Map<String, Vec3d> mins = new HashMap<>();
-    private final Map<String, Vec3d> maxs = new HashMap<>();
+    final Map<String, Vec3d> mins = new HashMap<>();
+    final Map<String, Vec3d> maxs = new HashMap<>();
 
     public enum Vert {
         X(0),
@@ -50,133 +58,43 @@ public class OBJModel {
     }
 
     public OBJModel(Identifier modelLoc, float darken, double scale) throws Exception {
-        long hash = 0;
-        HashingInputStream input = new HashingInputStream(Hashing.sha256(), modelLoc.getLastResourceStream());
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
         this.darken = darken;
         this.modelLoc = modelLoc;
-
-        String currentGroupName = "defaultName";
-        List<Integer> currentGroup = new ArrayList<>();
-        List<String> materialPaths = new ArrayList<>();
-        String currentMaterial = null;
-
-        List<Integer> faceVerts = new ArrayList<>();
-        List<String> faceMTLs = new ArrayList<>();
-        List<Float> vertices = new ArrayList<>();
-        List<Float> vertexNormals = new ArrayList<>();
-        List<Float> vertexTextures = new ArrayList<>();
-
-        Consumer<String[]> addFace = (String[] args) -> {
-            for (int i = 0; i < args.length; i++) {
-                for (int j : parsePoint(args[i])) {
-                    faceVerts.add(j);
-                }
-            }
-        };
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-
-            if (line.startsWith("#")) {
-                continue;
-            }
-            if (line.length() == 0) {
-                continue;
-            }
-            String[] args = line.split(" ");
-            String cmd = args[0];
-            switch (cmd) {
-                case "mtllib":
-                    materialPaths.add(args[1]);
-                    break;
-                case "usemtl":
-                    currentMaterial = args[1].intern();
-                    break;
-                case "o":
-                case "g":
-                    if (currentGroup.size() > 0) {
-                        groups.put(currentGroupName, ArrayUtils.toPrimitive(currentGroup.toArray(new Integer[0])));
-                    }
-                    currentGroupName = args[1].intern();
-                    currentGroup = new ArrayList<Integer>();
-                    break;
-                case "v":
-                    vertices.add(Float.parseFloat(args[1]) * (float) scale);
-                    vertices.add(Float.parseFloat(args[2]) * (float) scale);
-                    vertices.add(Float.parseFloat(args[3]) * (float) scale);
-                    break;
-                case "vn":
-                    vertexNormals.add(Float.parseFloat(args[1]));
-                    vertexNormals.add(Float.parseFloat(args[2]));
-                    vertexNormals.add(Float.parseFloat(args[3]));
-                    break;
-                case "vt":
-                    vertexTextures.add(Float.parseFloat(args[1]));
-                    vertexTextures.add(Float.parseFloat(args[2]));
-                    break;
-                case "f":
-                    int idx;
-                    if (args.length == 4) {
-                        addFace.accept(new String[]{args[1], args[2], args[3]});
-                        idx = faceMTLs.size();
-                        faceMTLs.add(currentMaterial);
-                        currentGroup.add(idx);
-                    } else if (args.length == 5) {
-                        addFace.accept(new String[]{args[1], args[2], args[3]});
-                        idx = faceMTLs.size();
-                        faceMTLs.add(currentMaterial);
-                        currentGroup.add(idx);
-
-                        addFace.accept(new String[]{args[3], args[4], args[1]});
-                        idx = faceMTLs.size();
-                        faceMTLs.add(currentMaterial);
-                        currentGroup.add(idx);
-                    } else {
-                        for (int i = 2; i < args.length - 1; i++) {
-                            addFace.accept(new String[]{args[1], args[i], args[i + 1]});
-                            idx = faceMTLs.size();
-                            faceMTLs.add(currentMaterial);
-                            currentGroup.add(idx);
-                        }
-                    }
-                    break;
-                case "s":
-                    //Ignore
-                    break;
-                case "l":
-                    // Ignore
-                    // TODO might be able to use this for details
-                    break;
-                default:
-                    //System.out.println("OBJ: ignored line '" + line + "'");
-                    break;
-            }
-        }
-        if (currentGroup.size() > 0) {
-            groups.put(currentGroupName, ArrayUtils.toPrimitive(currentGroup.toArray(new Integer[0])));
+        this.scale = scale;
+
+        long objHash = OBJCache.hash(modelLoc);
+        File cacheFile = OBJCache.cacheFile(modelLoc, scale);
+        Long cachedHash = OBJCache.read(this, cacheFile, objHash, scale);
+        if (cachedHash != null) {
+            this.hash = cachedHash;
+            expandFaceMTLs();
+            return;
         }
 
-        reader.close(); // closes input
-        hash += input.hash().asLong();
-
-        this.vertices = ArrayUtils.toPrimitive(vertices.toArray(new Float[0]));
-        this.vertexNormals = ArrayUtils.toPrimitive(vertexNormals.toArray(new Float[0]));
-        this.vertexTextures = ArrayUtils.toPrimitive(vertexTextures.toArray(new Float[0]));
-        this.faceVerts = ArrayUtils.toPrimitive(faceVerts.toArray(new Integer[0]));
-        this.faceMTLs = faceMTLs.toArray(new String[0]);
-
-        if (materialPaths.size() == 0) {
-            this.hash = hash;
-            return;
+        OBJParser parser;
+        try (Reader reader = new InputStreamReader(modelLoc.getLastResourceStream())) {
+            parser = new OBJParser(reader);
+            parser.parse(scale);
         }
+        long hash = objHash;
+
+        this.groups = parser.groups;
+        this.vertices = parser.vertices;
+        this.vertexNormals = parser.vertexNormals;
+        this.vertexTextures = parser.vertexTextures;
+        this.faceVerts = parser.faceVerts;
+        this.mtlNames = parser.mtlNames;
+        this.faceMTLIdx = parser.faceMTLIdx;
+        expandFaceMTLs();
+        List<String> materialPaths = parser.materialPaths;
 
         for (String materialPath : materialPaths) {
 
             Material currentMTL = null;
 
-            input = new HashingInputStream(Hashing.sha256(), modelLoc.getRelative(materialPath).getLastResourceStream());
-            reader = new BufferedReader(new InputStreamReader(input));
+            HashingInputStream input = new HashingInputStream(Hashing.sha256(), modelLoc.getRelative(materialPath).getLastResourceStream());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            String line;
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("#")) {
                     continue;
@@ -260,64 +178,101 @@ public class OBJModel {
             hash += input.hash().asLong();
         }
 
-        for (String group : groups()) {
-            float minX = 0;
-            float minY = 0;
-            float minZ = 0;
-            boolean init = true;
-            int[] faces = groups.get(group);
-            for (int face : faces) {
-                for (int[] point : points(face)) {
-                    if (init) {
-                        init = false;
-                        minX = vertex(point[0], Vert.X);
-                        minY = vertex(point[0], Vert.Y);
-                        minZ = vertex(point[0], Vert.Z);
-                        continue;
-                    }
+        computeBounds();
+        this.hash = hash;
 
-                    minX = Math.min(minX, vertex(point[0], Vert.X));
-                    minY = Math.min(minY, vertex(point[0], Vert.Y));
-                    minZ = Math.min(minZ, vertex(point[0], Vert.Z));
+        OBJCache.write(this, cacheFile, objHash, scale, materialPaths);
+    }
+
+    /**
+     * Generate simplified copies of every group, must be called before the model is handed to OBJRender
+     *
+     * Each level is simplified from the previous one and cached next to the model cache.
+     * @param ratios fraction of each group's triangles to keep per level, ex: 0.5f, 0.25f, 0.1f
+     */
+    public void generateLODs(float... ratios) {
+        File cacheFile = OBJCache.lodFile(modelLoc, scale);
+        lods = OBJCache.readLODs(cacheFile, hash, ratios);
+        if (lods != null) {
+            return;
+        }
+
+        lods = new ArrayList<>();
+        Map<String, int[]> prevGroups = groups;
+        Map<String, int[]> prevVertices = new HashMap<>();
+        for (Map.Entry<String, int[]> group : groups.entrySet()) {
+            int[] faces = group.getValue();
+            int[] tris = new int[faces.length * 3];
+            for (int i = 0; i < faces.length; i++) {
+                for (int c = 0; c < 3; c++) {
+                    tris[i * 3 + c] = faceVerts[faces[i] * 9 + c * 3];
                 }
             }
-            mins.put(group, new Vec3d(minX, minY, minZ));
+            prevVertices.put(group.getKey(), tris);
         }
+
+        for (float ratio : ratios) {
+            Map<String, int[]> lodGroups = new LinkedHashMap<>();
+            Map<String, int[]> lodVertices = new HashMap<>();
+            for (Map.Entry<String, int[]> group : prevGroups.entrySet()) {
+                int[] faces = group.getValue();
+                int target = Math.max(1, (int) (groups.get(group.getKey()).length * ratio));
+                int[] simplified = MeshSimplifier.simplify(vertices, prevVertices.get(group.getKey()), target);
+
+                int count = simplified.length / 4;
+                int[] lodFaces = new int[count];
+                int[] lodVerts = new int[count * 3];
+                for (int i = 0; i < count; i++) {
+                    lodFaces[i] = faces[simplified[i * 4]];
+                    lodVerts[i * 3] = simplified[i * 4 + 1];
+                    lodVerts[i * 3 + 1] = simplified[i * 4 + 2];
+                    lodVerts[i * 3 + 2] = simplified[i * 4 + 3];
+                }
+                lodGroups.put(group.getKey(), lodFaces);
+                lodVertices.put(group.getKey(), lodVerts);
+            }
+            lods.add(new OBJLOD(ratio, lodGroups, lodVertices));
+            prevGroups = lodGroups;
+            prevVertices = lodVertices;
+        }
+
+        OBJCache.writeLODs(cacheFile, hash, ratios, lods);
+    }
+
+    private void computeBounds() {
         for (String group : groups()) {
+            float minX = 0;
+            float minY = 0;
+            float minZ = 0;
             float maxX = 0;
             float maxY = 0;
             float maxZ = 0;
             boolean init = true;
-            int[] faces = groups.get(group);
-            for (int face : faces) {
-                for (int[] point : points(face)) {
+            for (int face : groups.get(group)) {
+                for (int i = 0; i < 3; i++) {
+                    int v = faceVerts[face * 9 + i * 3] * 3;
+                    float x = vertices[v];
+                    float y = vertices[v + 1];
+                    float z = vertices[v + 2];
                     if (init) {
                         init = false;
-                        maxX = vertex(point[0], Vert.X);
-                        maxY = vertex(point[0], Vert.Y);
-                        maxZ = vertex(point[0], Vert.Z);
+                        minX = maxX = x;
+                        minY = maxY = y;
+                        minZ = maxZ = z;
                         continue;
                     }
 
-                    maxX = Math.max(maxX, vertex(point[0], Vert.X));
-                    maxY = Math.max(maxY, vertex(point[0], Vert.Y));
-                    maxZ = Math.max(maxZ, vertex(point[0], Vert.Z));
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    minZ = Math.min(minZ, z);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                    maxZ = Math.max(maxZ, z);
                 }
             }
+            mins.put(group, new Vec3d(minX, minY, minZ));
             maxs.put(group, new Vec3d(maxX, maxY, maxZ));
         }
-        this.hash = hash;
-    }
-
-    private static int[] parsePoint(String point) {
-        String[] sp = point.split("/");
-        int[] ret = new int[]{-1, -1, -1};
-        for (int i = 0; i < sp.length; i++) {
-            if (!sp[i].equals("")) {
-                ret[i] = Integer.parseInt(sp[i]) - 1;
-            }
-        }
-        return ret;
     }
 
     public Set<String> groups() {
@@ -374,6 +329,18 @@ public class OBJModel {
         return max.z - min.z;
     }
 
+    private void expandFaceMTLs() {
+        faceMTLs = new String[faceMTLIdx.length];
+        for (int face = 0; face < faceMTLs.length; face++) {
+            faceMTLs[face] = mtlNames[faceMTLIdx[face]];
+        }
+    }
+
+    /** Material name of a face, null if it has none */
+    public String faceMTL(int face) {
+        return mtlNames[faceMTLIdx[face]];
+    }
+
     public float vertex(int i, Vert comp) {
         return vertices[i * 3 + comp.pt];
     }
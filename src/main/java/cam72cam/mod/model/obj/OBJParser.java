@@ -0,0 +1,315 @@
+package cam72cam.mod.model.obj;
+
+import cam72cam.mod.util.FloatList;
+import cam72cam.mod.util.IntList;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Streaming OBJ tokenizer
+ *
+ * Reads straight from a char buffer into primitive arrays.  Avoids String.split, boxing and per-face allocations
+ * which dominate load time on models with millions of faces.
+ */
+class OBJParser {
+    // Powers of ten which are exactly representable as a float (5^10 < 2^24)
+    private static final float[] POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final int MAX_EXACT_MANTISSA = 1 << 24;
+
+    private final Reader reader;
+    private final char[] buf = new char[1 << 16];
+    private int pos = 0;
+    private int limit = 0;
+    private char[] word = new char[64];
+
+    // LinkedHashMap is ordered
+    final Map<String, int[]> groups = new LinkedHashMap<>();
+    final List<String> materialPaths = new ArrayList<>();
+    float[] vertices;
+    float[] vertexNormals;
+    float[] vertexTextures;
+    int[] faceVerts;
+    // usemtl names in order of first use (null for faces before any usemtl), faceMTLIdx points into it
+    String[] mtlNames;
+    int[] faceMTLIdx;
+
+    OBJParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    /** Parse the entire stream, vertices are multiplied by scale */
+    void parse(double scale) throws IOException {
+        float fscale = (float) scale;
+
+        String currentGroupName = "defaultName";
+        IntList currentGroup = new IntList();
+        Map<String, Integer> mtlIdx = new HashMap<>();
+        List<String> mtlNames = new ArrayList<>();
+        mtlIdx.put(null, 0);
+        mtlNames.add(null);
+        int currentMaterial = 0;
+
+        IntList faceVerts = new IntList(1024);
+        IntList faceMTLIdx = new IntList(1024);
+        FloatList vertices = new FloatList(1024);
+        FloatList vertexNormals = new FloatList(1024);
+        FloatList vertexTextures = new FloatList(1024);
+        IntList poly = new IntList();
+
+        while (true) {
+            int c = skipSpaces();
+            if (c == -1) {
+                break;
+            }
+            if (c == '\n' || c == '\r') {
+                pos++;
+                continue;
+            }
+            if (c == '#') {
+                skipLine();
+                continue;
+            }
+
+            int len = readWord();
+            if (len == 1 && word[0] == 'v') {
+                vertices.add(readFloat() * fscale);
+                vertices.add(readFloat() * fscale);
+                vertices.add(readFloat() * fscale);
+            } else if (len == 2 && word[0] == 'v' && word[1] == 'n') {
+                vertexNormals.add(readFloat());
+                vertexNormals.add(readFloat());
+                vertexNormals.add(readFloat());
+            } else if (len == 2 && word[0] == 'v' && word[1] == 't') {
+                vertexTextures.add(readFloat());
+                vertexTextures.add(readFloat());
+            } else if (len == 1 && word[0] == 'f') {
+                poly.clear();
+                while ((len = readWord()) != 0) {
+                    parsePoint(len, poly);
+                }
+                int points = poly.size() / 3;
+                if (points == 4) {
+                    addFace(poly, faceVerts, 0, 1, 2);
+                    faceMTLIdx.add(currentMaterial);
+                    currentGroup.add(faceMTLIdx.size() - 1);
+
+                    addFace(poly, faceVerts, 2, 3, 0);
+                    faceMTLIdx.add(currentMaterial);
+                    currentGroup.add(faceMTLIdx.size() - 1);
+                } else {
+                    for (int i = 1; i < points - 1; i++) {
+                        addFace(poly, faceVerts, 0, i, i + 1);
+                        faceMTLIdx.add(currentMaterial);
+                        currentGroup.add(faceMTLIdx.size() - 1);
+                    }
+                }
+            } else if (len == 1 && (word[0] == 'o' || word[0] == 'g')) {
+                if (currentGroup.size() > 0) {
+                    groups.put(currentGroupName, currentGroup.toArray());
+                }
+                currentGroupName = readString().intern();
+                currentGroup.clear();
+            } else if (matches(len, "usemtl")) {
+                String name = readString().intern();
+                Integer idx = mtlIdx.get(name);
+                if (idx == null) {
+                    idx = mtlNames.size();
+                    mtlIdx.put(name, idx);
+                    mtlNames.add(name);
+                }
+                currentMaterial = idx;
+            } else if (matches(len, "mtllib")) {
+                materialPaths.add(readString());
+            }
+            // s, l and anything unknown are ignored
+
+            skipLine();
+        }
+        if (currentGroup.size() > 0) {
+            groups.put(currentGroupName, currentGroup.toArray());
+        }
+
+        this.vertices = vertices.toArray();
+        this.vertexNormals = vertexNormals.toArray();
+        this.vertexTextures = vertexTextures.toArray();
+        this.faceVerts = faceVerts.toArray();
+        this.mtlNames = mtlNames.toArray(new String[0]);
+        this.faceMTLIdx = faceMTLIdx.toArray();
+    }
+
+    private static void addFace(IntList poly, IntList faceVerts, int a, int b, int c) {
+        for (int i = 0; i < 3; i++) {
+            faceVerts.add(poly.get(a * 3 + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            faceVerts.add(poly.get(b * 3 + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            faceVerts.add(poly.get(c * 3 + i));
+        }
+    }
+
+    /** v/vt/vn (any of which may be omitted) into three zero based indices, -1 if missing */
+    private void parsePoint(int len, IntList out) {
+        int component = 0;
+        int start = 0;
+        for (int i = 0; i <= len && component < 3; i++) {
+            if (i == len || word[i] == '/') {
+                out.add(start == i ? -1 : parseInt(word, start, i) - 1);
+                component++;
+                start = i + 1;
+            }
+        }
+        for (; component < 3; component++) {
+            out.add(-1);
+        }
+    }
+
+    private boolean matches(int len, String keyword) {
+        if (len != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (word[i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString() throws IOException {
+        return new String(word, 0, readWord());
+    }
+
+    private float readFloat() throws IOException {
+        return parseFloat(word, readWord());
+    }
+
+    /**
+     * Same result as Float.parseFloat
+     *
+     * The fast path only handles mantissas and powers of ten that are exact in a float, a single IEEE division
+     * then rounds the same way parseFloat does.  Anything else (exponents, long mantissas) falls back.
+     */
+    static float parseFloat(char[] c, int len) {
+        int i = 0;
+        boolean neg = false;
+        if (i < len && (c[i] == '-' || c[i] == '+')) {
+            neg = c[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fracDigits = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (; i < len; i++) {
+            char ch = c[i];
+            if (ch >= '0' && ch <= '9') {
+                any = true;
+                if (dot) {
+                    fracDigits++;
+                }
+                if (mantissa != 0 || ch != '0') {
+                    digits++;
+                    if (digits > 18) {
+                        return Float.parseFloat(new String(c, 0, len));
+                    }
+                }
+                mantissa = mantissa * 10 + (ch - '0');
+            } else if (ch == '.' && !dot) {
+                dot = true;
+            } else {
+                return Float.parseFloat(new String(c, 0, len));
+            }
+        }
+        if (!any || mantissa > MAX_EXACT_MANTISSA || fracDigits >= POW10.length) {
+            return Float.parseFloat(new String(c, 0, len));
+        }
+        float value = fracDigits == 0 ? (float) mantissa : (float) mantissa / POW10[fracDigits];
+        return neg ? -value : value;
+    }
+
+    /** Same result as Integer.parseInt on c[start, end) */
+    static int parseInt(char[] c, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (i < end && (c[i] == '-' || c[i] == '+')) {
+            neg = c[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            return Integer.parseInt(new String(c, start, end - start));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            char ch = c[i];
+            if (ch < '0' || ch > '9') {
+                return Integer.parseInt(new String(c, start, end - start));
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return neg ? -value : value;
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buf, 0, buf.length);
+        } while (read == 0);
+        if (read == -1) {
+            pos = limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    /** Skip spaces/tabs on the current line and peek at the next char */
+    private int skipSpaces() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buf[pos];
+            if (c != ' ' && c != '\t') {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    /** Read the next whitespace delimited token on this line into word, 0 if at end of line */
+    private int readWord() throws IOException {
+        int c = skipSpaces();
+        int len = 0;
+        while (c != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            if (len == word.length) {
+                word = Arrays.copyOf(word, word.length * 2);
+            }
+            word[len++] = (char) c;
+            pos++;
+            if (pos == limit && !fill()) {
+                break;
+            }
+            c = buf[pos];
+        }
+        return len;
+    }
+
+    /** Skip past the end of the current line */
+    private void skipLine() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return;
+            }
+            char c = buf[pos++];
+            if (c == '\n' || c == '\r') {
+                return;
+            }
+        }
+    }
+}
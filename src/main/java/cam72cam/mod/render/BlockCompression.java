@@ -0,0 +1,238 @@
+package cam72cam.mod.render;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU BC1 (DXT1) and BC3 (DXT5) encoder/decoder
+ *
+ * Fast bounding box endpoint fit, good enough for texture sheets and quick enough to run while building the cache.
+ * The decoder is the fallback for drivers without S3TC support.
+ */
+final class BlockCompression {
+    private BlockCompression() {}
+
+    /** BC1 texels with alpha below this are punched out */
+    private static final int ALPHA_CUTOFF = 128;
+
+    /** Only fully opaque or fully transparent texels, BC1 can store it without losing alpha */
+    static boolean isBinaryAlpha(int[] argb) {
+        for (int texel : argb) {
+            int alpha = texel >>> 24;
+            if (alpha != 0 && alpha != 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Compressed size of a level */
+    static int size(int width, int height, boolean bc3) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * (bc3 ? 16 : 8);
+    }
+
+    /** Encode row major ARGB texels into dst (little endian block stream) */
+    static void encode(int[] argb, int width, int height, boolean bc3, ByteBuffer dst) {
+        int[] block = new int[16];
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                // Edge blocks repeat their last row/column
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(bx + (i & 3), width - 1);
+                    int y = Math.min(by + (i >> 2), height - 1);
+                    block[i] = argb[y * width + x];
+                }
+                if (bc3) {
+                    encodeAlpha(block, dst);
+                    encodeColor(block, false, dst);
+                } else {
+                    encodeColor(block, true, dst);
+                }
+            }
+        }
+    }
+
+    private static void encodeAlpha(int[] block, ByteBuffer dst) {
+        int min = 255;
+        int max = 0;
+        for (int texel : block) {
+            int alpha = texel >>> 24;
+            min = Math.min(min, alpha);
+            max = Math.max(max, alpha);
+        }
+        dst.put((byte) max);
+        dst.put((byte) min);
+
+        long indices = 0;
+        if (max != min) {
+            for (int i = 0; i < 16; i++) {
+                int alpha = block[i] >>> 24;
+                // Position between max (0) and min (7), then map to the interleaved BC3 index order
+                int step = ((max - alpha) * 7 + (max - min) / 2) / (max - min);
+                int index = step == 0 ? 0 : step == 7 ? 1 : step + 1;
+                indices |= (long) index << (3 * i);
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            dst.put((byte) (indices >>> (8 * i)));
+        }
+    }
+
+    private static void encodeColor(int[] block, boolean punchThrough, ByteBuffer dst) {
+        int minR = 255, minG = 255, minB = 255;
+        int maxR = 0, maxG = 0, maxB = 0;
+        boolean transparent = false;
+        for (int texel : block) {
+            if (punchThrough && (texel >>> 24) < ALPHA_CUTOFF) {
+                transparent = true;
+                continue;
+            }
+            int r = (texel >> 16) & 0xFF;
+            int g = (texel >> 8) & 0xFF;
+            int b = texel & 0xFF;
+            minR = Math.min(minR, r);
+            minG = Math.min(minG, g);
+            minB = Math.min(minB, b);
+            maxR = Math.max(maxR, r);
+            maxG = Math.max(maxG, g);
+            maxB = Math.max(maxB, b);
+        }
+        if (minR > maxR) {
+            // Fully transparent
+            dst.putShort((short) 0);
+            dst.putShort((short) 0);
+            dst.putInt(-1);
+            return;
+        }
+
+        // Inset the box slightly, the extremes are usually outliers
+        int insetR = (maxR - minR) >> 4;
+        int insetG = (maxG - minG) >> 4;
+        int insetB = (maxB - minB) >> 4;
+        int c0 = rgb565(maxR - insetR, maxG - insetG, maxB - insetB);
+        int c1 = rgb565(minR + insetR, minG + insetG, minB + insetB);
+
+        // 4 color mode needs c0 > c1, 3 color + transparent mode needs c0 <= c1
+        if (transparent ? c0 > c1 : c0 < c1) {
+            int tmp = c0;
+            c0 = c1;
+            c1 = tmp;
+        }
+        // BC3 color blocks always decode as 4 colors
+        boolean fourColor = !punchThrough || !transparent && c0 != c1;
+        int[] palette = palette(c0, c1, fourColor);
+
+        int indices = 0;
+        for (int i = 0; i < 16; i++) {
+            int texel = block[i];
+            int index;
+            if (transparent && (texel >>> 24) < ALPHA_CUTOFF) {
+                index = 3;
+            } else {
+                index = 0;
+                int best = Integer.MAX_VALUE;
+                for (int p = 0; p < (fourColor ? 4 : 3); p++) {
+                    int distance = distance(texel, palette[p]);
+                    if (distance < best) {
+                        best = distance;
+                        index = p;
+                    }
+                }
+            }
+            indices |= index << (2 * i);
+        }
+
+        dst.putShort((short) c0);
+        dst.putShort((short) c1);
+        dst.putInt(indices);
+    }
+
+    private static int rgb565(int r, int g, int b) {
+        return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | ((b * 31 + 127) / 255);
+    }
+
+    private static int rgb888(int c) {
+        int r = (c >> 11) & 0x1F;
+        int g = (c >> 5) & 0x3F;
+        int b = c & 0x1F;
+        return (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+    }
+
+    /** RGB palette, the 4th entry is transparent black in 3 color mode */
+    private static int[] palette(int c0, int c1, boolean fourColor) {
+        int a = rgb888(c0);
+        int b = rgb888(c1);
+        int[] palette = new int[4];
+        palette[0] = a;
+        palette[1] = b;
+        if (fourColor) {
+            palette[2] = mix(a, b, 2, 1, 3);
+            palette[3] = mix(a, b, 1, 2, 3);
+        } else {
+            palette[2] = mix(a, b, 1, 1, 2);
+            palette[3] = 0;
+        }
+        return palette;
+    }
+
+    private static int mix(int a, int b, int wa, int wb, int div) {
+        int r = (((a >> 16) & 0xFF) * wa + ((b >> 16) & 0xFF) * wb) / div;
+        int g = (((a >> 8) & 0xFF) * wa + ((b >> 8) & 0xFF) * wb) / div;
+        int bl = ((a & 0xFF) * wa + (b & 0xFF) * wb) / div;
+        return r << 16 | g << 8 | bl;
+    }
+
+    private static int distance(int a, int b) {
+        int r = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int g = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int bl = (a & 0xFF) - (b & 0xFF);
+        return r * r + g * g + bl * bl;
+    }
+
+    /** Decode a little endian block stream back into row major ARGB texels */
+    static int[] decode(ByteBuffer src, int width, int height, boolean bc3) {
+        int[] argb = new int[width * height];
+        int[] alphas = new int[8];
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                long alphaIndices = 0;
+                if (bc3) {
+                    int a0 = src.get() & 0xFF;
+                    int a1 = src.get() & 0xFF;
+                    alphas[0] = a0;
+                    alphas[1] = a1;
+                    for (int i = 1; i < 7; i++) {
+                        alphas[i + 1] = a0 > a1 ?
+                                ((7 - i) * a0 + i * a1) / 7 :
+                                i < 5 ? ((5 - i) * a0 + i * a1) / 5 : i == 5 ? 0 : 255;
+                    }
+                    for (int i = 0; i < 6; i++) {
+                        alphaIndices |= (long) (src.get() & 0xFF) << (8 * i);
+                    }
+                }
+
+                int c0 = src.getShort() & 0xFFFF;
+                int c1 = src.getShort() & 0xFFFF;
+                int indices = src.getInt();
+                boolean fourColor = bc3 || c0 > c1;
+                int[] palette = palette(c0, c1, fourColor);
+
+                for (int i = 0; i < 16; i++) {
+                    int x = bx + (i & 3);
+                    int y = by + (i >> 2);
+                    if (x >= width || y >= height) {
+                        continue;
+                    }
+                    int index = (indices >>> (2 * i)) & 3;
+                    int alpha;
+                    if (bc3) {
+                        alpha = alphas[(int) ((alphaIndices >>> (3 * i)) & 7)];
+                    } else {
+                        alpha = !fourColor && index == 3 ? 0 : 255;
+                    }
+                    argb[y * width + x] = alpha << 24 | palette[index];
+                }
+            }
+        }
+        return argb;
+    }
+}
@@ -19,14 +19,19 @@ public class GLSLShader {
 
     /** Create a shader with vert and frag */
     public GLSLShader(Identifier vert, Identifier frag) {
+        this(readShader(vert), readShader(frag));
+    }
+
+    /** Create a shader from vert and frag source code */
+    public GLSLShader(String vert, String frag) {
         int vertShader = ARBShaderObjects.glCreateShaderObjectARB(ARBVertexShader.GL_VERTEX_SHADER_ARB);
         int fragShader = ARBShaderObjects.glCreateShaderObjectARB(ARBFragmentShader.GL_FRAGMENT_SHADER_ARB);
-        ARBShaderObjects.glShaderSourceARB(vertShader, readShader(vert));
+        ARBShaderObjects.glShaderSourceARB(vertShader, vert);
         ARBShaderObjects.glCompileShaderARB(vertShader);
         if (ARBShaderObjects.glGetObjectParameteriARB(vertShader, ARBShaderObjects.GL_OBJECT_COMPILE_STATUS_ARB) == GL11.GL_FALSE)
             throw new RuntimeException("Error creating shader: " + getLogInfo(vertShader));
 
-        ARBShaderObjects.glShaderSourceARB(fragShader, readShader(frag));
+        ARBShaderObjects.glShaderSourceARB(fragShader, frag);
         ARBShaderObjects.glCompileShaderARB(fragShader);
         if (ARBShaderObjects.glGetObjectParameteriARB(fragShader, ARBShaderObjects.GL_OBJECT_COMPILE_STATUS_ARB) == GL11.GL_FALSE)
             throw new RuntimeException("Error creating shader: " + getLogInfo(fragShader));
@@ -73,7 +78,7 @@ public class GLSLShader {
         }
     }
 
-    private String readShader(Identifier fname) {
+    private static String readShader(Identifier fname) {
         InputStream input;
         try {
             input = fname.getResourceStream();
@@ -84,7 +89,8 @@ public class GLSLShader {
         Scanner reader = new Scanner(input);
         String text = "";
         while (reader.hasNextLine()) {
-            text = text + reader.nextLine();
+            // Keep the line breaks, preprocessor directives (#version, #extension) end at them
+            text = text + reader.nextLine() + "\n";
         }
         reader.close(); // closes input
         return text;
@@ -1,40 +1,85 @@
 package cam72cam.mod.render;
 
+import cam72cam.mod.MinecraftClient;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.event.ClientEvents;
-import net.minecraft.client.renderer.texture.TextureUtil;
 import net.minecraftforge.fml.common.Loader;
 import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.*;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
-
-/** Internal(ish) class for representing a GL texture */
-public class GLTexture {
-    // Thread Pools for reading and saving textures
-    private static final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(1);
-    private static final ExecutorService saveImage = new ThreadPoolExecutor(5, 5, 60, TimeUnit.SECONDS, queue);
-    private static final ExecutorService readImage = Executors.newFixedThreadPool(1);
-    // All currently known textures
-    private static final Map<String, GLTexture> textures = new HashMap<>();
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Internal(ish) class for representing a GL texture
+ *
+ * Cached as raw (or LZ4 compressed) little endian BGRA pixels behind a small header, which are memory mapped and
+ * handed straight to glTexImage2D.  PNG caches from older versions are not trusted (they carry no source hash), they
+ * are regenerated and the PNG removed.
+ * The cache may also hold a mip chain (see MipMaps) and/or BC1/BC3 blocks (see BlockCompression) built on the CPU.
+ *
+ * Textures larger than the per-frame upload budget are streamed instead: a worker thread copies the pixels into a
+ * pixel buffer object, which is then uploaded in strips of rows over several frames.  Until that finishes the texture
+ * is not loaded, so callers fall back (ex: to an icon) as they would while reading.
+ *
+ * Reads, writes and PBO copies all go through TextureIO, reads for binds jump ahead of cache writes and finished reads
+ * are uploaded from their completion callback.
+ */
+public class GLTexture implements GPUMemory.Resource {
+    // Cache file header: magic, version, flags, width, height, source hash, format, levels, data length
+    private static final int MAGIC = 0x554D4354;
+    private static final int VERSION = 2;
+    private static final int FLAG_LZ4 = 1;
+    private static final int HEADER_BYTES = 40;
+    // Data formats, every level is stored back to back starting with the largest
+    private static final int FORMAT_BGRA = 0;
+    private static final int FORMAT_BC1 = 1;
+    private static final int FORMAT_BC3 = 2;
+
+    // All currently known textures (may be created from loader threads)
+    private static final Map<String, GLTexture> textures = new ConcurrentHashMap<>();
+    // In progress streaming uploads, render thread only
+    private static final List<Upload> uploads = new ArrayList<>();
+    private static long uploadBudget = 8 * 1024 * 1024;
+    private static Boolean pboSupported;
+    private static Boolean s3tcSupported;
     
     private final File texLoc;
+    private final long sourceHash;
     private final int cacheSeconds;
+    private final int mipLevels;
+    private final List<Rectangle> mipRegions;
+    private final boolean compress;
     private int width;
     private int height;
+    private int format = FORMAT_BGRA;
+    private int levels = 1;
     private int glTexID;
     private long lastUsed;
-    private IntBuffer pixels;
-    private TextureState state;
+    private ByteBuffer pixels;
+    private Upload upload;
+    private TextureIO.Job<?> pending;
+    // Upload as soon as the pending read finishes, prefetched reads wait for the next tryUpload instead
+    private boolean uploadOnRead;
+    private volatile TextureState state;
     private RuntimeException internalError;
 
     private enum TextureState {
@@ -44,6 +89,7 @@ public class GLTexture {
         READ,
         ALLOCATED,
         UNALLOCATED,
+        STREAMING,
         ERROR
     }
 
@@ -56,6 +102,12 @@ public class GLTexture {
                 }
             }
         });
+        ClientEvents.FRAME.subscribe(GLTexture::stream);
+    }
+
+    /** Bytes uploaded per frame by streaming uploads, textures larger than this are streamed.  0 disables streaming */
+    public static void setUploadBudgetMB(int mb) {
+        uploadBudget = mb * 1024L * 1024L;
     }
 
     /** Get a file for name in the UMC cache dir */
@@ -66,9 +118,50 @@ public class GLTexture {
         return new File(cacheDir, name);
     }
 
+    /**
+     * Hash stored in the cache file for name, null if it is missing or not in the current format
+     *
+     * Only reads the header, useful for checking if a cached texture is still valid without loading it.
+     */
+    public static Long cachedHash(String name) {
+        File file = cacheFile(name);
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            input.getChannel().read(header, 0);
+            if (header.position() != HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                return null;
+            }
+            return header.getLong(20);
+        } catch (IOException e) {
+            ModCore.catching(e);
+            return null;
+        }
+    }
+
     public GLTexture(String name, BufferedImage image, int cacheSeconds, boolean upload) {
+        this(name, image, cacheSeconds, upload, 0);
+    }
+
+    /** @param sourceHash stored in the cache file header, see cachedHash */
+    public GLTexture(String name, BufferedImage image, int cacheSeconds, boolean upload, long sourceHash) {
+        this(name, image, cacheSeconds, upload, sourceHash, 1, null, false);
+    }
+
+    /**
+     * @param mipLevels max levels (including the base) to generate when writing the cache
+     * @param mipRegions atlas entries which are downsampled separately, null for the whole image
+     * @param compress store as BC1 (binary alpha) or BC3 blocks
+     */
+    public GLTexture(String name, BufferedImage image, int cacheSeconds, boolean upload, long sourceHash, int mipLevels, List<Rectangle> mipRegions, boolean compress) {
         this.texLoc = cacheFile(name);
+        this.sourceHash = sourceHash;
         this.cacheSeconds = cacheSeconds;
+        this.mipLevels = mipLevels;
+        this.mipRegions = mipRegions;
+        this.compress = compress;
 
         if (image != null) {
             this.width = image.getWidth();
@@ -78,8 +171,9 @@ public class GLTexture {
 
             transition(TextureState.WRITING);
             if (upload) {
+                ByteBuffer written;
                 try {
-                    ImageIO.write(image, "png", texLoc);
+                    written = writeCache(image);
                 } catch (IOException e) {
                     internalError = new RuntimeException(e);
                     transition(TextureState.ERROR);
@@ -88,86 +182,419 @@ public class GLTexture {
                 }
                 transition(TextureState.UNALLOCATED);
 
-                this.pixels = imageToPixels(image);
+                this.pixels = written;
                 transition(TextureState.READ);
-                tryUpload();
-            } else {
-                while (queue.size() != 0) {
-                    try {
-                        Thread.sleep(1000);
-                        ModCore.info("Waiting for free write slot...");
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                if (MinecraftClient.isRenderThread()) {
+                    tryUpload();
                 }
-                saveImage.submit(() -> {
+            } else {
+                // Blocks while too many images are waiting to be written
+                pending = TextureIO.submit(TextureIO.Priority.BACKGROUND, writeBytes(), () -> {
                     try {
-                        ImageIO.write(image, "png", texLoc);
+                        writeCache(image);
                         transition(TextureState.UNALLOCATED);
+                        return null;
                     } catch (IOException e) {
                         internalError = new RuntimeException("Unable to save image " + texLoc, e);
                         transition(TextureState.ERROR);
                         texLoc.delete();
                         throw internalError;
                     }
-                });
+                }, null);
             }
         } else {
             transition(TextureState.UNALLOCATED);
-            if (upload) {
-                for (int i = 0; i< 100; i++) {
-                    if (tryUpload()) {
-                        break;
-                    }
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        // PASS
-                    }
-                }
+            if (upload && MinecraftClient.isRenderThread()) {
+                waitForUpload(1000);
             }
         }
 
         textures.put(texLoc.toString(), this);
     }
 
+    /** Rough memory held while writing: the image, its mip chain and the encoded copy */
+    private long writeBytes() {
+        return width * (long) height * 4 * 3;
+    }
+
+    /** Rough memory held while reading, the header isn't known until the file is read */
+    private long readBytes() {
+        return Math.max(texLoc.length(), width * (long) height * 4);
+    }
+
     private void transition(TextureState state) {
         this.state = state;
         //ModCore.info(state.name() + " " + texLoc);
     }
 
-    private IntBuffer imageToPixels(BufferedImage image) {
-        // Will dump out inside a loading thread if prematurely free'd
-        assert state == TextureState.READ;
+    /** Cache files used to be PNGs next to where the raw file now lives, replaced once the texture is written */
+    private File legacyFile() {
+        String path = texLoc.getPath();
+        return path.endsWith(".tex") ? new File(path.substring(0, path.length() - 4) + ".png") : null;
+    }
+
+    private int levelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    private int levelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    private int levelBytes(int level) {
+        return format == FORMAT_BGRA ?
+                levelWidth(level) * levelHeight(level) * 4 :
+                BlockCompression.size(levelWidth(level), levelHeight(level), format == FORMAT_BC3);
+    }
+
+    private int levelOffset(int level) {
+        int offset = 0;
+        for (int i = 0; i < level; i++) {
+            offset += levelBytes(i);
+        }
+        return offset;
+    }
+
+    private int dataBytes() {
+        return levelOffset(levels);
+    }
+
+    private ByteBuffer levelData(ByteBuffer data, int level) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(levelOffset(level));
+        slice.limit(levelOffset(level) + levelBytes(level));
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int glFormat() {
+        return format == FORMAT_BC1 ?
+                EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT1_EXT :
+                EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+    }
+
+    /** Write image to the cache, returns its data ready for upload */
+    private ByteBuffer writeCache(BufferedImage image) throws IOException {
         width = image.getWidth();
         height = image.getHeight();
 
-        int[] pixels = new int[image.getWidth() * image.getHeight()];
-        image.getRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
-        IntBuffer buffer = BufferUtils.createByteBuffer(image.getWidth() * image.getHeight() * 4).asIntBuffer();
-        buffer.put(pixels);
-        buffer.flip();
-        return buffer;
+        int[] argb;
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            // Skip the getRGB copy when we already have the right layout
+            argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        } else {
+            argb = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+
+        List<int[]> chain = MipMaps.generate(argb, width, height, mipRegions, mipLevels);
+        levels = chain.size();
+        format = !compress ? FORMAT_BGRA : BlockCompression.isBinaryAlpha(argb) ? FORMAT_BC1 : FORMAT_BC3;
+
+        ByteBuffer data = BufferUtils.createByteBuffer(dataBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int level = 0; level < levels; level++) {
+            ByteBuffer target = levelData(data, level);
+            if (format == FORMAT_BGRA) {
+                // ARGB ints stored little endian are BGRA bytes
+                target.asIntBuffer().put(chain.get(level), 0, levelWidth(level) * levelHeight(level));
+            } else {
+                BlockCompression.encode(chain.get(level), levelWidth(level), levelHeight(level), format == FORMAT_BC3, target);
+            }
+        }
+
+        // Only worth decompressing if it saves a good chunk of disk/IO, give up as soon as it doesn't
+        byte[] compressed = new byte[(int) (data.capacity() * 3L / 4)];
+        int compressedLength = LZ4.compress(data, compressed);
+        boolean lz4 = compressedLength >= 0;
+        if (!lz4) {
+            compressed = null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(lz4 ? FLAG_LZ4 : 0);
+        header.putInt(width);
+        header.putInt(height);
+        header.putLong(sourceHash);
+        header.putInt(format);
+        header.putInt(levels);
+        header.putInt(lz4 ? compressedLength : data.capacity());
+
+        // Readers may still have the old file mapped, replace it instead of truncating it under them
+        Path tmp = Files.createTempFile(texLoc.getParentFile().toPath(), texLoc.getName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer remaining = header;
+                remaining.flip();
+                while (remaining.hasRemaining()) {
+                    channel.write(remaining);
+                }
+                remaining = lz4 ? ByteBuffer.wrap(compressed, 0, compressedLength) : data.duplicate();
+                while (remaining.hasRemaining()) {
+                    channel.write(remaining);
+                }
+            }
+            Files.move(tmp, texLoc.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.toFile().delete();
+            throw e;
+        }
+
+        File legacy = legacyFile();
+        if (legacy != null && legacy.exists()) {
+            legacy.delete();
+        }
+        return data;
+    }
+
+    /** Map the cache file, raw data is used in place */
+    private ByteBuffer readCache() throws IOException {
+        ByteBuffer mapped;
+        try (RandomAccessFile input = new RandomAccessFile(texLoc, "r")) {
+            mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException("Invalid texture cache header");
+        }
+        int flags = mapped.getInt(8);
+        width = mapped.getInt(12);
+        height = mapped.getInt(16);
+        format = mapped.getInt(28);
+        levels = mapped.getInt(32);
+        int length = mapped.getInt(36);
+        if (format < FORMAT_BGRA || format > FORMAT_BC3 || levels < 1 || HEADER_BYTES + (long) length > mapped.capacity()) {
+            throw new IOException("Invalid texture cache");
+        }
+
+        mapped.position(HEADER_BYTES);
+        mapped.limit(HEADER_BYTES + length);
+        if ((flags & FLAG_LZ4) == 0) {
+            if (length != dataBytes()) {
+                throw new IOException("Invalid texture cache size");
+            }
+            return mapped.slice();
+        }
+
+        ByteBuffer data = BufferUtils.createByteBuffer(dataBytes());
+        LZ4.decompress(mapped, data);
+        return data;
+    }
+
+    private static boolean s3tcSupported() {
+        if (s3tcSupported == null) {
+            s3tcSupported = GLContext.getCapabilities().GL_EXT_texture_compression_s3tc;
+        }
+        return s3tcSupported;
+    }
+
+    /** CPU fallback for drivers without S3TC */
+    private void decompress() {
+        int[][] decoded = new int[levels][];
+        for (int level = 0; level < levels; level++) {
+            decoded[level] = BlockCompression.decode(levelData(pixels, level), levelWidth(level), levelHeight(level), format == FORMAT_BC3);
+        }
+        format = FORMAT_BGRA;
+        pixels = BufferUtils.createByteBuffer(dataBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int level = 0; level < levels; level++) {
+            levelData(pixels, level).asIntBuffer().put(decoded[level]);
+        }
+    }
+
+    /** Create the GL texture with uninitialized storage, bound until the returned With is restored */
+    private OpenGL.With allocate(int textureID) {
+        OpenGL.With tex = OpenGL.texture(textureID);
+        for (int level = 0; level < levels; level++) {
+            if (format == FORMAT_BGRA) {
+                GL11.glTexImage2D(GL11.GL_TEXTURE_2D, level, GL11.GL_RGBA, levelWidth(level), levelHeight(level), 0, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+            } else {
+                GL13.glCompressedTexImage2D(GL11.GL_TEXTURE_2D, level, glFormat(), levelWidth(level), levelHeight(level), 0, levelBytes(level));
+            }
+        }
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, levels - 1);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, levels > 1 ? GL11.GL_LINEAR_MIPMAP_LINEAR : GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+        return tex;
     }
 
     private int uploadTexture() {
         this.lastUsed = System.currentTimeMillis();
         int textureID = GL11.glGenTextures();
-        try (OpenGL.With tex = OpenGL.texture(textureID)) {
-            TextureUtil.allocateTexture(textureID, width, height);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
-
-            GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA, width, height, 0, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, pixels);
-            //GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, pixels);
+        try (OpenGL.With tex = allocate(textureID)) {
+            for (int level = 0; level < levels; level++) {
+                ByteBuffer data = levelData(pixels, level);
+                if (format == FORMAT_BGRA) {
+                    GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, level, 0, 0, levelWidth(level), levelHeight(level), GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, data);
+                } else {
+                    GL13.glCompressedTexSubImage2D(GL11.GL_TEXTURE_2D, level, 0, 0, levelWidth(level), levelHeight(level), glFormat(), data);
+                }
+            }
             pixels = null;
             transition(TextureState.ALLOCATED);
         }
+        GPUMemory.allocated(this);
         return textureID;
     }
 
+    static boolean pboSupported() {
+        if (pboSupported == null) {
+            ContextCapabilities caps = GLContext.getCapabilities();
+            pboSupported = caps.OpenGL21 || caps.GL_ARB_pixel_buffer_object;
+        }
+        return pboSupported;
+    }
+
+    /** Start a streaming upload of pixels, false if the PBO could not be set up */
+    private boolean startStreaming() {
+        int pbo = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, pbo);
+        GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, gpuBytes(), GL15.GL_STREAM_DRAW);
+        ByteBuffer target = GL15.glMapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, GL15.GL_WRITE_ONLY, gpuBytes(), null);
+        GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+        if (target == null) {
+            GL15.glDeleteBuffers(pbo);
+            return false;
+        }
+
+        ByteBuffer source = pixels;
+        pixels = null;
+        upload = new Upload(this, pbo);
+        uploads.add(upload);
+        transition(TextureState.STREAMING);
+
+        Upload started = upload;
+        TextureIO.submit(TextureIO.Priority.VISIBLE, 0, () -> {
+            // Reading a mapped cache file here also keeps the page faults off the render thread
+            target.put(source.duplicate());
+            return null;
+        }, (result, error) -> {
+            if (error != null) {
+                ModCore.catching(error);
+            }
+            // Hand the buffer back to the render thread even on failure, so it gets unmapped
+            started.copied = true;
+        });
+        return true;
+    }
+
+    /** Advance streaming uploads within this frame's budget */
+    private static void stream() {
+        long budget = uploadBudget;
+        for (Iterator<Upload> iterator = uploads.iterator(); iterator.hasNext() && budget > 0; ) {
+            Upload current = iterator.next();
+            if (!current.copied) {
+                // The worker still owns the mapped buffer
+                continue;
+            }
+            budget = current.step(budget);
+            if (current.finished()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** A PBO being copied into by a worker thread, then uploaded a strip of rows (or block rows) at a time */
+    private static class Upload {
+        private final GLTexture texture;
+        private final int pbo;
+        private boolean copied;
+        private boolean unmapped;
+        private int textureID;
+        private int level;
+        // Rows (block rows for compressed formats) of the current level which are done
+        private int units;
+
+        private Upload(GLTexture texture, int pbo) {
+            this.texture = texture;
+            this.pbo = pbo;
+        }
+
+        private boolean finished() {
+            return unmapped && (textureID == 0 || level == texture.levels);
+        }
+
+        /** Returns the budget left over */
+        private long step(long budget) {
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, pbo);
+            if (!unmapped) {
+                GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+                unmapped = true;
+            }
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+
+            if (texture.upload != this) {
+                // Freed (and possibly re-read) while copying
+                GL15.glDeleteBuffers(pbo);
+                if (textureID != 0) {
+                    GL11.glDeleteTextures(textureID);
+                    textureID = 0;
+                }
+                return budget;
+            }
+
+            if (textureID == 0) {
+                // Storage has to be allocated while no unpack buffer is bound
+                textureID = GL11.glGenTextures();
+                texture.allocate(textureID).restore();
+            }
+
+            try (OpenGL.With tex = OpenGL.texture(textureID)) {
+                GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, pbo);
+                while (budget > 0 && level < texture.levels) {
+                    int unitRows = texture.format == FORMAT_BGRA ? 1 : 4;
+                    int width = texture.levelWidth(level);
+                    int height = texture.levelHeight(level);
+                    int totalUnits = (height + unitRows - 1) / unitRows;
+                    long unitBytes = texture.levelBytes(level) / totalUnits;
+
+                    int count = (int) Math.min(totalUnits - units, Math.max(1, budget / unitBytes));
+                    int y = units * unitRows;
+                    int rows = Math.min(count * unitRows, height - y);
+                    long offset = texture.levelOffset(level) + units * unitBytes;
+                    if (texture.format == FORMAT_BGRA) {
+                        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, level, 0, y, width, rows, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, offset);
+                    } else {
+                        GL13.glCompressedTexSubImage2D(GL11.GL_TEXTURE_2D, level, 0, y, width, rows, texture.glFormat(), (int) (count * unitBytes), offset);
+                    }
+
+                    budget -= count * unitBytes;
+                    units += count;
+                    if (units == totalUnits) {
+                        level++;
+                        units = 0;
+                    }
+                }
+                GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            }
+
+            if (level == texture.levels) {
+                GL15.glDeleteBuffers(pbo);
+                texture.upload = null;
+                texture.glTexID = textureID;
+                texture.lastUsed = System.currentTimeMillis();
+                texture.transition(TextureState.ALLOCATED);
+                GPUMemory.allocated(texture);
+            }
+            return budget;
+        }
+    }
+
+    @Override
+    public long gpuBytes() {
+        return dataBytes();
+    }
+
+    @Override
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    /** Same as dealloc, the texture is re-read from the cache on its next bind */
+    @Override
+    public void evict() {
+        dealloc();
+    }
+
     /** Can this texture be bound? */
     public boolean isLoaded() {
         return state == TextureState.ALLOCATED;
@@ -179,26 +606,28 @@ public class GLTexture {
             case NEW:
             case WRITING:
             case READING:
+                if (pending != null) {
+                    pending.promote(TextureIO.Priority.VISIBLE);
+                }
+                uploadOnRead = true;
+                return false;
+            case STREAMING:
                 return false;
             case READ:
+                if (format != FORMAT_BGRA && !s3tcSupported()) {
+                    decompress();
+                }
+                if (uploadBudget > 0 && gpuBytes() > uploadBudget && pboSupported() && startStreaming()) {
+                    return false;
+                }
                 this.glTexID = uploadTexture();
                 return true;
             case ALLOCATED:
                 return true;
             case UNALLOCATED:
                 transition(TextureState.READING);
-                readImage.submit(() -> {
-                    try {
-                        this.pixels = imageToPixels(ImageIO.read(texLoc));
-                        transition(TextureState.READ);
-                    } catch (Exception e) {
-                        ModCore.warn("Unable to read file " + texLoc.toString() + ".  The cache file has been removed.  Please try launching again.  If this error happens multiple times, try removing your .minecraft/cache/ directory.");
-                        transition(TextureState.ERROR);
-                        internalError = new RuntimeException(texLoc.toString(), e);
-                        texLoc.delete();
-                        throw internalError;
-                    }
-                });
+                uploadOnRead = true;
+                pending = TextureIO.submit(TextureIO.Priority.VISIBLE, readBytes(), this::readCache, this::onRead);
                 return false;
             case ERROR:
                 throw internalError;
@@ -207,6 +636,69 @@ public class GLTexture {
         throw new RuntimeException(this.state.toString());
     }
 
+    /**
+     * Start reading the texture without uploading it, the next tryUpload after the read finishes does the upload
+     *
+     * @return false if there is too much IO in flight right now, try again later
+     */
+    public boolean prefetch() {
+        if (state != TextureState.UNALLOCATED) {
+            return true;
+        }
+        pending = TextureIO.trySubmit(TextureIO.Priority.PREFETCH, readBytes(), this::readCache, this::onRead);
+        if (pending == null) {
+            return false;
+        }
+        uploadOnRead = false;
+        transition(TextureState.READING);
+        return true;
+    }
+
+    /** Read from the cache but not uploaded yet, see prefetch */
+    public boolean isRead() {
+        return state == TextureState.READ;
+    }
+
+    /** Completion of a read started by tryUpload or prefetch, render thread */
+    private void onRead(ByteBuffer data, Exception error) {
+        pending = null;
+        if (state != TextureState.READING) {
+            // Freed while reading
+            return;
+        }
+        if (error != null) {
+            ModCore.warn("Unable to read file " + texLoc.toString() + ".  The cache file has been removed.  Please try launching again.  If this error happens multiple times, try removing your .minecraft/cache/ directory.");
+            internalError = new RuntimeException(texLoc.toString(), error);
+            transition(TextureState.ERROR);
+            texLoc.delete();
+            ModCore.catching(internalError);
+            return;
+        }
+        this.pixels = data;
+        transition(TextureState.READ);
+        if (uploadOnRead) {
+            tryUpload();
+        }
+    }
+
+    /** Wait up to millis for a pending write/read to finish, render thread only */
+    private boolean waitForUpload(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!tryUpload()) {
+            TextureIO.Job<?> job = pending;
+            long remaining = deadline - System.currentTimeMillis();
+            if (job == null || remaining <= 0) {
+                return false;
+            }
+            job.await(remaining);
+            if (job == pending && job.isDone()) {
+                // Write finished, tryUpload starts the read next time around
+                pending = null;
+            }
+        }
+        return true;
+    }
+
     /** Bind the texture, force waiting if specified */
     public OpenGL.With bind(boolean force) {
         lastUsed = System.currentTimeMillis();
@@ -214,16 +706,7 @@ public class GLTexture {
         if (force) {
             // Wait up to 1 second for texture to load
             // Should be fine for the icons we use this with
-            for (int i = 0; i < 100; i++) {
-                if (tryUpload()) {
-                    break;
-                }
-                try {
-                    Thread.sleep((long) 10);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            }
+            waitForUpload(1000);
         }
 
         if (!tryUpload()) {
@@ -240,6 +723,8 @@ public class GLTexture {
             case ALLOCATED:
                 dealloc();
             default:
+                // Any streaming upload cleans itself up
+                upload = null;
                 transition(TextureState.UNALLOCATED);
         }
     }
@@ -248,6 +733,11 @@ public class GLTexture {
     public void dealloc() {
         if (this.state == TextureState.ALLOCATED) {
             GL11.glDeleteTextures(this.glTexID);
+            GPUMemory.freed(this);
+            transition(TextureState.UNALLOCATED);
+        } else if (this.state == TextureState.READ) {
+            // Read (ex: prefetched) but never uploaded
+            pixels = null;
             transition(TextureState.UNALLOCATED);
         }
     }
@@ -4,6 +4,8 @@ import org.lwjgl.opengl.*;
 
 /** GPU info helper */
 public class GPUInfo {
+    private static int maxTextureSize = -1;
+
     public static boolean hasGPUInfo() {
         ContextCapabilities capabilities = GLContext.getCapabilities();
         //TODO https://www.khronos.org/registry/OpenGL/extensions/MESA/GLX_MESA_query_renderer.txt
@@ -29,6 +31,14 @@ public class GPUInfo {
         return 1024;
     }
 
+    /** Cached GL_MAX_TEXTURE_SIZE, the first call must happen on the render thread */
+    public static int maxTextureSize() {
+        if (maxTextureSize == -1) {
+            maxTextureSize = GL11.glGetInteger(GL11.GL_MAX_TEXTURE_SIZE);
+        }
+        return maxTextureSize;
+    }
+
     public static String debug() {
         int free = GPUInfo.memFreeMB();
         int total = GPUInfo.memTotalMB();
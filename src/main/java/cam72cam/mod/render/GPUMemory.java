@@ -0,0 +1,136 @@
+package cam72cam.mod.render;
+
+import cam72cam.mod.Config;
+import cam72cam.mod.ModCore;
+import cam72cam.mod.event.ClientEvents;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the GPU memory of every uploaded GLTexture and VBA and evicts the least recently used ones under pressure
+ *
+ * Pressure means either exceeding the budget, or (when the driver reports it) the free VRAM dropping below a reserve.
+ * Both come from Config unless set through the API, a budget of 0 there means half of the VRAM the driver reports.  Evicted resources keep enough on the client side to transparently re-upload on their next use.
+ * All calls happen on the render thread.
+ */
+public class GPUMemory {
+    /** Something which holds GPU memory and can drop it until it is used again */
+    interface Resource {
+        /** Bytes currently held on the GPU */
+        long gpuBytes();
+
+        /** System.currentTimeMillis() of the last draw/bind */
+        long lastUsed();
+
+        /** Free the GPU copy, the next use must re-upload it */
+        void evict();
+    }
+
+    // Resources used more recently than this are never evicted, avoids thrashing within a frame
+    private static final long GRACE_MS = 2000;
+    // How often the driver is asked for free memory
+    private static final long CHECK_MS = 1000;
+
+    private static final Map<Resource, Long> allocated = new IdentityHashMap<>();
+    private static long used = 0;
+    private static long budget = 0;
+    private static int reserveMB = 0;
+    // Budget and reserve have been read from Config (or set explicitly)
+    private static boolean configured = false;
+    private static long lastCheck = 0;
+
+    static {
+        ClientEvents.TICK.subscribe(GPUMemory::enforce);
+    }
+
+    private GPUMemory() {}
+
+    /** Limit tracked GPU memory to this many MB (overrides Config), 0 to only evict when the driver reports low free memory */
+    public static void setBudgetMB(int mb) {
+        configure();
+        budget = mb * 1024L * 1024L;
+    }
+
+    /** Start evicting when the driver reports less free memory than this (overrides Config) */
+    public static void setReserveMB(int mb) {
+        configure();
+        reserveMB = mb;
+    }
+
+    /** Read the limits from Config on first use, render thread only (the default budget asks the driver) */
+    private static void configure() {
+        if (configured) {
+            return;
+        }
+        configured = true;
+        int mb = Config.GPUMemoryBudgetMB > 0 ? Config.GPUMemoryBudgetMB : GPUInfo.memTotalMB() / 2;
+        budget = mb * 1024L * 1024L;
+        reserveMB = Config.GPUMemoryReserveMB;
+        ModCore.info("GPU memory budget %dMB, reserve %dMB", mb, reserveMB);
+    }
+
+    /** Bytes of GPU memory used by tracked resources */
+    public static long usedBytes() {
+        return used;
+    }
+
+    static void allocated(Resource resource) {
+        long bytes = resource.gpuBytes();
+        Long previous = allocated.put(resource, bytes);
+        used += bytes - (previous == null ? 0 : previous);
+    }
+
+    static void freed(Resource resource) {
+        Long bytes = allocated.remove(resource);
+        if (bytes != null) {
+            used -= bytes;
+        }
+    }
+
+    private static void enforce() {
+        configure();
+        long now = System.currentTimeMillis();
+        long excess = budget > 0 ? used - budget : 0;
+        if (now - lastCheck > CHECK_MS) {
+            lastCheck = now;
+            if (GPUInfo.hasGPUInfo()) {
+                excess = Math.max(excess, (reserveMB - GPUInfo.memFreeMB()) * 1024L * 1024L);
+            }
+        }
+        if (excess <= 0) {
+            return;
+        }
+
+        List<Resource> candidates = new ArrayList<>();
+        for (Resource resource : allocated.keySet()) {
+            if (now - resource.lastUsed() > GRACE_MS) {
+                candidates.add(resource);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(Resource::lastUsed));
+
+        long freed = 0;
+        int count = 0;
+        for (Resource resource : candidates) {
+            if (freed >= excess) {
+                break;
+            }
+            long bytes = allocated.getOrDefault(resource, 0L);
+            resource.evict();
+            // evict() reports back through freed()
+            freed += bytes;
+            count++;
+        }
+        if (count != 0) {
+            ModCore.info("Evicted %d GPU resources (%dMB), %dMB in use", count, freed / 1024 / 1024, used / 1024 / 1024);
+        }
+    }
+
+    public static String debug() {
+        return String.format("UMC GPU Cache: %dMB in %d resources", used / 1024 / 1024, allocated.size());
+    }
+}
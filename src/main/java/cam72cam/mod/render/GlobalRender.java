@@ -59,7 +59,7 @@ public class GlobalRender {
 
         // Nice to have GPU info in F3
         ClientEvents.RENDER_DEBUG.subscribe(event -> {
-            if (Minecraft.getMinecraft().gameSettings.showDebugInfo && GPUInfo.hasGPUInfo()) {
+            if (Minecraft.getMinecraft().gameSettings.showDebugInfo) {
                 int i;
                 for (i = 0; i < event.getRight().size(); i++) {
                     if (event.getRight().get(i).startsWith("Display: ")) {
@@ -67,7 +67,10 @@ public class GlobalRender {
                         break;
                     }
                 }
-                event.getRight().add(i, GPUInfo.debug());
+                if (GPUInfo.hasGPUInfo()) {
+                    event.getRight().add(i++, GPUInfo.debug());
+                }
+                event.getRight().add(i, GPUMemory.debug());
             }
         });
     }
@@ -2,12 +2,10 @@ package cam72cam.mod.render;
 
 import cam72cam.mod.Config;
 import cam72cam.mod.MinecraftClient;
-import cam72cam.mod.ModCore;
 import cam72cam.mod.event.ClientEvents;
 import cam72cam.mod.gui.Progress;
 import cam72cam.mod.item.CustomItem;
 import cam72cam.mod.item.ItemStack;
-import cam72cam.mod.render.OpenGL.With;
 import cam72cam.mod.resource.Identifier;
 import cam72cam.mod.world.World;
 import com.google.common.collect.ImmutableList;
@@ -17,7 +15,6 @@ import net.minecraft.client.renderer.block.model.*;
 import net.minecraft.client.renderer.block.model.ItemCameraTransforms.TransformType;
 import net.minecraft.client.renderer.texture.TextureAtlasSprite;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
-import net.minecraft.client.shader.Framebuffer;
 import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.util.EnumFacing;
 import net.minecraftforge.client.ForgeHooksClient;
@@ -27,14 +24,10 @@ import net.minecraftforge.client.model.ModelLoader;
 import net.minecraftforge.common.model.TRSRTransformation;
 import org.apache.commons.lang3.tuple.Pair;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL12;
 
 import javax.annotation.Nullable;
 import javax.vecmath.Matrix4f;
-import java.io.File;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,7 +35,15 @@ import java.util.List;
 /** Item Render Registry (Here be dragons...) */
 public class ItemRender {
     private static final List<BakedQuad> EMPTY = Collections.emptyList();
-    private static final SpriteSheet iconSheet = new SpriteSheet(Config.SpriteSize);
+    private static final SpriteSheet iconSheet = new SpriteSheet(Config.SpriteSize, true);
+    private static final SpriteGenerator iconGenerator = new SpriteGenerator(iconSheet);
+    // Shown in place of sprites which have not been generated yet
+    private static final String PLACEHOLDER = "universalmodcore:sprite_placeholder";
+
+    static {
+        ClientEvents.FRAME.subscribe(() -> iconGenerator.update(Config.SpriteFrameBudget));
+        ClientEvents.RELOAD.subscribe(iconGenerator::clearFailures);
+    }
 
     /** Register a simple image for an item */
     public static void register(CustomItem item, Identifier tex) {
@@ -72,18 +73,42 @@ public class ItemRender {
         // Hook up Sprite Support (and generation)
         if (model instanceof ISpriteItemModel) {
             ClientEvents.RELOAD.subscribe(() -> {
+                if (Config.LazySprites) {
+                    // Requested as they are drawn instead
+                    return;
+                }
                 List<ItemStack> variants = item.getItemVariants(null);
                 Progress.Bar bar = Progress.push(item.getClass().getSimpleName() + " Icon", variants.size());
                 for (ItemStack stack : variants) {
-                    String id = ((ISpriteItemModel) model).getSpriteKey(stack);
-                    bar.step(id);
-                    createSprite(id, ((ISpriteItemModel) model).getSpriteModel(stack));
+                    iconGenerator.add(((ISpriteItemModel) model).getSpriteKey(stack), ((ISpriteItemModel) model).getSpriteModel(stack));
                 }
+                iconGenerator.flush(bar::step);
                 Progress.pop(bar);
             });
         }
     }
 
+    private static void renderPlaceholder() {
+        if (!iconSheet.hasSprite(PLACEHOLDER)) {
+            // Faint outline of the slot
+            int size = iconSheet.spriteSize;
+            int inset = size / 8;
+            int border = Math.max(1, size / 32);
+            ByteBuffer pixels = ByteBuffer.allocateDirect(size * size * 4);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    boolean inside = x >= inset && y >= inset && x < size - inset && y < size - inset;
+                    boolean edge = x < inset + border || y < inset + border || x >= size - inset - border || y >= size - inset - border;
+                    // BGRA
+                    pixels.putInt(inside && edge ? 0x80808080 : 0);
+                }
+            }
+            pixels.flip();
+            iconSheet.setSprite(PLACEHOLDER, pixels);
+        }
+        iconSheet.renderSprite(PLACEHOLDER);
+    }
+
     /** Different contexts in which an item can be rendered */
     public enum ItemRenderType {
         NONE(TransformType.NONE),
@@ -144,60 +169,6 @@ public class ItemRender {
         StandardModel getSpriteModel(ItemStack stack);
     }
 
-    /** Internal method to render a model to a framebuffer and drop it in the texture sheet */
-    private static void createSprite(String id, StandardModel model) {
-        int width = iconSheet.spriteSize;
-        int height = iconSheet.spriteSize;
-        File sprite = GLTexture.cacheFile(id.replace("/", ".") + "_" + "sprite" + iconSheet.spriteSize + ".raw");
-        if (sprite.exists()) {
-            try {
-                ByteBuffer buff = ByteBuffer.allocateDirect(4 * width * height);
-                buff.put(ByteBuffer.wrap(Files.readAllBytes(sprite.toPath())));
-                buff.flip();
-                iconSheet.setSprite(id, buff);
-                return;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        Framebuffer fb = new Framebuffer(width, height, true);
-        fb.setFramebufferColor(0, 0, 0, 0);
-        fb.framebufferClear();
-        fb.bindFramebuffer(true);
-
-        try (With projection = OpenGL.matrix(GL11.GL_PROJECTION)) {
-            GL11.glLoadIdentity();
-            try (With modelM = OpenGL.matrix(GL11.GL_MODELVIEW)) {
-                GL11.glLoadIdentity();
-                try (With depth = OpenGL.bool(GL11.GL_DEPTH_TEST, true)) {
-                    int oldDepth = GL11.glGetInteger(GL11.GL_DEPTH_FUNC);
-                    GL11.glDepthFunc(GL11.GL_LESS);
-                    GL11.glClearDepth(1);
-
-                    model.renderCustom();
-
-                    ByteBuffer buff = ByteBuffer.allocateDirect(4 * width * height);
-                    GL11.glReadPixels(0, 0, width, height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, buff);
-
-                    fb.unbindFramebuffer();
-                    fb.deleteFramebuffer();
-                    GL11.glDepthFunc(oldDepth);
-
-                    iconSheet.setSprite(id, buff);
-
-                    try {
-                        byte[] data = new byte[buff.capacity()];
-                        buff.get(data);
-                        Files.write(sprite.toPath(), data);
-                    } catch (IOException e) {
-                        ModCore.catching(e);
-                    }
-                }
-            }
-        }
-    }
-
     /** Custom Model where we can hack into the MC/Forge render system */
     static class BakedItemModel implements IBakedModel {
         private ItemStack stack;
@@ -218,7 +189,15 @@ public class ItemRender {
             }
 
             if (type == ItemRenderType.GUI && model instanceof ISpriteItemModel) {
-                iconSheet.renderSprite(((ISpriteItemModel) model).getSpriteKey(stack));
+                ISpriteItemModel spriteModel = (ISpriteItemModel) model;
+                String key = spriteModel.getSpriteKey(stack);
+                if (iconSheet.hasSprite(key)) {
+                    iconSheet.renderSprite(key);
+                } else {
+                    ItemStack current = stack;
+                    iconGenerator.request(key, () -> spriteModel.getSpriteModel(current));
+                    renderPlaceholder();
+                }
                 return EMPTY;
             }
 
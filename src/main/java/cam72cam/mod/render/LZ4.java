@@ -0,0 +1,164 @@
+package cam72cam.mod.render;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal LZ4 block format codec (greedy, single hash table) for texture cache files
+ *
+ * Output is compatible with the reference LZ4_decompress_safe, no frame format or checksums.
+ */
+final class LZ4 {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 16;
+    // The last match must start this far before the end, and the last literals run must be at least LAST_LITERALS long
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+
+    private LZ4() {}
+
+    /** Worst case compressed size of len input bytes */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /** Compress src[0, limit) into dst, returns the number of bytes written or -1 as soon as it won't fit */
+    static int compress(ByteBuffer src, byte[] dst) {
+        int len = src.limit();
+        int[] table = new int[1 << HASH_BITS];
+        int out = 0;
+        int anchor = 0;
+        int pos = 0;
+
+        if (len > MF_LIMIT) {
+            int matchLimit = len - LAST_LITERALS;
+            int searchLimit = len - MF_LIMIT;
+            // Table stores pos + 1 so that 0 means empty
+            while (pos < searchLimit) {
+                int seq = src.getInt(pos);
+                int h = hash(seq);
+                int ref = table[h] - 1;
+                table[h] = pos + 1;
+                if (ref < 0 || pos - ref > MAX_OFFSET || src.getInt(ref) != seq) {
+                    pos++;
+                    continue;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (pos + matchLen < matchLimit && src.get(ref + matchLen) == src.get(pos + matchLen)) {
+                    matchLen++;
+                }
+
+                out = writeSequence(src, dst, out, anchor, pos - anchor, pos - ref, matchLen);
+                if (out < 0) {
+                    return -1;
+                }
+                pos += matchLen;
+                anchor = pos;
+            }
+        }
+
+        // Trailing literals
+        int literals = len - anchor;
+        if (out + sequenceBytes(literals, 0) - 2 > dst.length) {
+            return -1;
+        }
+        int token = out++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        out = writeLength(dst, out, literals);
+        for (int i = 0; i < literals; i++) {
+            dst[out++] = src.get(anchor + i);
+        }
+        return out;
+    }
+
+    private static int writeSequence(ByteBuffer src, byte[] dst, int out, int anchor, int literals, int offset, int matchLen) {
+        int extraMatch = matchLen - MIN_MATCH;
+        if (out + sequenceBytes(literals, extraMatch) > dst.length) {
+            return -1;
+        }
+        int token = out++;
+        dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(extraMatch, 15));
+        out = writeLength(dst, out, literals);
+        for (int i = 0; i < literals; i++) {
+            dst[out++] = src.get(anchor + i);
+        }
+        dst[out++] = (byte) offset;
+        dst[out++] = (byte) (offset >>> 8);
+        return writeLength(dst, out, extraMatch);
+    }
+
+    /** Upper bound of a token, its literals, offset and length bytes */
+    private static int sequenceBytes(int literals, int extraMatch) {
+        return 1 + literals + literals / 255 + 1 + 2 + extraMatch / 255 + 1;
+    }
+
+    private static int writeLength(byte[] dst, int out, int len) {
+        if (len >= 15) {
+            len -= 15;
+            while (len >= 255) {
+                dst[out++] = (byte) 255;
+                len -= 255;
+            }
+            dst[out++] = (byte) len;
+        }
+        return out;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /** Decompress src[position, limit) into dst[0, capacity), dst must be exactly the uncompressed size */
+    static void decompress(ByteBuffer src, ByteBuffer dst) {
+        int in = src.position();
+        int end = src.limit();
+        int out = 0;
+        int outEnd = dst.capacity();
+
+        while (in < end) {
+            int token = src.get(in++) & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src.get(in++) & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (out + literals > outEnd || in + literals > end) {
+                throw new IllegalArgumentException("Corrupt LZ4 block");
+            }
+            for (int i = 0; i < literals; i++) {
+                dst.put(out++, src.get(in++));
+            }
+            if (in >= end) {
+                break;
+            }
+
+            int offset = (src.get(in++) & 0xFF) | (src.get(in++) & 0xFF) << 8;
+            int matchLen = token & 0xF;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    b = src.get(in++) & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            if (offset == 0 || offset > out || out + matchLen > outEnd) {
+                throw new IllegalArgumentException("Corrupt LZ4 block");
+            }
+            // Overlapping copy, byte by byte
+            int ref = out - offset;
+            for (int i = 0; i < matchLen; i++) {
+                dst.put(out++, dst.get(ref + i));
+            }
+        }
+
+        if (out != outEnd) {
+            throw new IllegalArgumentException("Truncated LZ4 block");
+        }
+    }
+}
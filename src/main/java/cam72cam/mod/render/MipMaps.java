@@ -0,0 +1,141 @@
+package cam72cam.mod.render;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Box filtered mip chain for texture atlases
+ *
+ * Each atlas region is downsampled on its own, sampling is clamped to the region so texels never average in their
+ * neighbors.  Texels outside every region are left transparent.
+ */
+public final class MipMaps {
+    private MipMaps() {}
+
+    /** Number of levels (including the base) that fit a width x height texture, capped at maxLevels */
+    public static int levels(int width, int height, int maxLevels) {
+        int levels = 1;
+        while (levels < maxLevels && (width >> levels) > 0 && (height >> levels) > 0) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @param argb base level, row major
+     * @param regions atlas entries in base level texels, null for the whole texture
+     * @return every level starting with argb itself
+     */
+    public static List<int[]> generate(int[] argb, int width, int height, List<Rectangle> regions, int maxLevels) {
+        List<int[]> chain = new ArrayList<>();
+        chain.add(argb);
+
+        List<Rectangle> current = clip(regions, width, height);
+
+        int levels = levels(width, height, maxLevels);
+        int[] src = argb;
+        int srcWidth = width;
+        int srcHeight = height;
+        for (int level = 1; level < levels; level++) {
+            int dstWidth = Math.max(1, srcWidth >> 1);
+            int dstHeight = Math.max(1, srcHeight >> 1);
+            int[] dst = new int[dstWidth * dstHeight];
+
+            List<Rectangle> next = new ArrayList<>();
+            for (Rectangle region : current) {
+                Rectangle half = halve(region, dstWidth, dstHeight);
+                next.add(half);
+                if (region.isEmpty()) {
+                    continue;
+                }
+                // Every destination texel touching the region, sources are clamped back into it
+                int x0 = half.x;
+                int y0 = half.y;
+                int x1 = half.x + half.width;
+                int y1 = half.y + half.height;
+                int maxX = region.x + region.width - 1;
+                int maxY = region.y + region.height - 1;
+                for (int y = y0; y < y1; y++) {
+                    int sy0 = clamp(y * 2, region.y, maxY) * srcWidth;
+                    int sy1 = clamp(y * 2 + 1, region.y, maxY) * srcWidth;
+                    for (int x = x0; x < x1; x++) {
+                        int sx0 = clamp(x * 2, region.x, maxX);
+                        int sx1 = clamp(x * 2 + 1, region.x, maxX);
+                        dst[y * dstWidth + x] = average(src[sy0 + sx0], src[sy0 + sx1], src[sy1 + sx0], src[sy1 + sx1]);
+                    }
+                }
+            }
+
+            chain.add(dst);
+            current = next;
+            src = dst;
+            srcWidth = dstWidth;
+            srcHeight = dstHeight;
+        }
+        return chain;
+    }
+
+    /** Regions as they end up at level (same rounding as generate), null for the whole texture */
+    public static List<Rectangle> regions(List<Rectangle> regions, int width, int height, int level) {
+        if (regions == null) {
+            return null;
+        }
+        List<Rectangle> current = clip(regions, width, height);
+        for (int i = 0; i < level; i++) {
+            width = Math.max(1, width >> 1);
+            height = Math.max(1, height >> 1);
+            List<Rectangle> next = new ArrayList<>();
+            for (Rectangle region : current) {
+                next.add(halve(region, width, height));
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static List<Rectangle> clip(List<Rectangle> regions, int width, int height) {
+        List<Rectangle> clipped = new ArrayList<>();
+        if (regions == null) {
+            clipped.add(new Rectangle(0, 0, width, height));
+        } else {
+            for (Rectangle region : regions) {
+                clipped.add(region.intersection(new Rectangle(0, 0, width, height)));
+            }
+        }
+        return clipped;
+    }
+
+    /** Every texel of the next level touching region */
+    private static Rectangle halve(Rectangle region, int dstWidth, int dstHeight) {
+        if (region.isEmpty()) {
+            return region;
+        }
+        int x0 = region.x >> 1;
+        int y0 = region.y >> 1;
+        int x1 = Math.min(dstWidth, (region.x + region.width + 1) >> 1);
+        int y1 = Math.min(dstHeight, (region.y + region.height + 1) >> 1);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /** Alpha weighted average, keeps transparent texels from darkening their neighbors */
+    private static int average(int a, int b, int c, int d) {
+        int aa = a >>> 24;
+        int ba = b >>> 24;
+        int ca = c >>> 24;
+        int da = d >>> 24;
+        int alpha = aa + ba + ca + da;
+        if (alpha == 0) {
+            return 0;
+        }
+        int r = ((a >> 16) & 0xFF) * aa + ((b >> 16) & 0xFF) * ba + ((c >> 16) & 0xFF) * ca + ((d >> 16) & 0xFF) * da;
+        int g = ((a >> 8) & 0xFF) * aa + ((b >> 8) & 0xFF) * ba + ((c >> 8) & 0xFF) * ca + ((d >> 8) & 0xFF) * da;
+        int bl = (a & 0xFF) * aa + (b & 0xFF) * ba + (c & 0xFF) * ca + (d & 0xFF) * da;
+        int half = alpha / 2;
+        return ((alpha + 2) / 4) << 24 | ((r + half) / alpha) << 16 | ((g + half) / alpha) << 8 | ((bl + half) / alpha);
+    }
+}
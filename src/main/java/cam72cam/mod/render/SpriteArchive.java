@@ -0,0 +1,356 @@
+package cam72cam.mod.render;
+
+import cam72cam.mod.ModCore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Sprite pixels for any number of keys in a single memory mapped file
+ *
+ * The file starts with a header and a table of fixed size entries (offset, key length, size, room, last use, CRC),
+ * followed by the records (key bytes then data).  Replacing a record reuses its room when the new data fits, otherwise
+ * it is appended and the old room becomes garbage, as do records unused for EXPIRE_DAYS.  Once the garbage outweighs
+ * the live records they are slid down over it in place, the file itself never shrinks (mapped files can not be
+ * truncated on some platforms) and the space is reused by later appends.
+ *
+ * Rewriting the table (compacting, growing it) sets a dirty flag, an archive opened with it still set is started over.
+ * Records torn by a crash fail their CRC and read as missing.  All methods may be called from any thread.
+ */
+final class SpriteArchive {
+    private static final int MAGIC = 0x554D4353; // UMCS
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int ENTRY = 32;
+    private static final int INITIAL_ENTRIES = 1024;
+    private static final int MIN_MAP = 1024 * 1024;
+    // Garbage is only worth compacting once there is a fair bit of it
+    private static final long MIN_GARBAGE = 16 * 1024 * 1024;
+    private static final int EXPIRE_DAYS = 30;
+
+    // Header fields
+    private static final int H_STATE = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_DATA_END = 16;
+
+    // Entry fields, an offset of 0 marks an unused entry
+    private static final int E_OFFSET = 0;
+    private static final int E_KEY = 8;
+    private static final int E_SIZE = 12;
+    private static final int E_ROOM = 16;
+    private static final int E_USED = 20;
+    private static final int E_CRC = 24;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int today;
+    private final Map<String, Integer> index = new HashMap<>();
+    private final BitSet entries = new BitSet();
+    private MappedByteBuffer map;
+    private int capacity;
+    private int dataEnd;
+    // Room held by live records
+    private long live;
+
+    SpriteArchive(File file) throws IOException {
+        this(file, (int) (System.currentTimeMillis() / (24 * 60 * 60 * 1000L)));
+    }
+
+    /** today in days since the epoch */
+    SpriteArchive(File file, int today) throws IOException {
+        this.file = file;
+        this.today = today;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            ModCore.warn("Invalid sprite archive %s (%s), starting over", file, e);
+            reset();
+        }
+    }
+
+    private int dataStart() {
+        return HEADER + capacity * ENTRY;
+    }
+
+    private int entry(int idx) {
+        return HEADER + idx * ENTRY;
+    }
+
+    private int offset(int idx) {
+        return (int) map.getLong(entry(idx) + E_OFFSET);
+    }
+
+    private int length(int idx) {
+        return map.getInt(entry(idx) + E_KEY) + map.getInt(entry(idx) + E_SIZE);
+    }
+
+    private int room(int idx) {
+        return map.getInt(entry(idx) + E_ROOM);
+    }
+
+    private void ensureMapped(long size) throws IOException {
+        if (map != null && map.capacity() >= size) {
+            return;
+        }
+        long mapped = Math.max(size, Math.max(MIN_MAP, map == null ? 0 : map.capacity() * 2L));
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Sprite archive full");
+        }
+        // Past the end of the file extends it
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(mapped, Integer.MAX_VALUE));
+    }
+
+    private void load() throws IOException {
+        if (channel.size() < HEADER) {
+            reset();
+            return;
+        }
+        ensureMapped(channel.size());
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("Invalid header");
+        }
+        if (map.getInt(H_STATE) != 0) {
+            throw new IOException("Interrupted while rewriting the index");
+        }
+        capacity = map.getInt(H_CAPACITY);
+        dataEnd = (int) map.getLong(H_DATA_END);
+        if (capacity <= 0 || dataEnd < dataStart() || dataEnd > channel.size()) {
+            throw new IOException("Invalid layout");
+        }
+
+        byte[] key = new byte[0];
+        for (int idx = 0; idx < capacity; idx++) {
+            int offset = offset(idx);
+            if (offset == 0) {
+                continue;
+            }
+            int keyLength = map.getInt(entry(idx) + E_KEY);
+            if (offset < dataStart() || offset + room(idx) > dataEnd || keyLength < 0 || map.getInt(entry(idx) + E_SIZE) < 0 || length(idx) > room(idx)) {
+                throw new IOException("Invalid entry " + idx);
+            }
+            if (today - map.getInt(entry(idx) + E_USED) > EXPIRE_DAYS) {
+                map.putLong(entry(idx) + E_OFFSET, 0);
+                continue;
+            }
+            if (key.length < keyLength) {
+                key = new byte[keyLength];
+            }
+            ByteBuffer record = map.duplicate();
+            record.position(offset);
+            record.get(key, 0, keyLength);
+            index.put(new String(key, 0, keyLength, StandardCharsets.UTF_8), idx);
+            entries.set(idx);
+            live += room(idx);
+        }
+        maybeCompact();
+    }
+
+    /** Drop everything and start with an empty table */
+    private void reset() throws IOException {
+        index.clear();
+        entries.clear();
+        live = 0;
+        capacity = INITIAL_ENTRIES;
+        dataEnd = dataStart();
+        ensureMapped(dataEnd);
+        for (int i = 0; i < dataEnd; i += 8) {
+            map.putLong(i, 0);
+        }
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(H_CAPACITY, capacity);
+        map.putLong(H_DATA_END, dataEnd);
+    }
+
+    private static long crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    /** Copy the data stored for key into dst (cleared first), false if it is missing, damaged or of another size */
+    synchronized boolean read(String key, ByteBuffer dst) {
+        Integer idx = index.get(key);
+        if (idx == null) {
+            return false;
+        }
+        int base = entry(idx);
+        dst.clear();
+        if (map.getInt(base + E_SIZE) != dst.remaining()) {
+            return false;
+        }
+        ByteBuffer data = map.duplicate();
+        data.position(offset(idx) + map.getInt(base + E_KEY));
+        data.limit(data.position() + dst.remaining());
+        if (crc(data) != map.getLong(base + E_CRC)) {
+            ModCore.warn("Damaged sprite %s in %s", key, file);
+            remove(idx, key);
+            return false;
+        }
+        dst.put(data);
+        dst.flip();
+        if (map.getInt(base + E_USED) != today) {
+            map.putInt(base + E_USED, today);
+        }
+        return true;
+    }
+
+    /** Store data (from its position to its limit) for key, replacing what was there */
+    synchronized void put(String key, ByteBuffer data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = keyBytes.length + data.remaining();
+
+        Integer idx = index.get(key);
+        if (idx != null && room(idx) >= length) {
+            // Fits where it was
+            write(idx, offset(idx), keyBytes, data, room(idx));
+            return;
+        }
+        if (idx == null) {
+            idx = entries.nextClearBit(0);
+            if (idx >= capacity) {
+                growIndex();
+            }
+        }
+
+        int offset = dataEnd;
+        ensureMapped((long) offset + length);
+        if (entries.get(idx)) {
+            // The old record becomes garbage
+            live -= room(idx);
+        }
+        dataEnd += length;
+        map.putLong(H_DATA_END, dataEnd);
+        write(idx, offset, keyBytes, data, length);
+        index.put(key, idx);
+        entries.set(idx);
+        live += length;
+
+        maybeCompact();
+    }
+
+    /** Record first, then the entry pointing at it */
+    private void write(int idx, int offset, byte[] key, ByteBuffer data, int room) {
+        ByteBuffer record = map.duplicate();
+        record.position(offset);
+        record.put(key);
+        record.put(data.duplicate());
+
+        int base = entry(idx);
+        map.putInt(base + E_KEY, key.length);
+        map.putInt(base + E_SIZE, data.remaining());
+        map.putInt(base + E_ROOM, room);
+        map.putInt(base + E_USED, today);
+        map.putLong(base + E_CRC, crc(data));
+        map.putLong(base + E_OFFSET, offset);
+    }
+
+    private void remove(int idx, String key) {
+        map.putLong(entry(idx) + E_OFFSET, 0);
+        live -= room(idx);
+        index.remove(key);
+        entries.clear(idx);
+    }
+
+    private void setDirty(boolean dirty) {
+        map.putInt(H_STATE, dirty ? 1 : 0);
+    }
+
+    /** Double the table, moving the records in the way to the end */
+    private void growIndex() throws IOException {
+        setDirty(true);
+        int newCapacity = capacity * 2;
+        int newStart = HEADER + newCapacity * ENTRY;
+        ensureMapped(newStart);
+        dataEnd = Math.max(dataEnd, newStart);
+        for (int idx = entries.nextSetBit(0); idx >= 0; idx = entries.nextSetBit(idx + 1)) {
+            int offset = offset(idx);
+            if (offset < newStart) {
+                int length = length(idx);
+                ensureMapped((long) dataEnd + length);
+                move(offset, dataEnd, length);
+                map.putLong(entry(idx) + E_OFFSET, dataEnd);
+                live += length - room(idx);
+                map.putInt(entry(idx) + E_ROOM, length);
+                dataEnd += length;
+            }
+        }
+        for (int i = entry(capacity); i < newStart; i += 8) {
+            map.putLong(i, 0);
+        }
+        capacity = newCapacity;
+        map.putInt(H_CAPACITY, capacity);
+        map.putLong(H_DATA_END, dataEnd);
+        setDirty(false);
+    }
+
+    private void maybeCompact() {
+        long garbage = dataEnd - dataStart() - live;
+        if (garbage > MIN_GARBAGE && garbage > live) {
+            compact();
+        }
+    }
+
+    /** Slide the live records down over the garbage */
+    synchronized void compact() {
+        setDirty(true);
+        List<Integer> order = new ArrayList<>(index.values());
+        order.sort((a, b) -> Integer.compare(offset(a), offset(b)));
+
+        int cursor = dataStart();
+        for (int idx : order) {
+            int length = length(idx);
+            if (offset(idx) != cursor) {
+                move(offset(idx), cursor, length);
+                map.putLong(entry(idx) + E_OFFSET, cursor);
+            }
+            map.putInt(entry(idx) + E_ROOM, length);
+            cursor += length;
+        }
+        live = cursor - dataStart();
+        dataEnd = cursor;
+        map.putLong(H_DATA_END, dataEnd);
+        setDirty(false);
+    }
+
+    /** Copy within the map, safe for overlapping ranges as long as the data moves down (or does not overlap) */
+    private void move(int from, int to, int length) {
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+        ByteBuffer src = map.duplicate();
+        ByteBuffer dst = map.duplicate();
+        for (int done = 0; done < length; done += chunk.length) {
+            int count = Math.min(chunk.length, length - done);
+            src.position(from + done);
+            src.get(chunk, 0, count);
+            dst.position(to + done);
+            dst.put(chunk, 0, count);
+        }
+    }
+
+    /** Bytes of records, live or not */
+    synchronized long dataBytes() {
+        return dataEnd - dataStart();
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /** The mapping stays valid until it is garbage collected */
+    synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+}
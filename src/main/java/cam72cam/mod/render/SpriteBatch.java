@@ -0,0 +1,160 @@
+package cam72cam.mod.render;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.event.ClientEvents;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Collects sprites drawn while a batch is open and draws them with one call per sheet (per page for sheets without a
+ * texture array) when the outermost batch closes.
+ *
+ * Each sprite is stored with the modelview matrix current when it was drawn, the projection must not change until the
+ * batch closes.  Open a batch around code that draws many items (ex: the buttons of a GUI) and close it before anything
+ * that has to end up on top of them without depth testing (ex: stack counts, slot highlights, tooltips).  Container
+ * screens draw those right after each slot's item, so they are not batched.  Render thread only.
+ */
+public class SpriteBatch {
+    // x, y, z, u, v, layer
+    private static final int VERTEX_FLOATS = 6;
+    private static final int QUAD_FLOATS = VERTEX_FLOATS * 4;
+
+    private static final Map<SpriteSheet, Map<Integer, Quads>> pending = new IdentityHashMap<>();
+    private static final FloatBuffer modelView = BufferUtils.createFloatBuffer(16);
+    private static FloatBuffer upload = BufferUtils.createFloatBuffer(QUAD_FLOATS * 64);
+    private static int depth;
+    private static int queued;
+
+    static {
+        ClientEvents.FRAME.subscribe(SpriteBatch::reset);
+    }
+
+    private SpriteBatch() {}
+
+    /** Quads which share a texture */
+    private static class Quads {
+        private float[] data = new float[QUAD_FLOATS * 16];
+        private int count;
+
+        private int add() {
+            if ((count + 1) * QUAD_FLOATS > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            return count++ * QUAD_FLOATS;
+        }
+    }
+
+    /** Start collecting sprites, the batch is drawn when the outermost one is closed */
+    public static OpenGL.With begin() {
+        depth++;
+        return () -> {
+            if (--depth == 0) {
+                flush();
+            }
+        };
+    }
+
+    static boolean isOpen() {
+        return depth > 0;
+    }
+
+    /** Drop anything left over from the last frame (a batch which was never closed), the matrices no longer apply */
+    private static void reset() {
+        if (depth == 0 && queued == 0) {
+            return;
+        }
+        ModCore.warn("Sprite batch was not closed before the next frame, %s sprites dropped", queued);
+        depth = 0;
+        queued = 0;
+        for (Map<Integer, Quads> pages : pending.values()) {
+            for (Quads quads : pages.values()) {
+                quads.count = 0;
+            }
+        }
+    }
+
+    /** Queue the unit quad SpriteSheet draws for a sprite, transformed by the current modelview matrix */
+    static void add(SpriteSheet sheet, int page, float uMin, float vMin, float uMax, float vMax, float layer) {
+        Quads quads = pending.computeIfAbsent(sheet, s -> new HashMap<>()).computeIfAbsent(page, p -> new Quads());
+        int offset = quads.add();
+        queued++;
+
+        modelView.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, modelView);
+        // Same corners as SpriteSheet's immediate quad (flipped on Y)
+        offset = vertex(quads.data, offset, 0, 1, uMin, vMin, layer);
+        offset = vertex(quads.data, offset, 0, 0, uMin, vMax, layer);
+        offset = vertex(quads.data, offset, 1, 0, uMax, vMax, layer);
+        vertex(quads.data, offset, 1, 1, uMax, vMin, layer);
+    }
+
+    private static int vertex(float[] data, int offset, float x, float y, float u, float v, float layer) {
+        // Column major, z = 0 and w = 1
+        data[offset] = modelView.get(0) * x + modelView.get(4) * y + modelView.get(12);
+        data[offset + 1] = modelView.get(1) * x + modelView.get(5) * y + modelView.get(13);
+        data[offset + 2] = modelView.get(2) * x + modelView.get(6) * y + modelView.get(14);
+        data[offset + 3] = u;
+        data[offset + 4] = v;
+        data[offset + 5] = layer;
+        return offset + VERTEX_FLOATS;
+    }
+
+    /** Draw everything collected so far */
+    public static void flush() {
+        if (queued == 0) {
+            return;
+        }
+        queued = 0;
+
+        int prevBuffer = GL11.glGetInteger(GL15.GL_ARRAY_BUFFER_BINDING);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        try (
+                OpenGL.With matrix = OpenGL.matrix(GL11.GL_MODELVIEW);
+                // Sprites are rendered already lit
+                OpenGL.With light = OpenGL.bool(GL11.GL_LIGHTING, false);
+                OpenGL.With cull = OpenGL.bool(GL11.GL_CULL_FACE, false);
+                OpenGL.With depthTest = OpenGL.bool(GL11.GL_DEPTH_TEST, true);
+                OpenGL.With alpha = OpenGL.bool(GL11.GL_ALPHA_TEST, true);
+                OpenGL.With blend = OpenGL.blend(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA)
+        ) {
+            GL11.glLoadIdentity();
+            GL11.glColor4f(1, 1, 1, 1);
+            GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
+            GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+
+            for (Map.Entry<SpriteSheet, Map<Integer, Quads>> sheet : pending.entrySet()) {
+                for (Map.Entry<Integer, Quads> page : sheet.getValue().entrySet()) {
+                    Quads quads = page.getValue();
+                    if (quads.count == 0) {
+                        continue;
+                    }
+                    int floats = quads.count * QUAD_FLOATS;
+                    if (upload.capacity() < floats) {
+                        upload = BufferUtils.createFloatBuffer(Integer.highestOneBit(floats) * 2);
+                    }
+                    upload.clear();
+                    upload.put(quads.data, 0, floats);
+
+                    upload.position(0);
+                    GL11.glVertexPointer(3, VERTEX_FLOATS * 4, upload);
+                    upload.position(3);
+                    GL11.glTexCoordPointer(3, VERTEX_FLOATS * 4, upload);
+                    sheet.getKey().drawBatch(page.getKey(), quads.count * 4);
+                    // Buffers are kept for the next batch
+                    quads.count = 0;
+                }
+            }
+        } finally {
+            GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
+            GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, prevBuffer);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package cam72cam.mod.render;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.render.OpenGL.With;
+import net.minecraft.client.renderer.OpenGlHelper;
+import net.minecraft.client.shader.Framebuffer;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Renders models into the sprites of a sheet, many at a time
+ *
+ * Queued sprites found in the sprite archive are loaded from it (sprites still in the old one file per sprite cache
+ * are moved into the archive).  The rest are rendered into the tiles of one shared framebuffer, a full grid per pass,
+ * and read back through a pair of PBOs so the readback of one pass overlaps rendering the next.  New sprites are
+ * written to the archive on the texture IO threads, never waiting on them: while those are busy a few sprites are held
+ * until a later update and the rest are left uncached (rendered again next time).
+ *
+ * Sprites can also be requested as they are needed, those are worked through by update within a time budget each
+ * frame using a smaller grid kept around until the requests run out.  Render thread only.
+ */
+final class SpriteGenerator {
+    // Largest framebuffer used, a 2048px grid holds 256 sprites of 128px
+    private static final int GRID_SIZE = 2048;
+    // Grid for requested sprites, a frame's budget rarely covers more than a few
+    private static final int REQUEST_GRID_SIZE = 512;
+    // Sprites held for the archive while the texture IO threads are busy, 4MB of 128px sprites
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final SpriteSheet sheet;
+    private final List<String> ids = new ArrayList<>();
+    private final List<Supplier<StandardModel>> models = new ArrayList<>();
+    private final Map<String, Supplier<StandardModel>> requested = new LinkedHashMap<>();
+    // Sprites whose model threw, not requested again until clearFailures
+    private final Set<String> failed = new HashSet<>();
+    private final Map<String, ByteBuffer> pendingWrites = new LinkedHashMap<>();
+    private Targets requestTargets;
+    private SpriteArchive archive;
+    private boolean archiveOpened;
+
+    SpriteGenerator(SpriteSheet sheet) {
+        this.sheet = sheet;
+    }
+
+    /** Opened on first use, null if it could not be */
+    private SpriteArchive archive() {
+        if (!archiveOpened) {
+            archiveOpened = true;
+            File file = GLTexture.cacheFile("sprites" + sheet.spriteSize + ".umcs");
+            try {
+                archive = new SpriteArchive(file);
+            } catch (IOException e) {
+                ModCore.catching(e, "Unable to open sprite archive %s, sprites will not be cached", file);
+            }
+        }
+        return archive;
+    }
+
+    /** Sprite file from before the archive */
+    private File legacyFile(String id) {
+        return GLTexture.cacheFile(id.replace("/", ".") + "_" + "sprite" + sheet.spriteSize + ".raw");
+    }
+
+    /** Queue a sprite, nothing is rendered until flush */
+    void add(String id, StandardModel model) {
+        ids.add(id);
+        models.add(() -> model);
+    }
+
+    /** Load or render every queued sprite, done is called with the id of each one as it is added to the sheet */
+    void flush(Consumer<String> done) {
+        List<String> ids = new ArrayList<>(this.ids);
+        List<Supplier<StandardModel>> models = new ArrayList<>(this.models);
+        this.ids.clear();
+        this.models.clear();
+
+        Targets targets = new Targets(Math.min(GRID_SIZE, GPUInfo.maxTextureSize()));
+        try {
+            generate(ids, models, done, Long.MAX_VALUE, targets);
+        } finally {
+            targets.delete();
+        }
+    }
+
+    /** Ask for a sprite to be added to the sheet by a later update, the model is only created once it is rendered */
+    void request(String id, Supplier<StandardModel> model) {
+        if (!failed.contains(id)) {
+            requested.putIfAbsent(id, model);
+        }
+    }
+
+    /** Give sprites which failed to render another try (ex: after a resource reload) */
+    void clearFailures() {
+        failed.clear();
+    }
+
+    /** Work through requested sprites for up to budget milliseconds (at least one sprite per call) */
+    void update(float budget) {
+        writePending();
+        if (requested.isEmpty()) {
+            return;
+        }
+        long deadline = System.nanoTime() + (long) (budget * 1000000);
+        if (requestTargets == null) {
+            requestTargets = new Targets(Math.min(REQUEST_GRID_SIZE, GPUInfo.maxTextureSize()));
+        }
+        generate(new ArrayList<>(requested.keySet()), new ArrayList<>(requested.values()), requested::remove, deadline, requestTargets);
+        if (requested.isEmpty()) {
+            requestTargets.delete();
+            requestTargets = null;
+        }
+    }
+
+    /** Load sprites from the archive and render the rest, stopping once past the deadline */
+    private void generate(List<String> ids, List<Supplier<StandardModel>> models, Consumer<String> done, long deadline, Targets targets) {
+        SpriteArchive archive = archive();
+        // Uploaded right away, so one buffer does for every cached sprite
+        ByteBuffer buff = ByteBuffer.allocateDirect(sheet.spriteSize * sheet.spriteSize * 4);
+        List<String> missingIds = new ArrayList<>();
+        List<Supplier<StandardModel>> missingModels = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0 && System.nanoTime() > deadline) {
+                break;
+            }
+            String id = ids.get(i);
+            if (archive != null && (archive.read(id, buff) || importLegacy(archive, id, buff))) {
+                sheet.setSprite(id, buff);
+                done.accept(id);
+                continue;
+            }
+            missingIds.add(id);
+            missingModels.add(models.get(i));
+        }
+
+        if (!missingIds.isEmpty()) {
+            render(missingIds, missingModels, done, deadline, targets);
+        }
+    }
+
+    /** Move a sprite from its old cache file into the archive and read it into buff */
+    private boolean importLegacy(SpriteArchive archive, String id, ByteBuffer buff) {
+        File legacy = legacyFile(id);
+        if (!legacy.exists()) {
+            return false;
+        }
+        try {
+            byte[] data = Files.readAllBytes(legacy.toPath());
+            if (data.length == buff.capacity()) {
+                buff.clear();
+                buff.put(data);
+                buff.flip();
+                archive.put(id, buff);
+                return true;
+            }
+        } catch (IOException e) {
+            ModCore.catching(e, "Unable to import sprite %s", legacy);
+        } finally {
+            legacy.delete();
+        }
+        return false;
+    }
+
+    /** Framebuffer and readback buffers for one grid size */
+    private class Targets {
+        private final int perRow;
+        private final int gridSize;
+        private final int passBytes;
+        private final Framebuffer fb;
+        private final boolean pbo = GLTexture.pboSupported();
+        private final int[] pbos = new int[2];
+        private final ByteBuffer pixels;
+
+        private Targets(int maxSize) {
+            perRow = Math.max(1, maxSize / sheet.spriteSize);
+            gridSize = perRow * sheet.spriteSize;
+            passBytes = gridSize * gridSize * 4;
+
+            int prevFb = GL11.glGetInteger(GL30.GL_FRAMEBUFFER_BINDING);
+            fb = new Framebuffer(gridSize, gridSize, true);
+            fb.setFramebufferColor(0, 0, 0, 0);
+            OpenGlHelper.glBindFramebuffer(OpenGlHelper.GL_FRAMEBUFFER, prevFb);
+
+            if (pbo) {
+                int prev = GL11.glGetInteger(GL21.GL_PIXEL_PACK_BUFFER_BINDING);
+                for (int i = 0; i < pbos.length; i++) {
+                    pbos[i] = GL15.glGenBuffers();
+                    GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, pbos[i]);
+                    GL15.glBufferData(GL21.GL_PIXEL_PACK_BUFFER, passBytes, GL15.GL_STREAM_READ);
+                }
+                GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, prev);
+                pixels = null;
+            } else {
+                pixels = BufferUtils.createByteBuffer(passBytes);
+            }
+        }
+
+        private void delete() {
+            fb.deleteFramebuffer();
+            if (pbo) {
+                GL15.glDeleteBuffers(pbos[0]);
+                GL15.glDeleteBuffers(pbos[1]);
+            }
+        }
+    }
+
+    /** Render sprites a grid at a time, past the deadline no more are started (after the first) */
+    private void render(List<String> ids, List<Supplier<StandardModel>> models, Consumer<String> done, long deadline, Targets targets) {
+        int size = sheet.spriteSize;
+        int perRow = targets.perRow;
+        int perPass = perRow * perRow;
+        int gridSize = targets.gridSize;
+        Framebuffer fb = targets.fb;
+        int[] pbos = targets.pbos;
+
+        IntBuffer viewport = BufferUtils.createIntBuffer(16);
+        GL11.glGetInteger(GL11.GL_VIEWPORT, viewport);
+        // May be called mid frame, put back whatever was bound instead of the main framebuffer
+        int prevFb = GL11.glGetInteger(GL30.GL_FRAMEBUFFER_BINDING);
+
+        try (With projection = OpenGL.matrix(GL11.GL_PROJECTION)) {
+            GL11.glLoadIdentity();
+            try (With modelM = OpenGL.matrix(GL11.GL_MODELVIEW)) {
+                GL11.glLoadIdentity();
+                try (With depth = OpenGL.bool(GL11.GL_DEPTH_TEST, true)) {
+                    int oldDepth = GL11.glGetInteger(GL11.GL_DEPTH_FUNC);
+                    GL11.glDepthFunc(GL11.GL_LESS);
+                    GL11.glClearDepth(1);
+
+                    int pass = 0;
+                    int previous = -1;
+                    int rendered = 0;
+                    boolean outOfTime = false;
+                    for (int start = 0; start < ids.size() && !outOfTime; start += perPass, pass++) {
+                        int end = Math.min(ids.size(), start + perPass);
+                        fb.framebufferClear();
+                        fb.bindFramebuffer(false);
+                        for (int i = start; i < end; i++) {
+                            if (i > 0 && System.nanoTime() > deadline) {
+                                end = i;
+                                outOfTime = true;
+                                break;
+                            }
+                            int tile = i - start;
+                            GL11.glViewport(tile % perRow * size, tile / perRow * size, size, size);
+                            try {
+                                StandardModel model = models.get(i).get();
+                                if (model != null) {
+                                    model.renderCustom();
+                                }
+                            } catch (RuntimeException e) {
+                                // Left out of the sheet, the archive and later requests instead of retried every frame
+                                ModCore.catching(e, "Unable to render sprite %s", ids.get(i));
+                                failed.add(ids.get(i));
+                            }
+                        }
+                        rendered = end;
+
+                        // Only the rows of tiles in use
+                        int height = ((end - start + perRow - 1) / perRow) * size;
+                        if (targets.pbo) {
+                            // Queued on the GPU, mapped after the next pass has been rendered
+                            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, pbos[pass % 2]);
+                            GL11.glReadPixels(0, 0, gridSize, height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, 0L);
+                            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+                            if (previous != -1) {
+                                collect(pbos[(pass - 1) % 2], ids, previous, start, perRow, gridSize, targets.passBytes, done);
+                            }
+                            previous = start;
+                        } else {
+                            targets.pixels.clear();
+                            GL11.glReadPixels(0, 0, gridSize, height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, targets.pixels);
+                            store(ids, start, split(targets.pixels, start, end, perRow, gridSize), done);
+                        }
+                    }
+                    if (previous != -1) {
+                        collect(pbos[(pass - 1) % 2], ids, previous, rendered, perRow, gridSize, targets.passBytes, done);
+                    }
+
+                    GL11.glDepthFunc(oldDepth);
+                }
+            }
+        } finally {
+            OpenGlHelper.glBindFramebuffer(OpenGlHelper.GL_FRAMEBUFFER, prevFb);
+            GL11.glViewport(viewport.get(0), viewport.get(1), viewport.get(2), viewport.get(3));
+        }
+    }
+
+    /** Map a pass read into a PBO and store the sprites [start, end) */
+    private void collect(int pbo, List<String> ids, int start, int end, int perRow, int gridSize, int passBytes, Consumer<String> done) {
+        int prev = GL11.glGetInteger(GL21.GL_PIXEL_PACK_BUFFER_BINDING);
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, pbo);
+        ByteBuffer pixels = GL15.glMapBuffer(GL21.GL_PIXEL_PACK_BUFFER, GL15.GL_READ_ONLY, passBytes, null);
+        List<ByteBuffer> sprites = pixels != null ? split(pixels, start, end, perRow, gridSize) : null;
+        GL15.glUnmapBuffer(GL21.GL_PIXEL_PACK_BUFFER);
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, prev);
+        if (sprites != null) {
+            store(ids, start, sprites, done);
+        } else {
+            ModCore.warn("Unable to map sprite readback buffer, %s sprites skipped", end - start);
+            for (int i = start; i < end; i++) {
+                done.accept(ids.get(i));
+            }
+        }
+    }
+
+    /** Copy the tiles of sprites [start, end) out of a pass, rows bottom up like glReadPixels of a single sprite */
+    private List<ByteBuffer> split(ByteBuffer pixels, int start, int end, int perRow, int gridSize) {
+        int size = sheet.spriteSize;
+        List<ByteBuffer> sprites = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            int tile = i - start;
+            int x = tile % perRow * size;
+            int y = tile / perRow * size;
+            ByteBuffer sprite = ByteBuffer.allocateDirect(size * size * 4);
+            ByteBuffer row = pixels.duplicate();
+            for (int r = 0; r < size; r++) {
+                int offset = ((y + r) * gridSize + x) * 4;
+                row.limit(offset + size * 4).position(offset);
+                sprite.put(row);
+            }
+            sprite.flip();
+            sprites.add(sprite);
+        }
+        return sprites;
+    }
+
+    /** Add rendered sprites to the sheet and write them to the cache in the background */
+    private void store(List<String> ids, int start, List<ByteBuffer> sprites, Consumer<String> done) {
+        for (int i = 0; i < sprites.size(); i++) {
+            String id = ids.get(start + i);
+            ByteBuffer sprite = sprites.get(i);
+            if (failed.contains(id)) {
+                done.accept(id);
+                continue;
+            }
+            sheet.setSprite(id, sprite);
+            done.accept(id);
+
+            if (archive() != null && pendingWrites.size() < MAX_PENDING_WRITES) {
+                pendingWrites.put(id, sprite);
+            }
+        }
+        writePending();
+    }
+
+    /** Hand held sprites to the texture IO threads until they are out of budget, the archive may be mid compaction */
+    private void writePending() {
+        Iterator<Map.Entry<String, ByteBuffer>> it = pendingWrites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = it.next();
+            String id = entry.getKey();
+            ByteBuffer sprite = entry.getValue();
+            TextureIO.Job<Void> job = TextureIO.trySubmit(TextureIO.Priority.BACKGROUND, sprite.capacity(), () -> {
+                archive.put(id, sprite);
+                return null;
+            }, null);
+            if (job == null) {
+                return;
+            }
+            it.remove();
+        }
+    }
+}
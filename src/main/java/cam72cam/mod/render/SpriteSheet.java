@@ -1,110 +1,353 @@
 package cam72cam.mod.render;
 
+import cam72cam.mod.ModCore;
+import cam72cam.mod.event.ClientEvents;
 import net.minecraft.client.renderer.texture.TextureUtil;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLContext;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-/** A custom sprite sheet which can span multiple texture sheets */
+/**
+ * A custom sprite sheet which can span multiple texture sheets
+ *
+ * Sprites always take the lowest free slot.  Once the sheet has been left alone for a bit, the sprites on the last
+ * page are moved into free slots on earlier pages (on the GPU, one page per frame) and the page is released, so the
+ * memory used follows the number of live sprites.  Pages are either separate textures or layers of a single
+ * GL_TEXTURE_2D_ARRAY (when requested and supported), which needs no rebinds between sprites.
+ */
 public class SpriteSheet {
+    // Wait this long after the last change before compacting, sprites tend to be replaced in bulk (ex: reloads)
+    private static final long COMPACT_DELAY_MS = 5000;
+
+    private static final String ARRAY_VERT =
+            "#version 130\n" +
+            "void main() {\n" +
+            "    gl_Position = ftransform();\n" +
+            "    gl_TexCoord[0] = gl_MultiTexCoord0;\n" +
+            "    gl_FrontColor = gl_Color;\n" +
+            "}\n";
+    private static final String ARRAY_FRAG =
+            "#version 130\n" +
+            "uniform sampler2DArray sheet;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture(sheet, gl_TexCoord[0].xyz) * gl_Color;\n" +
+            "}\n";
+    private static GLSLShader arrayShader;
+
     public final int spriteSize;
-    private final Map<String, SpriteInfo> sprites = new HashMap<>();
-    private final List<SpriteInfo> unallocated = new ArrayList<>();
+    private final boolean arrayRequested;
+    private final Map<String, Integer> sprites = new HashMap<>();
+    private final BitSet used = new BitSet();
+    /** Sprite id in each slot, null if free */
+    private String[] owners = new String[0];
+
+    private boolean initialized;
+    private boolean canMove;
+    private boolean arrayBacked;
+    private int pageSize;
+    private int perRow;
+    private int slotsPerPage;
+
+    /** Texture of each page, or a single texture array with a layer per page */
+    private int[] pages = new int[0];
+    private int array = -1;
+    private int layers;
+
+    private boolean fragmented;
+    private long lastChange;
+
     /** sprite width/height in px */
     public SpriteSheet(int spriteSize) {
+        this(spriteSize, false);
+    }
+
+    /** sprite width/height in px, arrayTexture to keep every page in a single GL_TEXTURE_2D_ARRAY if supported */
+    public SpriteSheet(int spriteSize, boolean arrayTexture) {
         this.spriteSize = spriteSize;
+        this.arrayRequested = arrayTexture;
+        ClientEvents.FRAME.subscribe(this::compact);
+    }
+
+    private void init() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        // Copies between pages go through a read framebuffer
+        canMove = GLContext.getCapabilities().OpenGL30;
+        pageSize = Math.min(1024, GPUInfo.maxTextureSize());
+        perRow = Math.max(1, pageSize / spriteSize);
+        slotsPerPage = perRow * perRow;
+        if (arrayRequested && canMove && arrayShader == null) {
+            try {
+                arrayShader = new GLSLShader(ARRAY_VERT, ARRAY_FRAG);
+            } catch (RuntimeException e) {
+                ModCore.warn("Unable to create sprite array shader, falling back to separate textures: %s", e.getMessage());
+            }
+        }
+        arrayBacked = arrayRequested && canMove && arrayShader != null;
+    }
+
+    private int pageCount() {
+        return arrayBacked ? layers : pages.length;
+    }
+
+    private int slotX(int slot) {
+        return (slot % slotsPerPage) / perRow * spriteSize;
+    }
+
+    private int slotY(int slot) {
+        return (slot % slotsPerPage) % perRow * spriteSize;
+    }
+
+    private int slotPage(int slot) {
+        return slot / slotsPerPage;
+    }
+
+    private static void setParameters(int target) {
+        GL11.glTexParameteri(target, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(target, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(target, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glTexParameteri(target, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+    }
+
+    /** Bind the texture array, restoring the previous binding on close */
+    private OpenGL.With bindArray() {
+        int current = GL11.glGetInteger(GL30.GL_TEXTURE_BINDING_2D_ARRAY);
+        GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, array);
+        return () -> GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, current);
+    }
+
+    /** Attach a page (of the given texture array, if array backed) to a temporary read framebuffer, glCopyTexSubImage* then copies out of it */
+    private OpenGL.With readPage(int texture, int page) {
+        int current = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
+        int fbo = GL30.glGenFramebuffers();
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, fbo);
+        if (arrayBacked) {
+            GL30.glFramebufferTextureLayer(GL30.GL_READ_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, texture, 0, page);
+        } else {
+            GL30.glFramebufferTexture2D(GL30.GL_READ_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, pages[page], 0);
+        }
+        return () -> {
+            GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, current);
+            GL30.glDeleteFramebuffers(fbo);
+        };
     }
 
-    /** Create new blank sheet and add slots to unallocated */
-    private void allocateSheet() {
-        int textureID = GL11.glGenTextures();
-        try (OpenGL.With tex = OpenGL.texture(textureID)) {
-            int sheetSize = Math.min(1024, GL11.glGetInteger(GL11.GL_MAX_TEXTURE_SIZE));
-            TextureUtil.allocateTexture(textureID, sheetSize, sheetSize);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
-            for (int uPx = 0; uPx < sheetSize; uPx += spriteSize) {
-                for (int vPx = 0; vPx < sheetSize; vPx += spriteSize) {
-                    float u = uPx / (float) sheetSize;
-                    float uMax = (uPx + spriteSize) / (float) sheetSize;
-                    float v = vPx / (float) sheetSize;
-                    float vMax = (vPx + spriteSize) / (float) sheetSize;
-                    unallocated.add(new SpriteInfo(u, uMax, uPx, v, vMax, vPx, textureID));
+    /** Create new blank page */
+    private void addPage() {
+        if (arrayBacked) {
+            resizeArray(layers + 1);
+        } else {
+            int textureID = GL11.glGenTextures();
+            try (OpenGL.With tex = OpenGL.texture(textureID)) {
+                TextureUtil.allocateTexture(textureID, pageSize, pageSize);
+                setParameters(GL11.GL_TEXTURE_2D);
+            }
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = textureID;
+        }
+        owners = Arrays.copyOf(owners, pageCount() * slotsPerPage);
+    }
+
+    /** Release the last (empty) page */
+    private void dropPage() {
+        if (arrayBacked) {
+            resizeArray(layers - 1);
+        } else {
+            GL11.glDeleteTextures(pages[pages.length - 1]);
+            pages = Arrays.copyOf(pages, pages.length - 1);
+        }
+        owners = Arrays.copyOf(owners, pageCount() * slotsPerPage);
+    }
+
+    /** Reallocate the texture array with a different number of layers, keeping the contents of the common ones */
+    private void resizeArray(int count) {
+        int previous = array;
+        int copied = Math.min(layers, count);
+
+        array = count == 0 ? -1 : GL11.glGenTextures();
+        layers = count;
+        if (array != -1) {
+            try (OpenGL.With tex = bindArray()) {
+                GL12.glTexImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, GL11.GL_RGBA8, pageSize, pageSize, count, 0, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+                setParameters(GL30.GL_TEXTURE_2D_ARRAY);
+                for (int layer = 0; layer < copied; layer++) {
+                    try (OpenGL.With read = readPage(previous, layer)) {
+                        GL12.glCopyTexSubImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, 0, 0, pageSize, pageSize);
+                    }
                 }
             }
         }
+        if (previous != -1) {
+            GL11.glDeleteTextures(previous);
+        }
+    }
+
+    /** Take the lowest free slot, adding a page if they are all used */
+    private int allocateSlot(String id) {
+        int slot = used.nextClearBit(0);
+        if (slot >= pageCount() * slotsPerPage) {
+            addPage();
+        }
+        used.set(slot);
+        owners[slot] = id;
+        return slot;
     }
 
     /** Allocate a slot in the sheet and write pixels to it */
     public void setSprite(String id, ByteBuffer pixels) {
-        if (!sprites.containsKey(id)) {
-            if (unallocated.size() == 0) {
-                allocateSheet();
-            }
-            sprites.put(id, unallocated.remove(0));
+        init();
+        Integer slot = sprites.get(id);
+        if (slot == null) {
+            slot = allocateSlot(id);
+            sprites.put(id, slot);
+            lastChange = System.currentTimeMillis();
         }
-        SpriteInfo sprite = sprites.get(id);
 
-        try (OpenGL.With tex = OpenGL.texture(sprite.texID)) {
-            GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, sprite.uPx, sprite.vPx, spriteSize, spriteSize, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, pixels);
+        if (arrayBacked) {
+            try (OpenGL.With tex = bindArray()) {
+                GL12.glTexSubImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, slotX(slot), slotY(slot), slotPage(slot), spriteSize, spriteSize, 1, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, pixels);
+            }
+        } else {
+            try (OpenGL.With tex = OpenGL.texture(pages[slotPage(slot)])) {
+                GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, slotX(slot), slotY(slot), spriteSize, spriteSize, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, pixels);
+            }
         }
     }
 
-    /** Render the sprite represented by id (skip if unknown) */
+    /** True once a sprite has been set for id */
+    public boolean hasSprite(String id) {
+        return sprites.containsKey(id);
+    }
+
+    /** Render the sprite represented by id (skip if unknown), queued instead while a SpriteBatch is open */
     public void renderSprite(String id) {
-        SpriteInfo sprite = sprites.get(id);
-        if (sprite == null) {
+        Integer slot = sprites.get(id);
+        if (slot == null) {
+            return;
+        }
+        if (SpriteBatch.isOpen()) {
+            SpriteBatch.add(this, arrayBacked ? 0 : slotPage(slot),
+                    slotX(slot) / (float) pageSize, slotY(slot) / (float) pageSize,
+                    (slotX(slot) + spriteSize) / (float) pageSize, (slotY(slot) + spriteSize) / (float) pageSize,
+                    slotPage(slot));
             return;
         }
-        try (OpenGL.With tex = OpenGL.texture(sprite.texID)) {
-            try (OpenGL.With matrix = OpenGL.matrix()) {
-                GL11.glRotated(180, 1, 0, 0);
-                GL11.glTranslated(0, -1, 0);
-                GL11.glBegin(GL11.GL_QUADS);
-                GL11.glColor4f(1, 1, 1, 1);
-                GL11.glTexCoord2f(sprite.uMin, sprite.vMin);
-                GL11.glVertex3f(0, 0, 0);
-                GL11.glTexCoord2f(sprite.uMin, sprite.vMax);
-                GL11.glVertex3f(0, 1, 0);
-                GL11.glTexCoord2f(sprite.uMax, sprite.vMax);
-                GL11.glVertex3f(1, 1, 0);
-                GL11.glTexCoord2f(sprite.uMax, sprite.vMin);
-                GL11.glVertex3f(1, 0, 0);
-                GL11.glEnd();
+        if (arrayBacked) {
+            try (OpenGL.With tex = bindArray(); OpenGL.With shader = arrayShader.bind()) {
+                drawQuad(slot);
             }
+        } else {
+            try (OpenGL.With tex = OpenGL.texture(pages[slotPage(slot)])) {
+                drawQuad(slot);
+            }
+        }
+    }
+
+    /** Draw vertices set up by SpriteBatch, with the texture of the page (any page for the texture array) */
+    void drawBatch(int page, int vertices) {
+        if (arrayBacked) {
+            try (OpenGL.With tex = bindArray(); OpenGL.With shader = arrayShader.bind()) {
+                GL11.glDrawArrays(GL11.GL_QUADS, 0, vertices);
+            }
+        } else if (page < pages.length) {
+            try (OpenGL.With tex = OpenGL.texture(pages[page])) {
+                GL11.glDrawArrays(GL11.GL_QUADS, 0, vertices);
+            }
+        }
+    }
+
+    private void drawQuad(int slot) {
+        float uMin = slotX(slot) / (float) pageSize;
+        float uMax = (slotX(slot) + spriteSize) / (float) pageSize;
+        float vMin = slotY(slot) / (float) pageSize;
+        float vMax = (slotY(slot) + spriteSize) / (float) pageSize;
+        // Layer for the texture array, ignored by plain textures
+        float layer = slotPage(slot);
+
+        try (OpenGL.With matrix = OpenGL.matrix()) {
+            GL11.glRotated(180, 1, 0, 0);
+            GL11.glTranslated(0, -1, 0);
+            GL11.glBegin(GL11.GL_QUADS);
+            GL11.glColor4f(1, 1, 1, 1);
+            GL11.glTexCoord3f(uMin, vMin, layer);
+            GL11.glVertex3f(0, 0, 0);
+            GL11.glTexCoord3f(uMin, vMax, layer);
+            GL11.glVertex3f(0, 1, 0);
+            GL11.glTexCoord3f(uMax, vMax, layer);
+            GL11.glVertex3f(1, 1, 0);
+            GL11.glTexCoord3f(uMax, vMin, layer);
+            GL11.glVertex3f(1, 0, 0);
+            GL11.glEnd();
         }
     }
 
-    /** Remove a sprite from the sheet (does not reduce used GPU memory yet) */
+    /** Remove a sprite from the sheet, its page is released once the remaining sprites fit on fewer pages */
     public void freeSprite(String id) {
-        unallocated.add(sprites.remove(id));
-        // TODO shrink number of sheets?
-    }
-
-    private static class SpriteInfo {
-        final float uMin;
-        final float uMax;
-        final int uPx;
-        final float vMin;
-        final float vMax;
-        final int vPx;
-        final int texID;
-
-        private SpriteInfo(float u, float uMax, int uPx, float v, float vMax, int vPx, int texID) {
-            this.uMin = u;
-            this.uMax = uMax;
-            this.uPx = uPx;
-            this.vMin = v;
-            this.vMax = vMax;
-            this.vPx = vPx;
-            this.texID = texID;
+        Integer slot = sprites.remove(id);
+        if (slot == null) {
+            return;
+        }
+        used.clear(slot);
+        owners[slot] = null;
+        fragmented = true;
+        lastChange = System.currentTimeMillis();
+    }
+
+    /** Move the sprites off the last page if they fit in the free slots before it, then release it */
+    private void compact() {
+        if (!fragmented || System.currentTimeMillis() - lastChange < COMPACT_DELAY_MS) {
+            return;
+        }
+        int last = pageCount() - 1;
+        if (last < 0) {
+            fragmented = false;
+            return;
+        }
+        int start = last * slotsPerPage;
+        int live = used.get(start, start + slotsPerPage).cardinality();
+        int free = start - (used.cardinality() - live);
+        if (live > free || live > 0 && !canMove) {
+            fragmented = false;
+            return;
+        }
+
+        if (live > 0) {
+            try (OpenGL.With read = readPage(array, last)) {
+                for (int slot = used.nextSetBit(start); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+                    int target = used.nextClearBit(0);
+                    move(slot, target);
+                    String id = owners[slot];
+                    owners[slot] = null;
+                    owners[target] = id;
+                    used.clear(slot);
+                    used.set(target);
+                    sprites.put(id, target);
+                }
+            }
+        }
+        // Still fragmented, the new last page is checked next frame
+        dropPage();
+    }
+
+    /** Copy a sprite out of the page attached to the read framebuffer */
+    private void move(int from, int to) {
+        if (arrayBacked) {
+            try (OpenGL.With tex = bindArray()) {
+                GL12.glCopyTexSubImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, slotX(to), slotY(to), slotPage(to), slotX(from), slotY(from), spriteSize, spriteSize);
+            }
+        } else {
+            try (OpenGL.With tex = OpenGL.texture(pages[slotPage(to)])) {
+                GL11.glCopyTexSubImage2D(GL11.GL_TEXTURE_2D, 0, slotX(to), slotY(to), slotX(from), slotY(from), spriteSize, spriteSize);
+            }
         }
     }
 }
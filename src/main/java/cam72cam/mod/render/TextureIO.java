@@ -0,0 +1,199 @@
+package cam72cam.mod.render;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.event.ClientEvents;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker pool for texture cache reads/writes and the encoding/decoding that goes with them
+ *
+ * Jobs run on several threads in priority order (first come first served within a priority).  Each job reserves an
+ * estimate of the memory it keeps alive until its work is done, and submitting non-visible work blocks while the
+ * reservations are over budget.  Completion callbacks run on the render thread at the start of a frame, or right away
+ * when the render thread waits on the job.
+ */
+final class TextureIO {
+    private TextureIO() {}
+
+    enum Priority {
+        /** Needed to draw this frame, never blocks on the memory budget */
+        VISIBLE,
+        /** Likely needed soon */
+        PREFETCH,
+        /** Cache writes and other work nobody is waiting on */
+        BACKGROUND,
+    }
+
+    @FunctionalInterface
+    interface Work<T> {
+        T run() throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Callback<T> {
+        /** Exactly one of result/error is set (result may still be null) */
+        void accept(T result, Exception error);
+    }
+
+    static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    private static final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, queue, runnable -> {
+        Thread thread = new Thread(runnable, "UMC Texture IO");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private static final Queue<Job<?>> completed = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final Object lock = new Object();
+    private static long budget = 256 * 1024 * 1024;
+    private static long inFlight;
+
+    static {
+        pool.allowCoreThreadTimeOut(true);
+        ClientEvents.FRAME.subscribe(TextureIO::complete);
+    }
+
+    /** Memory that queued and running jobs may hold before background submissions wait */
+    static void setBudgetMB(int mb) {
+        synchronized (lock) {
+            budget = mb * 1024L * 1024L;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue work
+     *
+     * @param bytes estimate of the memory held by the job until its work is done
+     * @param callback run on the render thread with the result, may be null
+     */
+    static <T> Job<T> submit(Priority priority, long bytes, Work<T> work, Callback<T> callback) {
+        if (priority != Priority.VISIBLE) {
+            reserve(bytes);
+        } else {
+            synchronized (lock) {
+                inFlight += bytes;
+            }
+        }
+        Job<T> job = new Job<>(priority, bytes, work, callback);
+        pool.execute(job);
+        return job;
+    }
+
+    /** Same as submit, but returns null instead of waiting when over budget */
+    static <T> Job<T> trySubmit(Priority priority, long bytes, Work<T> work, Callback<T> callback) {
+        synchronized (lock) {
+            if (inFlight > 0 && inFlight + bytes > budget) {
+                return null;
+            }
+            inFlight += bytes;
+        }
+        Job<T> job = new Job<>(priority, bytes, work, callback);
+        pool.execute(job);
+        return job;
+    }
+
+    private static void reserve(long bytes) {
+        synchronized (lock) {
+            // A single job larger than the budget still runs, just on its own
+            while (inFlight > 0 && inFlight + bytes > budget) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            inFlight += bytes;
+        }
+    }
+
+    private static void release(long bytes) {
+        synchronized (lock) {
+            inFlight -= bytes;
+            lock.notifyAll();
+        }
+    }
+
+    /** Run callbacks for finished jobs, render thread only */
+    static void complete() {
+        Job<?> job;
+        while ((job = completed.poll()) != null) {
+            job.finish();
+        }
+    }
+
+    static final class Job<T> implements Runnable, Comparable<Job<?>> {
+        private final long order = sequence.getAndIncrement();
+        private final long bytes;
+        private final Work<T> work;
+        private final Callback<T> callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Priority priority;
+        private T result;
+        private Exception error;
+
+        private Job(Priority priority, long bytes, Work<T> work, Callback<T> callback) {
+            this.priority = priority;
+            this.bytes = bytes;
+            this.work = work;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = work.run();
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                // Released here instead of in finish, callbacks may not run for a while (ex: during startup)
+                release(bytes);
+            }
+            if (callback != null) {
+                completed.add(this);
+            } else if (error != null) {
+                ModCore.catching(error);
+            }
+            done.countDown();
+        }
+
+        private void finish() {
+            callback.accept(result, error);
+        }
+
+        /** Move a queued job ahead, no-op if it already started or has a higher priority */
+        void promote(Priority priority) {
+            if (priority.ordinal() < this.priority.ordinal() && queue.remove(this)) {
+                this.priority = priority;
+                queue.add(this);
+            }
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /** Wait up to millis for the work to finish and then run pending callbacks, render thread only */
+        boolean await(long millis) {
+            promote(Priority.VISIBLE);
+            try {
+                done.await(millis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            complete();
+            return isDone();
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int cmp = priority.compareTo(other.priority);
+            return cmp != 0 ? cmp : Long.compare(order, other.order);
+        }
+    }
+}
@@ -4,16 +4,49 @@ import cam72cam.mod.math.Vec3d;
 import cam72cam.mod.model.obj.Vec2f;
 import org.apache.commons.lang3.tuple.Pair;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL14;
 import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLContext;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 /** VBA/VBO abstraction */
-public class VBA {
+public class VBA implements GPUMemory.Resource {
+    // Packed layout: float xyz, byte normal xyz + pad, short uv, ubyte rgba
+    private static final int PACKED_STRIDE = 24;
+    private static final int PACKED_NORMAL = 12;
+    private static final int PACKED_TEX = 16;
+    private static final int PACKED_COLOR = 20;
+    private static final float PACKED_TEX_SCALE = Short.MAX_VALUE;
+
+    /** Vertex memory layouts */
+    public enum Format {
+        /** Separate float buffers for position, normal, uv and color (48 bytes per vertex) */
+        FLOAT,
+        /**
+         * Single interleaved buffer (24 bytes per vertex) with float positions, byte normals, short uvs and byte colors
+         *
+         * UVs are stored as fixed point in [-1, 1] and rescaled by the texture matrix when drawn, which is exact enough
+         * for texture sheet coordinates.  Opt in only for UVs inside [-1, 1] drawn without shaders which ignore or
+         * reset the texture matrix.
+         */
+        PACKED
+    }
+
     private Map<String, Pair<Integer, Integer>> groupIdx;
     private int size;
+    private final Format format;
+    private ByteBuffer packedBuffer;
     private FloatBuffer vertexBuffer;
     private FloatBuffer normalBuffer;
     private FloatBuffer colorBuffer;
@@ -23,60 +56,359 @@ public class VBA {
     private int vtbo = -1;
     private int vcbo = -1;
     private boolean has_vn = true;
+    private int vertexCount;
+
+    // Indexed mode, identical vertices are only stored once
+    private final boolean indexed;
+    private IntBuffer indexBuffer;
+    // Open addressing table of (vertex index + 1), 0 is empty
+    private int[] dedup;
+    // hashVertex of each point, computed as the point is written (possibly on another thread)
+    private int[] hashes;
+    private int ibo = -1;
+    private int indexType;
+    private int indexSize;
+
+    // Captures setupPointers, -1 if not created (or VAOs are unsupported)
+    private int vao = -1;
+    private static Boolean vaoSupported;
+    // Element buffer read back by evict(), already in indexType
+    private ByteBuffer evictedIndices;
+    private long gpuBytes;
+    private long lastUsed;
+
+    // Reused by draw(Iterable<String>)
+    private IntBuffer scratchFirsts;
+    private IntBuffer scratchCounts;
 
     /** Create a buffer with number of verts */
     public VBA(int size) {
-        this.size = size;
-        vertexBuffer = BufferUtils.createFloatBuffer(size * 3 * 3);
-        normalBuffer = BufferUtils.createFloatBuffer(size * 3 * 3);
-        colorBuffer = BufferUtils.createFloatBuffer(size * 3 * 4);
-        texBuffer = BufferUtils.createFloatBuffer(size * 3 * 2);
+        this(size, null, false, Format.FLOAT);
     }
 
     /** Create a buffer with number of verts and group info (start/stop idx) */
     public VBA(int size, Map<String, Pair<Integer, Integer>> groupIdx) {
-        this(size);
+        this(size, groupIdx, false, Format.FLOAT);
+    }
+
+    /**
+     * Create a buffer with number of verts and group info (start/stop idx)
+     *
+     * Indexed buffers merge identical (position, normal, uv, color) points and draw through an element buffer
+     */
+    public VBA(int size, Map<String, Pair<Integer, Integer>> groupIdx, boolean indexed, Format format) {
+        this.size = size;
         this.groupIdx = groupIdx;
+        this.indexed = indexed;
+        this.format = format;
+        if (format == Format.PACKED) {
+            packedBuffer = BufferUtils.createByteBuffer(size * 3 * PACKED_STRIDE);
+        } else {
+            vertexBuffer = BufferUtils.createFloatBuffer(size * 3 * 3);
+            normalBuffer = BufferUtils.createFloatBuffer(size * 3 * 3);
+            colorBuffer = BufferUtils.createFloatBuffer(size * 3 * 4);
+            texBuffer = BufferUtils.createFloatBuffer(size * 3 * 2);
+        }
+        if (indexed) {
+            indexBuffer = BufferUtils.createIntBuffer(size * 3);
+            dedup = new int[1024];
+            hashes = new int[size * 3];
+        }
     }
 
     /** Add a point to the VB */
     public void addPoint(float vX, float vY, float vZ, boolean hasVN, float vnX, float vnY, float vnZ, Vec2f vt, float r, float g, float b, float a) {
-        vertexBuffer.put(vX);
-        vertexBuffer.put(vY);
-        vertexBuffer.put(vZ);
-        if (hasVN) {
-            normalBuffer.put(vnX);
-            normalBuffer.put(vnY);
-            normalBuffer.put(vnZ);
-        } else {
+        addPoint(vX, vY, vZ, hasVN, vnX, vnY, vnZ, vt.x, vt.y, r, g, b, a);
+    }
+
+    public void addPoint(float vX, float vY, float vZ, boolean hasVN, float vnX, float vnY, float vnZ, float u, float v, float r, float g, float b, float a) {
+        int idx = vertexCount;
+        setPoint(idx, vX, vY, vZ, hasVN, vnX, vnY, vnZ, u, v, r, g, b, a);
+        add(idx);
+    }
+
+    /**
+     * Write point idx (of size * 3) directly, for filling the buffer from several threads
+     *
+     * Points only written by setPoint have to be followed by a single finish call once every thread is done.
+     * Different threads must write different indices.
+     */
+    public void setPoint(int idx, float vX, float vY, float vZ, boolean hasVN, float vnX, float vnY, float vnZ, float u, float v, float r, float g, float b, float a) {
+        if (!hasVN) {
+            // Only ever cleared, so racing writers agree
             has_vn = false;
+            vnX = vnY = vnZ = 0;
+        }
+
+        // Absolute puts only, the buffer positions are shared between threads
+        if (format == Format.PACKED) {
+            int offset = idx * PACKED_STRIDE;
+            packedBuffer.putFloat(offset, vX).putFloat(offset + 4, vY).putFloat(offset + 8, vZ);
+            packedBuffer.put(offset + PACKED_NORMAL, packNormal(vnX))
+                    .put(offset + PACKED_NORMAL + 1, packNormal(vnY))
+                    .put(offset + PACKED_NORMAL + 2, packNormal(vnZ))
+                    .put(offset + PACKED_NORMAL + 3, (byte) 0);
+            packedBuffer.putShort(offset + PACKED_TEX, packTex(u)).putShort(offset + PACKED_TEX + 2, packTex(v));
+            packedBuffer.put(offset + PACKED_COLOR, packColor(r))
+                    .put(offset + PACKED_COLOR + 1, packColor(g))
+                    .put(offset + PACKED_COLOR + 2, packColor(b))
+                    .put(offset + PACKED_COLOR + 3, packColor(a));
+        } else {
+            vertexBuffer.put(idx * 3, vX).put(idx * 3 + 1, vY).put(idx * 3 + 2, vZ);
+            normalBuffer.put(idx * 3, vnX).put(idx * 3 + 1, vnY).put(idx * 3 + 2, vnZ);
+            texBuffer.put(idx * 2, u).put(idx * 2 + 1, v);
+            colorBuffer.put(idx * 4, r).put(idx * 4 + 1, g).put(idx * 4 + 2, b).put(idx * 4 + 3, a);
+        }
+        if (indexed) {
+            hashes[idx] = hashVertex(idx);
+        }
+    }
+
+    /**
+     * Take the points [0, points) written by setPoint
+     *
+     * Identical points of indexed buffers are merged here, in order, so the result is the same as calling addPoint
+     * for each of them.
+     */
+    public void finish(int points) {
+        if (indexed) {
+            // Size the table up front instead of growing it along the way
+            resize(vertexCount + points);
+        }
+        for (int idx = 0; idx < points; idx++) {
+            if (vertexCount != idx) {
+                // Earlier points were merged, close the gap
+                moveVertex(idx, vertexCount);
+            }
+            add(vertexCount);
+        }
+    }
+
+    /** Count the point just written to idx == vertexCount */
+    private void add(int idx) {
+        if (indexed) {
+            int existing = dedupe(idx);
+            if (existing == idx) {
+                vertexCount++;
+            }
+            indexBuffer.put(existing);
+        } else {
+            vertexCount++;
+        }
+    }
+
+    private void moveVertex(int from, int to) {
+        if (format == Format.PACKED) {
+            for (int i = 0; i < PACKED_STRIDE; i += 4) {
+                packedBuffer.putInt(to * PACKED_STRIDE + i, packedBuffer.getInt(from * PACKED_STRIDE + i));
+            }
+        } else {
+            for (int i = 0; i < 3; i++) {
+                vertexBuffer.put(to * 3 + i, vertexBuffer.get(from * 3 + i));
+                normalBuffer.put(to * 3 + i, normalBuffer.get(from * 3 + i));
+            }
+            for (int i = 0; i < 2; i++) {
+                texBuffer.put(to * 2 + i, texBuffer.get(from * 2 + i));
+            }
+            for (int i = 0; i < 4; i++) {
+                colorBuffer.put(to * 4 + i, colorBuffer.get(from * 4 + i));
+            }
+        }
+        if (indexed) {
+            hashes[to] = hashes[from];
+        }
+    }
+
+    private static byte packNormal(float n) {
+        return (byte) Math.round(Math.max(-1, Math.min(1, n)) * 127);
+    }
+
+    private static short packTex(float t) {
+        return (short) Math.round(Math.max(-1, Math.min(1, t)) * PACKED_TEX_SCALE);
+    }
+
+    private static byte packColor(float c) {
+        return (byte) Math.round(Math.max(0, Math.min(1, c)) * 255);
+    }
+
+    /** @return index of an identical vertex already in the buffer, or idx if it is new */
+    private int dedupe(int idx) {
+        resize(vertexCount + 1);
+
+        int mask = dedup.length - 1;
+        for (int slot = hashes[idx] & mask; ; slot = (slot + 1) & mask) {
+            int entry = dedup[slot];
+            if (entry == 0) {
+                dedup[slot] = idx + 1;
+                return idx;
+            }
+            if (sameVertex(entry - 1, idx)) {
+                return entry - 1;
+            }
         }
-        texBuffer.put(vt.x);
-        texBuffer.put(vt.y);
-        colorBuffer.put(r);
-        colorBuffer.put(g);
-        colorBuffer.put(b);
-        colorBuffer.put(a);
+    }
+
+    /** Grow the table so it stays at most 3/4 full with this many vertices */
+    private void resize(int vertices) {
+        int length = dedup.length;
+        while ((long) vertices * 4 > length * 3L) {
+            length *= 2;
+        }
+        if (length == dedup.length) {
+            return;
+        }
+        int[] old = dedup;
+        dedup = new int[length];
+        for (int entry : old) {
+            if (entry != 0) {
+                insert(entry - 1);
+            }
+        }
+    }
+
+    private void insert(int idx) {
+        int mask = dedup.length - 1;
+        int slot = hashes[idx] & mask;
+        while (dedup[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        dedup[slot] = idx + 1;
+    }
+
+    private int hashVertex(int idx) {
+        int h = 0;
+        if (format == Format.PACKED) {
+            for (int i = 0; i < PACKED_STRIDE; i += 4) {
+                h = h * 31 + packedBuffer.getInt(idx * PACKED_STRIDE + i);
+            }
+        } else {
+            for (int i = 0; i < 3; i++) {
+                h = h * 31 + Float.floatToIntBits(vertexBuffer.get(idx * 3 + i));
+                h = h * 31 + Float.floatToIntBits(normalBuffer.get(idx * 3 + i));
+            }
+            for (int i = 0; i < 2; i++) {
+                h = h * 31 + Float.floatToIntBits(texBuffer.get(idx * 2 + i));
+            }
+            for (int i = 0; i < 4; i++) {
+                h = h * 31 + Float.floatToIntBits(colorBuffer.get(idx * 4 + i));
+            }
+        }
+        // murmur3 finalizer, spreads the bits before masking
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private boolean sameVertex(int a, int b) {
+        if (format == Format.PACKED) {
+            for (int i = 0; i < PACKED_STRIDE; i += 4) {
+                if (packedBuffer.getInt(a * PACKED_STRIDE + i) != packedBuffer.getInt(b * PACKED_STRIDE + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            if (Float.floatToIntBits(vertexBuffer.get(a * 3 + i)) != Float.floatToIntBits(vertexBuffer.get(b * 3 + i)) ||
+                    Float.floatToIntBits(normalBuffer.get(a * 3 + i)) != Float.floatToIntBits(normalBuffer.get(b * 3 + i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            if (Float.floatToIntBits(texBuffer.get(a * 2 + i)) != Float.floatToIntBits(texBuffer.get(b * 2 + i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            if (Float.floatToIntBits(colorBuffer.get(a * 4 + i)) != Float.floatToIntBits(colorBuffer.get(b * 4 + i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /** Draw the entire VB */
     public void draw() {
-        drawVBO(null);
+        drawVBO(null, null);
     }
 
-    /** Draw these groups in the VB */
+    /** Draw these groups in the VB, adjacent groups are merged into a single range */
     public void draw(Iterable<String> groups) {
-        drawVBO(groups);
+        drawVBO(groups, null);
     }
 
-    private void drawVBO(Iterable<String> groups) {
-        int prev = GL11.glGetInteger(GL15.GL_ARRAY_BUFFER_BINDING);
+    /** Draw a precompiled set of groups, see compile */
+    public void draw(GroupSet groups) {
+        if (groups.vba != this) {
+            throw new IllegalArgumentException("Group set was compiled for a different VBA");
+        }
+        drawVBO(null, groups);
+    }
 
-        if (vbo == -1) {
-            vertexBuffer.flip();
-            colorBuffer.flip();
-            normalBuffer.flip();
-            texBuffer.flip();
+    /**
+     * Precompute the draw ranges for these groups (sorted and merged), for group lists which are drawn every frame
+     *
+     * Unknown group names are ignored
+     */
+    public GroupSet compile(Iterable<String> groups) {
+        List<int[]> ranges = new ArrayList<>();
+        for (String group : groups) {
+            Pair<Integer, Integer> info = groupIdx.get(group);
+            if (info != null && info.getValue() != 0) {
+                ranges.add(new int[]{info.getKey() * 3, info.getValue() * 3});
+            }
+        }
+        ranges.sort(Comparator.comparingInt(range -> range[0]));
+
+        IntBuffer firsts = BufferUtils.createIntBuffer(Math.max(1, ranges.size()));
+        IntBuffer counts = BufferUtils.createIntBuffer(Math.max(1, ranges.size()));
+        int n = 0;
+        for (int[] range : ranges) {
+            int end = n == 0 ? -1 : firsts.get(n - 1) + counts.get(n - 1);
+            if (range[0] <= end) {
+                // Adjacent or repeated
+                counts.put(n - 1, Math.max(end, range[0] + range[1]) - firsts.get(n - 1));
+            } else {
+                firsts.put(n, range[0]);
+                counts.put(n, range[1]);
+                n++;
+            }
+        }
+        return new GroupSet(this, firsts, counts, n);
+    }
+
+    /** Merged (first, count) draw ranges of a set of groups, in vertices/indices */
+    public static class GroupSet {
+        private final VBA vba;
+        private final IntBuffer firsts;
+        private final IntBuffer counts;
+        private final int ranges;
+
+        private GroupSet(VBA vba, IntBuffer firsts, IntBuffer counts, int ranges) {
+            this.vba = vba;
+            this.firsts = firsts;
+            this.counts = counts;
+            this.ranges = ranges;
+        }
+    }
+
+    private void upload() {
+        if (format == Format.PACKED) {
+            packedBuffer.position(0).limit(vertexCount * PACKED_STRIDE);
+            vbo = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, packedBuffer, GL15.GL_STATIC_DRAW);
+        } else {
+            vertexBuffer.position(0).limit(vertexCount * 3);
+            if (has_vn) {
+                normalBuffer.position(0).limit(vertexCount * 3);
+            }
+            texBuffer.position(0).limit(vertexCount * 2);
+            colorBuffer.position(0).limit(vertexCount * 4);
 
             vbo = GL15.glGenBuffers();
             vnbo = GL15.glGenBuffers();
@@ -92,15 +424,130 @@ public class VBA {
             GL15.glBufferData(GL15.GL_ARRAY_BUFFER, texBuffer, GL15.GL_STATIC_DRAW);
             GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vcbo);
             GL15.glBufferData(GL15.GL_ARRAY_BUFFER, colorBuffer, GL15.GL_STATIC_DRAW);
+        }
 
-            vertexBuffer = null;
-            normalBuffer = null;
-            texBuffer = null;
-            colorBuffer = null;
+        if (indexed) {
+            int prevElements = GL11.glGetInteger(GL15.GL_ELEMENT_ARRAY_BUFFER_BINDING);
+            ibo = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, ibo);
+            if (evictedIndices != null) {
+                GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, evictedIndices, GL15.GL_STATIC_DRAW);
+                evictedIndices = null;
+            } else if (vertexCount <= 0xFFFF + 1) {
+                indexBuffer.flip();
+                // Most groups of models fit in 16 bit indices, halves the element buffer
+                ShortBuffer shortIndices = BufferUtils.createShortBuffer(indexBuffer.limit());
+                for (int i = 0; i < indexBuffer.limit(); i++) {
+                    shortIndices.put((short) indexBuffer.get(i));
+                }
+                shortIndices.flip();
+                GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, shortIndices, GL15.GL_STATIC_DRAW);
+                indexType = GL11.GL_UNSIGNED_SHORT;
+                indexSize = 2;
+            } else {
+                indexBuffer.flip();
+                GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBuffer, GL15.GL_STATIC_DRAW);
+                indexType = GL11.GL_UNSIGNED_INT;
+                indexSize = 4;
+            }
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, prevElements);
+            indexBuffer = null;
+            dedup = null;
+            hashes = null;
+        }
+
+        packedBuffer = null;
+        vertexBuffer = null;
+        normalBuffer = null;
+        texBuffer = null;
+        colorBuffer = null;
+
+        if (format == Format.PACKED) {
+            gpuBytes = (long) vertexCount * PACKED_STRIDE;
+        } else {
+            gpuBytes = (long) vertexCount * (3 + (has_vn ? 3 : 0) + 2 + 4) * 4;
+        }
+        if (indexed) {
+            gpuBytes += (long) size * 3 * indexSize;
+        }
+        GPUMemory.allocated(this);
+    }
+
+    @Override
+    public long gpuBytes() {
+        return gpuBytes;
+    }
+
+    @Override
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    /** Move the buffers back into client memory, they are uploaded again on the next draw */
+    @Override
+    public void evict() {
+        if (vbo == -1) {
+            return;
+        }
+
+        int prev = GL11.glGetInteger(GL15.GL_ARRAY_BUFFER_BINDING);
+        if (format == Format.PACKED) {
+            packedBuffer = readBack(GL15.GL_ARRAY_BUFFER, vbo, vertexCount * PACKED_STRIDE);
+        } else {
+            vertexBuffer = readBack(GL15.GL_ARRAY_BUFFER, vbo, vertexCount * 3 * 4).asFloatBuffer();
+            if (has_vn) {
+                normalBuffer = readBack(GL15.GL_ARRAY_BUFFER, vnbo, vertexCount * 3 * 4).asFloatBuffer();
+            }
+            texBuffer = readBack(GL15.GL_ARRAY_BUFFER, vtbo, vertexCount * 2 * 4).asFloatBuffer();
+            colorBuffer = readBack(GL15.GL_ARRAY_BUFFER, vcbo, vertexCount * 4 * 4).asFloatBuffer();
+        }
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, prev);
+        if (indexed) {
+            int prevElements = GL11.glGetInteger(GL15.GL_ELEMENT_ARRAY_BUFFER_BINDING);
+            evictedIndices = readBack(GL15.GL_ELEMENT_ARRAY_BUFFER, ibo, size * 3 * indexSize);
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, prevElements);
+        }
+
+        deleteBuffers();
+    }
+
+    private static ByteBuffer readBack(int target, int buffer, int bytes) {
+        ByteBuffer data = BufferUtils.createByteBuffer(bytes);
+        GL15.glBindBuffer(target, buffer);
+        GL15.glGetBufferSubData(target, 0, data);
+        return data;
+    }
+
+    private void deleteBuffers() {
+        if (vbo == -1) {
+            return;
         }
+        GL15.glDeleteBuffers(vbo);
+        if (format == Format.FLOAT) {
+            GL15.glDeleteBuffers(vnbo);
+            GL15.glDeleteBuffers(vtbo);
+            GL15.glDeleteBuffers(vcbo);
+        }
+        if (ibo != -1) {
+            GL15.glDeleteBuffers(ibo);
+        }
+        if (vao != -1) {
+            GL30.glDeleteVertexArrays(vao);
+        }
+        vbo = vnbo = vtbo = vcbo = ibo = vao = -1;
+        GPUMemory.freed(this);
+    }
 
-        GL11.glPushClientAttrib( GL11.GL_CLIENT_VERTEX_ARRAY_BIT);
+    private static boolean vaoSupported() {
+        if (vaoSupported == null) {
+            ContextCapabilities caps = GLContext.getCapabilities();
+            vaoSupported = caps.OpenGL30 || caps.GL_ARB_vertex_array_object;
+        }
+        return vaoSupported;
+    }
 
+    /** Enables the client arrays and sets up the pointers (and element buffer) for this VB */
+    private void setupPointers() {
         GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
         GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
         GL11.glEnableClientState(GL11.GL_COLOR_ARRAY);
@@ -108,45 +555,152 @@ public class VBA {
             GL11.glEnableClientState(GL11.GL_NORMAL_ARRAY);
         }
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vtbo);
-        GL11.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
+        if (format == Format.PACKED) {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+            GL11.glVertexPointer(3, GL11.GL_FLOAT, PACKED_STRIDE, 0);
+            if (has_vn) {
+                GL11.glNormalPointer(GL11.GL_BYTE, PACKED_STRIDE, PACKED_NORMAL);
+            }
+            GL11.glTexCoordPointer(2, GL11.GL_SHORT, PACKED_STRIDE, PACKED_TEX);
+            GL11.glColorPointer(4, GL11.GL_UNSIGNED_BYTE, PACKED_STRIDE, PACKED_COLOR);
+        } else {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vtbo);
+            GL11.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vcbo);
-        GL11.glColorPointer(4, GL11.GL_FLOAT, 0, 0);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vcbo);
+            GL11.glColorPointer(4, GL11.GL_FLOAT, 0, 0);
 
-        if (has_vn) {
-            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vnbo);
-            GL11.glNormalPointer(GL11.GL_FLOAT, 0, 0);
+            if (has_vn) {
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vnbo);
+                GL11.glNormalPointer(GL11.GL_FLOAT, 0, 0);
+            }
+
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+            GL11.glVertexPointer(3, GL11.GL_FLOAT, 0, 0);
         }
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
-        GL11.glVertexPointer(3, GL11.GL_FLOAT, 0, 0);
-        if (groups == null) {
-            GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, size * 3);
+        if (indexed) {
+            GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, ibo);
+        }
+    }
+
+    private void drawVBO(Iterable<String> groups, GroupSet groupSet) {
+        lastUsed = System.currentTimeMillis();
+        if (vbo == -1) {
+            int prev = GL11.glGetInteger(GL15.GL_ARRAY_BUFFER_BINDING);
+            upload();
+            if (vaoSupported()) {
+                // Capture the pointer setup once, the array buffer binding itself is not part of the VAO
+                vao = GL30.glGenVertexArrays();
+                GL30.glBindVertexArray(vao);
+                setupPointers();
+                GL30.glBindVertexArray(0);
+            }
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, prev);
+        }
+
+        int prev = 0;
+        int prevElements = 0;
+        if (vao != -1) {
+            // MC's fixed function pipeline only uses the default VAO
+            GL30.glBindVertexArray(vao);
         } else {
+            prev = GL11.glGetInteger(GL15.GL_ARRAY_BUFFER_BINDING);
+            prevElements = indexed ? GL11.glGetInteger(GL15.GL_ELEMENT_ARRAY_BUFFER_BINDING) : 0;
+            GL11.glPushClientAttrib(GL11.GL_CLIENT_VERTEX_ARRAY_BIT);
+            setupPointers();
+        }
+
+        OpenGL.With texScale = () -> {};
+        if (format == Format.PACKED) {
+            texScale = OpenGL.matrix(GL11.GL_TEXTURE);
+            GL11.glScalef(1 / PACKED_TEX_SCALE, 1 / PACKED_TEX_SCALE, 1);
+        }
+
+        if (groupSet != null) {
+            drawRanges(groupSet.firsts, groupSet.counts, groupSet.ranges);
+        } else if (groups == null) {
+            drawRange(0, size * 3);
+        } else {
+            // Merge groups which follow each other in the buffer
+            if (scratchFirsts == null) {
+                scratchFirsts = BufferUtils.createIntBuffer(Math.max(1, groupIdx.size()));
+                scratchCounts = BufferUtils.createIntBuffer(Math.max(1, groupIdx.size()));
+            }
+            int n = 0;
             for (String group : groups) {
                 Pair<Integer, Integer> info = groupIdx.get(group);
-                GL11.glDrawArrays(GL11.GL_TRIANGLES, info.getKey() * 3, info.getValue() * 3);
+                if (info == null || info.getValue() == 0) {
+                    continue;
+                }
+                int first = info.getKey() * 3;
+                int count = info.getValue() * 3;
+                if (n != 0 && scratchFirsts.get(n - 1) + scratchCounts.get(n - 1) == first) {
+                    scratchCounts.put(n - 1, scratchCounts.get(n - 1) + count);
+                    continue;
+                }
+                if (n == scratchFirsts.capacity()) {
+                    // Group listed more than once
+                    drawRanges(scratchFirsts, scratchCounts, n);
+                    n = 0;
+                }
+                scratchFirsts.put(n, first);
+                scratchCounts.put(n, count);
+                n++;
             }
+            drawRanges(scratchFirsts, scratchCounts, n);
         }
 
-        GL11.glPopClientAttrib();
+        texScale.restore();
+        if (vao != -1) {
+            GL30.glBindVertexArray(0);
+        } else {
+            GL11.glPopClientAttrib();
+            if (indexed) {
+                GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, prevElements);
+            }
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, prev);
+        }
 
         // Reset draw color (IMPORTANT)
         GL11.glColor4f(1, 1, 1, 1);
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, prev);
+    }
+
+    private void drawRange(int first, int count) {
+        if (indexed) {
+            GL11.glDrawElements(GL11.GL_TRIANGLES, count, indexType, (long) first * indexSize);
+        } else {
+            GL11.glDrawArrays(GL11.GL_TRIANGLES, first, count);
+        }
+    }
+
+    private void drawRanges(IntBuffer firsts, IntBuffer counts, int n) {
+        if (n == 1 || indexed && n > 0) {
+            // LWJGL 2 has no glMultiDrawElements binding
+            for (int i = 0; i < n; i++) {
+                drawRange(firsts.get(i), counts.get(i));
+            }
+        } else if (n > 1) {
+            firsts.position(0).limit(n);
+            counts.position(0).limit(n);
+            GL14.glMultiDrawArrays(GL11.GL_TRIANGLES, firsts, counts);
+            firsts.clear();
+            counts.clear();
+        }
     }
 
     /** Clear this VB from standard and GPU memory */
     public void free() {
+        packedBuffer = null;
         vertexBuffer = null;
         normalBuffer = null;
         texBuffer = null;
         colorBuffer = null;
+        indexBuffer = null;
+        dedup = null;
+        hashes = null;
+        evictedIndices = null;
 
-        GL15.glDeleteBuffers(vbo);
-        GL15.glDeleteBuffers(vnbo);
-        GL15.glDeleteBuffers(vtbo);
-        GL15.glDeleteBuffers(vcbo);
+        deleteBuffers();
     }
 }
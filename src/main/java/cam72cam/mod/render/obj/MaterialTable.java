@@ -0,0 +1,79 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.ModCore;
+import cam72cam.mod.model.obj.Material;
+import cam72cam.mod.model.obj.OBJModel;
+
+/**
+ * Everything createVBA needs per material, indexed like OBJModel.mtlNames
+ *
+ * Resolved once per model so the per-vertex loop doesn't touch any maps or strings.
+ */
+final class MaterialTable {
+    /** Sheet page of each material */
+    final int[] pages;
+    /** 6 floats per material, see OBJTextureSheet.transform */
+    final float[] transforms;
+    /** r, g, b, a per material */
+    final float[] colors;
+
+    MaterialTable(OBJModel model, OBJTextureSheet texture) {
+        int count = model.mtlNames.length;
+        pages = new int[count];
+        transforms = new float[count * 6];
+        colors = new float[count * 4];
+
+        for (int idx = 0; idx < count; idx++) {
+            String mtlName = model.mtlNames[idx];
+            pages[idx] = texture.page(mtlName);
+            texture.transform(mtlName, transforms, idx * 6);
+
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            float a = 1;
+
+            Material currentMTL = model.materials.get(mtlName);
+            if (currentMTL != null) {
+                if (currentMTL.Kd != null) {
+                    float mult = 1 - model.darken * 5;
+
+                    if (texture.isFlatMaterial(mtlName)) {
+                        r = 1;
+                        g = 1;
+                        b = 1;
+                    } else {
+                        r = currentMTL.Kd.get(0);
+                        g = currentMTL.Kd.get(1);
+                        b = currentMTL.Kd.get(2);
+                    }
+
+                    r = Math.max(0, r * mult);
+                    g = Math.max(0, g * mult);
+                    b = Math.max(0, b * mult);
+                    a = currentMTL.Kd.get(3);
+                }
+            } else if (isUsed(model, idx)) {
+                ModCore.warn(String.format("Missing group %s", mtlName));
+            }
+
+            colors[idx * 4] = r;
+            colors[idx * 4 + 1] = g;
+            colors[idx * 4 + 2] = b;
+            colors[idx * 4 + 3] = a;
+        }
+    }
+
+    /** Index 0 (no usemtl) is always in the table, only warn about it when a face actually has no material */
+    private static boolean isUsed(OBJModel model, int idx) {
+        if (idx != 0) {
+            return true;
+        }
+        for (int faceIdx : model.faceMTLIdx) {
+            if (faceIdx == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
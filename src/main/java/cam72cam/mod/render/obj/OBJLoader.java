@@ -0,0 +1,103 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.model.obj.OBJModel;
+import cam72cam.mod.render.GPUInfo;
+import cam72cam.mod.render.VBA;
+import cam72cam.mod.resource.Identifier;
+
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads OBJModel + OBJRender pairs on a bounded worker pool
+ *
+ * Parsing, MTL reading, texture decoding and texture sheet packing happen on the pool.  The GL uploads (VBA buffers
+ * and GLTexture) are left for the render thread, which performs them the first time the result is drawn/bound.
+ */
+public class OBJLoader {
+    private static final ExecutorService pool;
+
+    static {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "UMC OBJ Loader " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        pool = executor;
+    }
+
+    private OBJLoader() {}
+
+    public static Handle load(Identifier modelLoc, float darken) {
+        return load(modelLoc, darken, 1, null, 30);
+    }
+
+    public static Handle load(Identifier modelLoc, float darken, double scale, Collection<String> textureNames) {
+        return load(modelLoc, darken, scale, textureNames, 30);
+    }
+
+    public static Handle load(Identifier modelLoc, float darken, double scale, Collection<String> textureNames, int cacheSeconds) {
+        return load(modelLoc, darken, scale, textureNames, cacheSeconds, VBA.Format.FLOAT);
+    }
+
+    /** Queue a model for loading, must be called from the render thread */
+    public static Handle load(Identifier modelLoc, float darken, double scale, Collection<String> textureNames, int cacheSeconds, VBA.Format format) {
+        // Worker threads can't query GL
+        GPUInfo.maxTextureSize();
+
+        return new Handle(CompletableFuture.supplyAsync(() -> {
+            try {
+                OBJRender render = new OBJRender(new OBJModel(modelLoc, darken, scale), textureNames, cacheSeconds, format);
+                // Fills the client side buffers, upload happens on first draw
+                render.createVBA();
+                return render;
+            } catch (Exception e) {
+                throw new CompletionException("Unable to load " + modelLoc, e);
+            }
+        }, pool));
+    }
+
+    /** Same as load, but shares the result with every other user of an identical model (see OBJRegistry) */
+    public static Handle loadShared(Identifier modelLoc, float darken, double scale, Collection<String> textureNames, int cacheSeconds, VBA.Format format) {
+        GPUInfo.maxTextureSize();
+
+        return new Handle(CompletableFuture.supplyAsync(() -> {
+            try {
+                return OBJRegistry.acquire(modelLoc, darken, scale, textureNames, cacheSeconds, format);
+            } catch (Exception e) {
+                throw new CompletionException("Unable to load " + modelLoc, e);
+            }
+        }, pool));
+    }
+
+    /** Future backed handle to an OBJRender which is still being loaded */
+    public static class Handle {
+        private final CompletableFuture<OBJRender> future;
+
+        private Handle(CompletableFuture<OBJRender> future) {
+            this.future = future;
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /** @return the loaded render, null if it is not ready yet.  Rethrows any load failure */
+        public OBJRender get() {
+            return future.isDone() ? future.join() : null;
+        }
+
+        /** Block until the render is loaded */
+        public OBJRender join() {
+            return future.join();
+        }
+
+        public CompletableFuture<OBJRender> future() {
+            return future;
+        }
+    }
+}
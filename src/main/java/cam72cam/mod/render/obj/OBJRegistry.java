@@ -0,0 +1,176 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.model.obj.Material;
+import cam72cam.mod.model.obj.OBJModel;
+import cam72cam.mod.render.VBA;
+import cam72cam.mod.resource.Identifier;
+
+import java.util.*;
+
+/**
+ * Reference counted OBJRender cache, shared between every user of an identical model
+ *
+ * Entries are found by model path first (no IO on a hit), then by OBJModel.hash and the contents of the textures so
+ * identical files under different paths still share one parsed model, VBA and set of texture sheets.  Textures are
+ * resolved relative to the model, the same OBJ/MTL in another folder may well draw other ones.  Each acquire must be matched by a call to
+ * OBJRender.free(), the GL resources are released once the last user has freed it.
+ */
+public class OBJRegistry {
+    private static final Map<Key, Entry> byPath = new HashMap<>();
+    private static final Map<Key, Entry> byHash = new HashMap<>();
+
+    private OBJRegistry() {}
+
+    public static OBJRender acquire(Identifier modelLoc, float darken) throws Exception {
+        return acquire(modelLoc, darken, 1, null, 30, VBA.Format.FLOAT);
+    }
+
+    public static OBJRender acquire(Identifier modelLoc, float darken, double scale, Collection<String> textureNames) throws Exception {
+        return acquire(modelLoc, darken, scale, textureNames, 30, VBA.Format.FLOAT);
+    }
+
+    /**
+     * Get (or load) the shared render for this model, safe to call from worker threads
+     *
+     * The returned render has its VBA buffers filled already and must not be modified by the caller.
+     */
+    public static OBJRender acquire(Identifier modelLoc, float darken, double scale, Collection<String> textureNames, int cacheSeconds, VBA.Format format) throws Exception {
+        Key pathKey = new Key(modelLoc.toString(), darken, scale, textureNames, cacheSeconds, format);
+
+        Entry entry;
+        synchronized (OBJRegistry.class) {
+            entry = byPath.computeIfAbsent(pathKey, Entry::new);
+            entry.refs++;
+        }
+
+        // Only one thread loads a given path, others wait for it here
+        synchronized (entry) {
+            if (entry.render == null && entry.redirect == null) {
+                try {
+                    load(entry, modelLoc, darken, scale, textureNames, cacheSeconds, format);
+                } catch (Exception e) {
+                    synchronized (OBJRegistry.class) {
+                        entry.refs--;
+                        if (entry.refs == 0) {
+                            byPath.remove(pathKey, entry);
+                        }
+                    }
+                    throw e;
+                }
+            }
+        }
+        return entry.redirect != null ? entry.redirect.render : entry.render;
+    }
+
+    private static void load(Entry entry, Identifier modelLoc, float darken, double scale, Collection<String> textureNames, int cacheSeconds, VBA.Format format) throws Exception {
+        OBJModel model = new OBJModel(modelLoc, darken, scale);
+        Key hashKey = new Key(contentHash(model.hash, model.materials.values(), textureNames), darken, scale, textureNames, cacheSeconds, format);
+
+        synchronized (OBJRegistry.class) {
+            Entry existing = byHash.get(hashKey);
+            if (existing != null) {
+                // Same contents under another path, hand our references over to it
+                existing.refs += entry.refs;
+                existing.paths.add(entry.paths.get(0));
+                byPath.put(entry.paths.get(0), existing);
+                entry.refs = 0;
+                entry.redirect = existing;
+                return;
+            }
+        }
+
+        OBJRender render = new OBJRender(model, textureNames, cacheSeconds, format);
+        render.createVBA();
+        render.registryEntry = entry;
+
+        synchronized (OBJRegistry.class) {
+            entry.hashKey = hashKey;
+            entry.render = render;
+            byHash.put(hashKey, entry);
+        }
+    }
+
+    /** Model hash combined with the textures of every sheet OBJRender would build for textureNames */
+    static long contentHash(long modelHash, Collection<Material> materials, Collection<String> textureNames) {
+        if (textureNames == null || textureNames.size() <= 1) {
+            return modelHash * 31 + OBJTextureSheet.textureHash(materials, "");
+        }
+        long hash = modelHash * 31;
+        for (String name : textureNames) {
+            // Order independent, like the Key's set of names
+            hash += OBJTextureSheet.textureHash(materials, name) * 31 + Objects.hashCode(name);
+        }
+        return hash;
+    }
+
+    /** @return true if this was the last reference and the render's GL resources should be freed */
+    static boolean release(OBJRender render) {
+        synchronized (OBJRegistry.class) {
+            Entry entry = render.registryEntry;
+            entry.refs--;
+            if (entry.refs > 0) {
+                return false;
+            }
+            for (Key path : entry.paths) {
+                byPath.remove(path, entry);
+            }
+            byHash.remove(entry.hashKey, entry);
+            return true;
+        }
+    }
+
+    /** Number of distinct models currently shared */
+    public static synchronized int size() {
+        return byHash.size();
+    }
+
+    static class Entry {
+        private final List<Key> paths = new ArrayList<>();
+        private Key hashKey;
+        private OBJRender render;
+        private Entry redirect;
+        private int refs;
+
+        private Entry(Key path) {
+            paths.add(path);
+        }
+    }
+
+    private static class Key {
+        // Path string or model hash
+        private final Object source;
+        private final float darken;
+        private final double scale;
+        private final Set<String> textureNames;
+        private final int cacheSeconds;
+        private final VBA.Format format;
+
+        private Key(Object source, float darken, double scale, Collection<String> textureNames, int cacheSeconds, VBA.Format format) {
+            this.source = source;
+            this.darken = darken;
+            this.scale = scale;
+            this.textureNames = textureNames == null ? null : new HashSet<>(textureNames);
+            this.cacheSeconds = cacheSeconds;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return source.equals(other.source) &&
+                    darken == other.darken &&
+                    scale == other.scale &&
+                    Objects.equals(textureNames, other.textureNames) &&
+                    cacheSeconds == other.cacheSeconds &&
+                    format == other.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, darken, scale, textureNames, cacheSeconds, format);
+        }
+    }
+}
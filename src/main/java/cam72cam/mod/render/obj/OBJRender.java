@@ -2,14 +2,18 @@ package cam72cam.mod.render.obj;
 
 import cam72cam.mod.ModCore;
 import cam72cam.mod.math.Vec3d;
-import cam72cam.mod.model.obj.Material;
+import cam72cam.mod.model.obj.OBJLOD;
 import cam72cam.mod.model.obj.OBJModel;
-import cam72cam.mod.model.obj.Vec2f;
 import cam72cam.mod.render.OpenGL;
 import cam72cam.mod.render.VBA;
 import org.apache.commons.lang3.tuple.Pair;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
 
+import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * VBA/VBO Backed object renderer
@@ -17,7 +21,25 @@ import java.util.*;
 public class OBJRender {
     public OBJModel model;
     public Map<String, OBJTextureSheet> textures = new HashMap<>();
+    private final VBA.Format format;
     private VBA vba;
+    // One VBA per texture sheet page, pages[0] == vba
+    private VBA[] pages;
+    // [level][page]
+    private VBA[][] lodVBAs;
+    private double[] lodDistances;
+    // Sheet bound by the last bindTexture, later pages are rebound from it while drawing
+    private OBJTextureSheet boundSheet;
+    private boolean boundIcon;
+    private double boundDistance;
+    // Bounding box diagonal, how large the model is when prioritizing texture loads
+    private double size;
+    // Set when owned by OBJRegistry
+    OBJRegistry.Entry registryEntry;
+
+    /** Default LOD switch distance, in model radii, for a level with half the triangles (scaled by 1/sqrt(ratio)) */
+    private static final double LOD_DISTANCE = 4 * Math.sqrt(0.5);
+    private static final FloatBuffer modelView = BufferUtils.createFloatBuffer(16);
 
     public OBJRender(OBJModel model) {
         this(model, null);
@@ -27,11 +49,28 @@ public class OBJRender {
         this(model, textureNames, 30);
     }
     public OBJRender(OBJModel model, Collection<String> textureNames, int cacheSeconds) {
+        this(model, textureNames, cacheSeconds, VBA.Format.FLOAT);
+    }
+
+    /** VBA.Format.PACKED halves vertex memory for models drawn through the fixed function texture matrix */
+    public OBJRender(OBJModel model, Collection<String> textureNames, int cacheSeconds, VBA.Format format) {
         this.model = model;
+        this.format = format;
         if (textureNames != null && textureNames.size() > 1) {
             for (String name : textureNames) {
                 this.textures.put(name, new OBJTextureSheet(model, name, cacheSeconds));
             }
+            // Pages and UVs come from the default sheet, variants packed any other way can't share them
+            OBJTextureSheet fallback = textures.get(null);
+            if (fallback != null) {
+                for (Map.Entry<String, OBJTextureSheet> entry : textures.entrySet()) {
+                    if (entry.getValue() != fallback && !entry.getValue().sameLayout(fallback)) {
+                        ModCore.warn("Texture variant %s of %s does not match the default layout (different texture sizes?), using the default", entry.getKey(), model.modelLoc);
+                        entry.getValue().freeGL();
+                        entry.setValue(fallback);
+                    }
+                }
+            }
         } else {
             this.textures.put(null, new OBJTextureSheet(model, "", cacheSeconds));
         }
@@ -55,121 +94,337 @@ public class OBJRender {
         }
 
         OBJTextureSheet tex = this.textures.get(texName);
+        boundSheet = tex;
+        boundIcon = icon;
 
         if (icon) {
             return tex.bindIcon();
         } else {
-            return tex.bind();
+            boundDistance = cameraDistance();
+            return tex.bind(boundDistance, size());
         }
     }
 
+    private double size() {
+        if (size == 0) {
+            Vec3d min = model.minOfGroup(model.groups());
+            Vec3d max = model.maxOfGroup(model.groups());
+            size = min == null ? 1 : max.subtract(min).length();
+        }
+        return size;
+    }
+
     public void draw() {
-        createVBA().draw();
+        drawPages(createPages(), null, null);
     }
 
     public void drawGroups(Iterable<String> groups) {
-        createVBA().draw(groups);
+        drawPages(createPages(), groups, null);
     }
 
-    public VBA createVBA() {
-        if (vba != null) {
-            return vba;
+    /** Precompile a list of groups which is drawn often, see drawGroups(GroupSet) */
+    public GroupSet compileGroups(Iterable<String> groups) {
+        VBA[] vbas = createPages();
+        VBA.GroupSet[] sets = new VBA.GroupSet[vbas.length];
+        for (int page = 0; page < vbas.length; page++) {
+            sets[page] = vbas[page].compile(groups);
         }
+        return new GroupSet(sets);
+    }
 
-        List<Integer> tris = new ArrayList<Integer>();
-        Map<String, Pair<Integer, Integer>> groupIdx = new LinkedHashMap<>();
+    public void drawGroups(GroupSet groups) {
+        drawPages(createPages(), null, groups);
+    }
 
-        for (String group : model.groups.keySet()) {
-            if (group.matches(".*EXHAUST_\\d.*") || group.matches(".*CHIMNEY_\\d.*") || group.matches(".*PRESSURE_VALVE_\\d.*") || group.matches(".*CHIMINEY_\\d.*")) {
-                //Skip particle emitters
-                continue;
+    /** Draw with the LOD level matching the distance to the camera, see cameraDistance() */
+    public void draw(double distance) {
+        drawPages(lodVBAs(distance), null, null);
+    }
+
+    public void drawGroups(Iterable<String> groups, double distance) {
+        drawPages(lodVBAs(distance), groups, null);
+    }
+
+    /** Groups compiled against every sheet page's VBA */
+    public static class GroupSet {
+        private final VBA.GroupSet[] pages;
+
+        private GroupSet(VBA.GroupSet[] pages) {
+            this.pages = pages;
+        }
+    }
+
+    private void drawPages(VBA[] vbas, Iterable<String> groups, GroupSet set) {
+        for (int page = 0; page < vbas.length; page++) {
+            // Page 0 is bound by the caller through bindTexture
+            OpenGL.With tex = page == 0 || boundSheet == null ? null : boundIcon ? boundSheet.bindIcon(page) : boundSheet.bind(page, boundDistance, size());
+            if (set != null) {
+                vbas[page].draw(set.pages[page]);
+            } else if (groups != null) {
+                vbas[page].draw(groups);
+            } else {
+                vbas[page].draw();
             }
-            groupIdx.put(group, Pair.of(tris.size(), model.groups.get(group).length));
-            for (int face : model.groups.get(group)) {
-                tris.add(face);
+            if (tex != null) {
+                tex.restore();
             }
         }
+    }
 
-        vba = new VBA(tris.size(), groupIdx);
+    /** Distance at which each of model.lods starts being used, must be ascending (levels past the last are not used) */
+    public void setLODDistances(double... distances) {
+        if (distances == null) {
+            throw new IllegalArgumentException("LOD distances must not be null");
+        }
+        this.lodDistances = distances;
+    }
 
-        for (int face : tris) {
-            String mtlName = model.faceMTLs[face];
-            Material currentMTL = model.materials.get(mtlName);
-            float r = 0;
-            float g = 0;
-            float b = 0;
-            float a = 1;
+    /** Distance from the camera to the current origin, taken from the modelview matrix */
+    public static double cameraDistance() {
+        modelView.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, modelView);
+        float x = modelView.get(12);
+        float y = modelView.get(13);
+        float z = modelView.get(14);
+        return Math.sqrt(x * x + y * y + z * z);
+    }
 
-            OBJTextureSheet texture = textures.get(null);
+    private VBA[] lodVBAs(double distance) {
+        VBA[] selected = createPages();
+        if (lodVBAs != null) {
+            int levels = Math.min(lodVBAs.length, lodDistances.length);
+            for (int i = 0; i < levels && distance >= lodDistances[i]; i++) {
+                selected = lodVBAs[i];
+            }
+        }
+        return selected;
+    }
 
-            if (currentMTL != null) {
-                if (currentMTL.Kd != null) {
-                    float mult = 1 - model.darken * 5;
+    private VBA[] createPages() {
+        createVBA();
+        return pages;
+    }
 
-                    if (texture.isFlatMaterial(mtlName)) {
-                        r = 1;
-                        g = 1;
-                        b = 1;
-                    } else {
-                        r = currentMTL.Kd.get(0);
-                        g = currentMTL.Kd.get(1);
-                        b = currentMTL.Kd.get(2);
-                    }
+    /** VBA for the first texture sheet page (the whole model unless the sheet spilled over into more pages) */
+    @SuppressWarnings("deprecation")
+    public VBA createVBA() {
+        if (vba != null) {
+            return vba;
+        }
 
-                    r = Math.max(0, r * mult);
-                    g = Math.max(0, g * mult);
-                    b = Math.max(0, b * mult);
-                    a = currentMTL.Kd.get(3);
-                }
-            } else {
-                ModCore.warn(String.format("Missing group %s", mtlName));
-            }
+        int pageCount = textures.get(null).pages();
+        MaterialTable materials = new MaterialTable(model, textures.get(null));
+        pages = new VBA[pageCount];
+        for (int page = 0; page < pageCount; page++) {
+            pages[page] = buildVBA(model.groups, null, materials, page, pageCount);
+        }
 
-            for (int[] point : model.points(face)) {
-                Vec2f vt = point[1] != -1 ? model.vertexTextures(point[1]) : null;
-
-                if (vt != null) {
-                    vt = new Vec2f(
-                            texture.convertU(mtlName, vt.x - model.offsetU[face]),
-                            texture.convertV(mtlName, -(vt.y) - model.offsetV[face])
-                    );
-                } else {
-                    vt = new Vec2f(
-                            texture.convertU(mtlName, 0),
-                            texture.convertV(mtlName, 0)
-                    );
+        if (model.lods != null) {
+            lodVBAs = new VBA[model.lods.size()][];
+            double[] distances = new double[lodVBAs.length];
+            Vec3d min = model.minOfGroup(model.groups());
+            Vec3d max = model.maxOfGroup(model.groups());
+            double radius = max.subtract(min).length() / 2;
+            for (int i = 0; i < lodVBAs.length; i++) {
+                OBJLOD lod = model.lods.get(i);
+                lodVBAs[i] = new VBA[pageCount];
+                for (int page = 0; page < pageCount; page++) {
+                    lodVBAs[i][page] = buildVBA(lod.groups, lod.vertices, materials, page, pageCount);
                 }
-
-                boolean hasVn = point[2] != -1;
-                vba.addPoint(
-                        model.vertex(point[0], OBJModel.Vert.X),
-                        model.vertex(point[0], OBJModel.Vert.Y),
-                        model.vertex(point[0], OBJModel.Vert.Z),
-                        hasVn,
-                        hasVn ? model.vertexNormal(point[2], OBJModel.Vert.X) : 0,
-                        hasVn ? model.vertexNormal(point[2], OBJModel.Vert.Y) : 0,
-                        hasVn ? model.vertexNormal(point[2], OBJModel.Vert.Z) : 0,
-                        vt, r, g, b, a);
+                // Roughly keep the on screen error constant
+                distances[i] = radius * LOD_DISTANCE / Math.sqrt(lod.ratio);
+            }
+            if (lodDistances == null) {
+                lodDistances = distances;
             }
+            model.lods = null;
         }
 
         model.vertexNormals = null;
         model.vertexTextures = null;
         model.offsetU = null;
         model.offsetV = null;
+        model.mtlNames = null;
+        model.faceMTLIdx = null;
         model.faceMTLs = null;
         model.faceVerts = null;
         model.vertices = null;
 
+        vba = pages[0];
         return vba;
     }
 
+    /**
+     * @param groups faces to include per group
+     * @param corners optional vertex index per triangle corner (LODs), overrides the face's own vertices
+     * @param page only faces whose material lives on this texture sheet page are included
+     */
+    private VBA buildVBA(Map<String, int[]> groups, Map<String, int[]> corners, MaterialTable materials, int page, int pageCount) {
+        int[] faceMTLIdx = model.faceMTLIdx;
+        int[] mtlPages = materials.pages;
+        int count = 0;
+        Map<String, Pair<Integer, Integer>> groupIdx = new LinkedHashMap<>();
+
+        for (String group : groups.keySet()) {
+            if (group.matches(".*EXHAUST_\\d.*") || group.matches(".*CHIMNEY_\\d.*") || group.matches(".*PRESSURE_VALVE_\\d.*") || group.matches(".*CHIMINEY_\\d.*")) {
+                //Skip particle emitters
+                continue;
+            }
+            int faces = 0;
+            for (int face : groups.get(group)) {
+                if (pageCount == 1 || mtlPages[faceMTLIdx[face]] == page) {
+                    faces++;
+                }
+            }
+            groupIdx.put(group, Pair.of(count, faces));
+            count += faces;
+        }
+
+        // Lay out the buffer: the face in each slot and the vertex of each of its corners
+        int[] faceVerts = model.faceVerts;
+        int[] slotFaces = new int[count];
+        int[] slotVertices = new int[count * 3];
+        int slot = 0;
+        for (String group : groupIdx.keySet()) {
+            int[] faces = groups.get(group);
+            int[] groupCorners = corners != null ? corners.get(group) : null;
+            for (int tri = 0; tri < faces.length; tri++) {
+                int face = faces[tri];
+                if (pageCount != 1 && mtlPages[faceMTLIdx[face]] != page) {
+                    continue;
+                }
+                slotFaces[slot] = face;
+                for (int i = 0; i < 3; i++) {
+                    slotVertices[slot * 3 + i] = groupCorners != null ? groupCorners[tri * 3 + i] : faceVerts[face * 9 + i * 3];
+                }
+                slot++;
+            }
+        }
+
+        VBA vba = new VBA(count, groupIdx, true, format);
+        // Every slot writes its own 3 points, so slices of them can be filled at the same time
+        Emitter emitter = new Emitter(model, materials, vba, slotFaces, slotVertices);
+        if (count <= EmitTask.SLICE) {
+            // Not worth handing off to the pool
+            emitter.emit(0, count);
+        } else {
+            ForkJoinPool.commonPool().invoke(new EmitTask(emitter, 0, count));
+        }
+        vba.finish(count * 3);
+        return vba;
+    }
+
+    /** Writes the points of buffer slots, plain locals and arrays only since this runs for every corner of every triangle */
+    private static final class Emitter {
+        private final VBA vba;
+        private final int[] slotFaces;
+        private final int[] slotVertices;
+        private final float[] vertices;
+        private final float[] normals;
+        private final float[] uvs;
+        private final int[] faceVerts;
+        private final int[] faceMTLIdx;
+        private final byte[] offsetU;
+        private final byte[] offsetV;
+        private final float[] transforms;
+        private final float[] colors;
+
+        private Emitter(OBJModel model, MaterialTable materials, VBA vba, int[] slotFaces, int[] slotVertices) {
+            this.vba = vba;
+            this.slotFaces = slotFaces;
+            this.slotVertices = slotVertices;
+            this.vertices = model.vertices;
+            this.normals = model.vertexNormals;
+            this.uvs = model.vertexTextures;
+            this.faceVerts = model.faceVerts;
+            this.faceMTLIdx = model.faceMTLIdx;
+            this.offsetU = model.offsetU;
+            this.offsetV = model.offsetV;
+            this.transforms = materials.transforms;
+            this.colors = materials.colors;
+        }
+
+        private void emit(int start, int end) {
+            for (int slot = start; slot < end; slot++) {
+                int face = slotFaces[slot];
+                int mtl = faceMTLIdx[face];
+                int t = mtl * 6;
+                int c = mtl * 4;
+
+                for (int i = 0; i < 3; i++) {
+                    int point = face * 9 + i * 3;
+                    int vertex = slotVertices[slot * 3 + i];
+                    int vt = faceVerts[point + 1];
+                    int vn = faceVerts[point + 2];
+
+                    float u = vt != -1 ? uvs[vt * 2] - offsetU[face] : 0;
+                    float v = vt != -1 ? -uvs[vt * 2 + 1] - offsetV[face] : 0;
+
+                    boolean hasVn = vn != -1;
+                    vba.setPoint(slot * 3 + i,
+                            vertices[vertex * 3],
+                            vertices[vertex * 3 + 1],
+                            vertices[vertex * 3 + 2],
+                            hasVn,
+                            hasVn ? normals[vn * 3] : 0,
+                            hasVn ? normals[vn * 3 + 1] : 0,
+                            hasVn ? normals[vn * 3 + 2] : 0,
+                            transforms[t] * u + transforms[t + 1] * v + transforms[t + 2],
+                            transforms[t + 3] * u + transforms[t + 4] * v + transforms[t + 5],
+                            colors[c], colors[c + 1], colors[c + 2], colors[c + 3]);
+                }
+            }
+        }
+    }
+
+    /** Splits [start, end) in halves until the slices are small enough to emit directly */
+    private static final class EmitTask extends RecursiveAction {
+        // Smaller slices cost more in task overhead than they gain
+        private static final int SLICE = 8192;
+
+        private final Emitter emitter;
+        private final int start;
+        private final int end;
+
+        private EmitTask(Emitter emitter, int start, int end) {
+            this.emitter = emitter;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= SLICE) {
+                emitter.emit(start, end);
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new EmitTask(emitter, start, mid), new EmitTask(emitter, mid, end));
+        }
+    }
+
+    /** Release this render, shared renders (OBJRegistry) are only freed once every user has released them */
     public void free() {
-        for (OBJTextureSheet texture : textures.values()) {
+        if (registryEntry != null && !OBJRegistry.release(this)) {
+            return;
+        }
+        // Variants which fell back share the default sheet
+        Set<OBJTextureSheet> sheets = Collections.newSetFromMap(new IdentityHashMap<>());
+        sheets.addAll(textures.values());
+        for (OBJTextureSheet texture : sheets) {
             texture.freeGL();
         }
-        if (vba != null) {
-            vba.free();
+        if (pages != null) {
+            for (VBA page : pages) {
+                page.free();
+            }
+        }
+        if (lodVBAs != null) {
+            for (VBA[] lod : lodVBAs) {
+                for (VBA page : lod) {
+                    page.free();
+                }
+            }
         }
     }
 
@@ -1,26 +1,26 @@
 package cam72cam.mod.render.obj;
 
+import cam72cam.mod.MinecraftClient;
 import cam72cam.mod.ModCore;
 import cam72cam.mod.model.obj.Material;
 import cam72cam.mod.model.obj.OBJModel;
 import cam72cam.mod.model.obj.Vec2f;
 import cam72cam.mod.render.GLTexture;
 import cam72cam.mod.render.GPUInfo;
+import cam72cam.mod.render.MipMaps;
 import cam72cam.mod.render.OpenGL;
 import cam72cam.mod.resource.Identifier;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
 import net.minecraft.client.renderer.texture.TextureUtil;
 import net.minecraft.util.math.MathHelper;
-import org.lwjgl.opengl.GL11;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.awt.image.DataBufferInt;
+import java.io.*;
 import java.util.*;
 import java.util.List;
 
@@ -28,19 +28,54 @@ import java.util.List;
  * Object texture sheet that contains all textures for a given model
  *
  * The fun part is it auto-expands entries in the sheet to support texture wrapping
+ *
+ * Each page is cached as a pyramid of separate textures (full, 1/2, 1/4, ... down to BASE_AREA texels) which are
+ * loaded and freed independently.  The smallest level is always loaded and stands in for the rest, SheetStreamer loads
+ * sharper levels for nearby models one step at a time.
  */
 public class OBJTextureSheet {
     private static GLTexture empty;
-
-    private final GLTexture icon;
-    private final GLTexture texture;
+    // Bump when the layout algorithm changes, invalidates cached sheets
+    private static final int LAYOUT_VERSION = 4;
+    // Pyramids stop at the first level with no more texels than this
+    private static final int BASE_AREA = 256 * 256;
+    // bindIcon doesn't go sharper than this
+    private static final int ICON_AREA = 1024 * 1024;
+    private static int mipLevels = 5;
+    private static boolean compress = false;
+
+    // [page][level], level 0 is full resolution
+    private final GLTexture[][] levels;
     private final boolean isCached;
     private Map<String, SubTexture> mappings;
-    private int sheetWidth = 0;
-    private int sheetHeight = 0;
+    private int[] pageWidths;
+    private int[] pageHeights;
     private OBJModel model;
     public long hash = 0;
 
+    /** Max mip levels (including the base) generated for new sheets, 1 disables mipmapping */
+    public static void setMipLevels(int levels) {
+        mipLevels = Math.max(1, levels);
+    }
+
+    /** Store new sheets as BC1/BC3 blocks, 4-8x less VRAM at some loss of quality */
+    public static void setCompression(boolean enabled) {
+        compress = enabled;
+    }
+
+    /**
+     * Limits for full resolution sheet pages, anything past them is drawn with its icon
+     *
+     * @param memoryMB total size of the full resolution pages in view
+     * @param frameMillis time per frame spent uploading pages
+     * @param distance pages of models further away than this (in blocks) are never loaded
+     */
+    public static void setStreamingBudget(int memoryMB, float frameMillis, double distance) {
+        SheetStreamer.setMemoryBudgetMB(memoryMB);
+        SheetStreamer.setFrameBudget(frameMillis);
+        SheetStreamer.setMaxDistance(distance);
+    }
+
     OBJTextureSheet(OBJModel model, String texPrefix, int cacheSeconds) {
         this.model = model;
 
@@ -55,7 +90,7 @@ public class OBJTextureSheet {
         for (String groupName : model.groups.keySet()) {
             int[] quads = model.groups.get(groupName);
             for (int face : quads) {
-                String mtlName = model.faceMTLs[face];
+                String mtlName = model.faceMTL(face);
                 if (missing.contains(mtlName)) {
                     // Already warned about it
                     continue;
@@ -72,12 +107,7 @@ public class OBJTextureSheet {
                     if (!mappings.containsKey(key)) {
                         try {
                             Identifier kd = model.materials.get(mtlName).texKd;
-                            if (texPrefix != null) {
-                                String[] sp = kd.toString().split("/");
-                                String fname = sp[sp.length - 1];
-                                kd = new Identifier(kd.toString().replaceAll(fname, texPrefix + "/" + fname));
-                            }
-                            mappings.put(key, new SubTexture(kd, model.materials.get(mtlName).texKd));
+                            mappings.put(key, new SubTexture(variant(kd, texPrefix), kd));
                         } catch (IOException e) {
                             e.printStackTrace();
                             missing.add(mtlName);
@@ -108,130 +138,337 @@ public class OBJTextureSheet {
                 }
             }
         }
-        int maxSize = GL11.glGetInteger(GL11.GL_MAX_TEXTURE_SIZE);
-        int currentX = 0;
-        int currentY = 0;
-        int rowHeight = 0;
+        int maxSize = GPUInfo.maxTextureSize();
+        // The layout depends on the GPU limit and the packer
+        hash += maxSize * 31L + LAYOUT_VERSION;
+        // As do the texture settings
+        hash = hash * 31 + mipLevels * 2 + (compress ? 1 : 0);
 
-        List<SubTexture> texs = new ArrayList<>(mappings.values());
+        String path = model.modelLoc.getPath().replace("/", ".") + texPrefix;
+        // A hit only costs the resource hashing above and a few small header reads
+        this.isCached = readLayout(path);
+        BufferedImage[] images = isCached ? null : layout(maxSize);
+        if (!isCached) {
+            writeLayout(path);
+        }
 
-        texs.sort((SubTexture a, SubTexture b) -> b.size().compareTo(a.size()));
+        int pages = pageWidths.length;
+        this.levels = new GLTexture[pages][];
+        for (int page = 0; page < pages; page++) {
+            int width = pageWidths[page];
+            int height = pageHeights[page];
+            int count = pyramidLevels(width, height);
+            List<Rectangle> regions = regions(page);
+            List<int[]> pyramid = null;
+            if (!isCached) {
+                int[] argb = ((DataBufferInt) images[page].getRaster().getDataBuffer()).getData();
+                pyramid = MipMaps.generate(argb, width, height, regions, count);
+            }
 
-        for (SubTexture tex : texs) {
-            if (currentX + tex.getAbsoluteWidth() > maxSize) {
-                currentX = 0;
-                currentY += rowHeight;
-                rowHeight = 0;
+            levels[page] = new GLTexture[count];
+            String pagePath = pagePath(path, page);
+            for (int level = count - 1; level >= 0; level--) {
+                int levelWidth = Math.max(1, width >> level);
+                int levelHeight = Math.max(1, height >> level);
+                BufferedImage image = pyramid == null ? null : level == 0 ? images[page] : toImage(pyramid.get(level), levelWidth, levelHeight);
+                // The smallest level is the fallback for the others, write it right away and keep it around longer
+                boolean base = level == count - 1;
+                // Mips never go smaller than the base level, further than that the sheet is not drawn sharper anyway
+                levels[page][level] = new GLTexture(levelPath(pagePath, level), image,
+                        base ? cacheSeconds * 2 : cacheSeconds, base, hash,
+                        Math.min(mipLevels, count - level), MipMaps.regions(regions, width, height, level), compress);
             }
-            rowHeight = Math.max(rowHeight, tex.getAbsoluteHeight());
-            currentX += tex.getAbsoluteWidth();
-            this.sheetWidth = Math.max(this.sheetWidth, currentX);
-            this.sheetHeight = Math.max(this.sheetHeight, currentY + rowHeight);
+            // Replaced by the pyramid
+            GLTexture.cacheFile(pagePath + "_icon.tex").delete();
         }
 
-        sheetWidth = Math.max(sheetWidth, 1);
-        sheetHeight = Math.max(sheetHeight, 1);
-        BufferedImage image = new BufferedImage(sheetWidth, sheetHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D graphics = image.createGraphics();
+        // Replaced by the hash in the texture headers
+        GLTexture.cacheFile(path + ".sha256").delete();
+        // Sheet and icon from before the pyramid
+        GLTexture.cacheFile(path + ".png").delete();
+        GLTexture.cacheFile(path + "_icon.png").delete();
+
+        if (MinecraftClient.isRenderThread()) {
+            ModCore.info(GPUInfo.debug().replace("%", "%%"));
+        }
+    }
+
+    /** Texture a material uses in the texPrefix variant (a folder next to the default texture) */
+    static Identifier variant(Identifier kd, String texPrefix) {
+        if (texPrefix == null || texPrefix.isEmpty()) {
+            return kd;
+        }
+        String[] sp = kd.toString().split("/");
+        String fname = sp[sp.length - 1];
+        return new Identifier(kd.toString().replaceAll(fname, texPrefix + "/" + fname));
+    }
+
+    /** Texture data, the default texture if the variant doesn't have its own */
+    static InputStream open(Identifier tex, Identifier fallback) throws IOException {
+        try {
+            return tex.getLastResourceStream();
+        } catch (FileNotFoundException ex) {
+            return fallback.getLastResourceStream();
+        }
+    }
+
+    /** Sum of the content hashes of every texture the texPrefix sheet of these materials can use */
+    static long textureHash(Collection<Material> materials, String texPrefix) {
+        Set<String> seen = new HashSet<>();
+        long hash = 0;
+        for (Material mtl : materials) {
+            if (mtl.texKd == null || !seen.add(mtl.texKd.toString())) {
+                continue;
+            }
+            try (HashingInputStream input = new HashingInputStream(Hashing.sha256(), open(variant(mtl.texKd, texPrefix), mtl.texKd))) {
+                ByteStreams.exhaust(input);
+                hash += input.hash().asLong();
+            } catch (IOException e) {
+                // Missing, left out of the sheet as well
+            }
+        }
+        return hash;
+    }
 
+    /** Decode every texture, pack them and draw the sheet pages */
+    private BufferedImage[] layout(int maxSize) {
+        List<SubTexture> texs = new ArrayList<>(mappings.values());
+        List<TexturePacker.Rect> rects = new ArrayList<>();
+        for (SubTexture tex : texs) {
+            tex.decode();
+            tex.rect = new TexturePacker.Rect(tex.getAbsoluteWidth(), tex.getAbsoluteHeight());
+            rects.add(tex.rect);
+        }
+        // Entries are aligned to the coarsest level of the page (pyramid or mip) so they never share a texel, larger
+        // pages have more pyramid levels so pack again until the alignment holds for every page
+        int align = 1 << (mipLevels - 1);
+        TexturePacker packer;
+        while (true) {
+            packer = new TexturePacker(maxSize, true, Math.min(align, maxSize));
+            packer.pack(rects);
+            int needed = align;
+            for (int page = 0; page < packer.pages(); page++) {
+                needed = Math.max(needed, 1 << (pyramidLevels(packer.pageWidth(page), packer.pageHeight(page)) - 1));
+            }
+            if (needed <= align || align >= maxSize) {
+                break;
+            }
+            align = needed;
+        }
 
-        currentX = 0;
-        currentY = 0;
-        rowHeight = 0;
+        int pages = packer.pages();
+        pageWidths = new int[pages];
+        pageHeights = new int[pages];
+        BufferedImage[] images = new BufferedImage[pages];
+        Graphics2D[] graphics = new Graphics2D[pages];
+        for (int page = 0; page < pages; page++) {
+            pageWidths[page] = packer.pageWidth(page);
+            pageHeights[page] = packer.pageHeight(page);
+            images[page] = new BufferedImage(pageWidths[page], pageHeights[page], BufferedImage.TYPE_INT_ARGB);
+            graphics[page] = images[page].createGraphics();
+        }
 
         ModCore.debug("Max Tex Size: %s", maxSize);
-        if (sheetWidth > maxSize || sheetHeight > maxSize)
-            ModCore.warn("Sheet WxH: %sx%s", sheetWidth, sheetHeight);
+        ModCore.info("Packed %s textures for %s into %s sheet(s) (%sx%s), %s%% used",
+                texs.size(), model.modelLoc, pages, pageWidths[0], pageHeights[0], (int) (packer.efficiency() * 100));
 
         for (SubTexture tex : texs) {
             ModCore.debug("%s copies %s x %s", tex.tex, tex.copiesU(), tex.copiesV());
             ModCore.debug("%s  actual %s x %s", tex.tex, tex.getAbsoluteWidth(), tex.getAbsoluteHeight());
-            if (tex.getAbsoluteWidth() > maxSize) {
-                ModCore.error("BAD TEXTURE, HACKING...");
-            }
-            if (currentX + tex.getAbsoluteWidth() > maxSize) {
-                currentX = 0;
-                currentY += rowHeight;
-                rowHeight = 0;
-                ModCore.debug("NEXT_LINE");
+            if (Math.max(tex.getAbsoluteWidth(), tex.getAbsoluteHeight()) > maxSize) {
+                ModCore.error("Texture %s (%sx%s) does not fit in the max texture size %s, cropping", tex.tex, tex.getAbsoluteWidth(), tex.getAbsoluteHeight(), maxSize);
             }
-            rowHeight = Math.max(rowHeight, tex.getAbsoluteHeight());
-            tex.upload(graphics, currentX, currentY);
-            currentX += tex.getAbsoluteWidth();
+            tex.upload(graphics[tex.rect.page]);
         }
+        for (Graphics2D g : graphics) {
+            g.dispose();
+        }
+        return images;
+    }
 
-        String path = model.modelLoc.getPath().replace("/", ".") + texPrefix;
-        boolean cached = GLTexture.cacheFile(path + ".png").exists() && GLTexture.cacheFile(path + ".sha256").exists();
+    /** Restore the sheet layout saved by writeLayout, false if it is missing or stale */
+    private boolean readLayout(String path) {
+        File file = GLTexture.cacheFile(path + ".layout");
+        if (!file.exists()) {
+            return false;
+        }
 
-        if (cached) {
-            try
-            {
-                float origHash = Float.parseFloat(new String(Files.readAllBytes(GLTexture.cacheFile(path + ".sha256").toPath())));
-                cached = origHash == hash;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readLong() != hash) {
+                return false;
             }
-            catch (IOException e)
-            {
-                cached = false;
-                ModCore.catching(e);
+            int pages = input.readInt();
+            int[] widths = new int[pages];
+            int[] heights = new int[pages];
+            for (int page = 0; page < pages; page++) {
+                widths[page] = input.readInt();
+                heights[page] = input.readInt();
+                // The page textures must be from the same build of the sheet
+                for (int level = 0; level < pyramidLevels(widths[page], heights[page]); level++) {
+                    if (!Objects.equals(GLTexture.cachedHash(levelPath(pagePath(path, page), level)), hash)) {
+                        return false;
+                    }
+                }
             }
-        }
 
+            int count = input.readInt();
+            if (count != mappings.size()) {
+                return false;
+            }
+            Map<SubTexture, TexturePacker.Rect> rects = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                SubTexture tex = mappings.get(input.readUTF());
+                int realWidth = input.readInt();
+                int realHeight = input.readInt();
+                int copiesU = input.readInt();
+                int copiesV = input.readInt();
+                if (tex == null || tex.copiesU() != copiesU || tex.copiesV() != copiesV) {
+                    return false;
+                }
+                TexturePacker.Rect rect = new TexturePacker.Rect(realWidth * copiesU, realHeight * copiesV);
+                rect.page = input.readInt();
+                rect.x = input.readInt();
+                rect.y = input.readInt();
+                rect.rotated = input.readBoolean();
+                if (rect.page >= pages) {
+                    return false;
+                }
+                tex.realWidth = realWidth;
+                tex.realHeight = realHeight;
+                rects.put(tex, rect);
+            }
 
-        this.isCached = cached;
-
-        this.texture = new GLTexture(path + ".png", isCached ? null : image, cacheSeconds, false);
+            for (Map.Entry<SubTexture, TexturePacker.Rect> entry : rects.entrySet()) {
+                SubTexture tex = entry.getKey();
+                tex.rect = entry.getValue();
+                tex.originX = tex.rect.x;
+                tex.originY = tex.rect.y;
+                tex.data = null;
+                tex.image = null;
+            }
+            pageWidths = widths;
+            pageHeights = heights;
+            return true;
+        } catch (IOException e) {
+            ModCore.warn("Unable to read texture sheet layout %s: %s", file, e.getMessage());
+            return false;
+        }
+    }
 
-        int iconSize = 1024;
-        if (image.getWidth() * image.getHeight() > iconSize * iconSize) {
-            float scale = (float) (iconSize * iconSize) / (image.getWidth() * image.getHeight());
-            icon = new GLTexture(path + "_icon.png", isCached ? null : scaleImage(image, (int) (image.getWidth() * scale), (int) (image.getHeight() * scale)), 30, true);
-        } else {
-            icon = new GLTexture(path + "_icon.png", isCached ? null : image, cacheSeconds * 2, true);
+    private void writeLayout(String path) {
+        File file = GLTexture.cacheFile(path + ".layout");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeLong(hash);
+            output.writeInt(pageWidths.length);
+            for (int page = 0; page < pageWidths.length; page++) {
+                output.writeInt(pageWidths[page]);
+                output.writeInt(pageHeights[page]);
+            }
+            output.writeInt(mappings.size());
+            for (Map.Entry<String, SubTexture> entry : mappings.entrySet()) {
+                SubTexture tex = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeInt(tex.realWidth);
+                output.writeInt(tex.realHeight);
+                output.writeInt(tex.copiesU());
+                output.writeInt(tex.copiesV());
+                output.writeInt(tex.rect.page);
+                output.writeInt(tex.rect.x);
+                output.writeInt(tex.rect.y);
+                output.writeBoolean(tex.rect.rotated);
+            }
+        } catch (IOException e) {
+            ModCore.catching(e);
+            file.delete();
         }
+    }
 
-        if (!isCached) {
-            try {
-                Files.write(GLTexture.cacheFile(path + ".sha256").toPath(), (hash + "").getBytes(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-            } catch (IOException e) {
-                ModCore.catching(e);
+    /** Areas of each entry on a page, mip levels are generated per entry so they don't bleed into each other */
+    private List<Rectangle> regions(int page) {
+        List<Rectangle> regions = new ArrayList<>();
+        for (SubTexture tex : mappings.values()) {
+            if (tex.rect.page == page) {
+                regions.add(new Rectangle(tex.rect.x, tex.rect.y, tex.rect.packedWidth(), tex.rect.packedHeight()));
             }
         }
+        return regions;
+    }
+
+    private static String pagePath(String path, int page) {
+        return page == 0 ? path : path + "_" + page;
+    }
 
-        ModCore.info(GPUInfo.debug().replace("%", "%%"));
+    private static String levelPath(String pagePath, int level) {
+        return (level == 0 ? pagePath : pagePath + "_level" + level) + ".tex";
     }
 
-    private BufferedImage scaleImage(BufferedImage image, int x, int y) {
-        BufferedImage target = new BufferedImage(x, y, image.getType());
-        Graphics2D g = target.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.drawImage(image, 0, 0, x, y, 0, 0, image.getWidth(), image.getHeight(), null);
-        return target;
+    /** Halve until at most BASE_AREA texels are left */
+    private static int pyramidLevels(int width, int height) {
+        int levels = 1;
+        while ((long) Math.max(1, width >> (levels - 1)) * Math.max(1, height >> (levels - 1)) > BASE_AREA &&
+                (width >> levels) > 0 && (height >> levels) > 0) {
+            levels++;
+        }
+        return levels;
+    }
+
+    private static BufferedImage toImage(int[] argb, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        System.arraycopy(argb, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, argb.length);
+        return image;
     }
 
-    float convertU(String mtlName, float u) {
+    private SubTexture lookup(String mtlName) {
         if (model.materials.containsKey(mtlName)) {
             Identifier kd = model.materials.get(mtlName).texKd;
             if (kd != null) {
                 mtlName = kd.toString();
             }
         }
-        if (mappings.containsKey(mtlName)) {
-            return mappings.get(mtlName).convertU(u);
+        return mappings.get(mtlName);
+    }
+
+    /**
+     * Affine map from a material's (u, v) to the sheet, the matrix handles entries stored rotated:
+     * sheetU = dst[0] * u + dst[1] * v + dst[2], sheetV = dst[3] * u + dst[4] * v + dst[5]
+     */
+    void transform(String mtlName, float[] dst, int offset) {
+        SubTexture tex = lookup(mtlName);
+        if (tex != null) {
+            tex.transform(dst, offset);
+        } else {
+            Arrays.fill(dst, offset, offset + 6, 0);
         }
-        return 0;
     }
 
-    float convertV(String mtlName, float v) {
-        if (model.materials.containsKey(mtlName)) {
-            Identifier kd = model.materials.get(mtlName).texKd;
-            if (kd != null) {
-                mtlName = kd.toString();
-            }
+    /** Sheet page holding this material */
+    int page(String mtlName) {
+        SubTexture tex = lookup(mtlName);
+        return tex != null ? tex.rect.page : 0;
+    }
+
+    int pages() {
+        return levels.length;
+    }
+
+    /** True if every entry sits at the same place as in other, so UVs built against one are valid for both */
+    boolean sameLayout(OBJTextureSheet other) {
+        if (!Arrays.equals(pageWidths, other.pageWidths) || !Arrays.equals(pageHeights, other.pageHeights) ||
+                !mappings.keySet().equals(other.mappings.keySet())) {
+            return false;
         }
-        if (mappings.containsKey(mtlName)) {
-            return mappings.get(mtlName).convertV(v);
+        float[] mine = new float[6];
+        float[] theirs = new float[6];
+        for (Map.Entry<String, SubTexture> entry : mappings.entrySet()) {
+            SubTexture tex = entry.getValue();
+            SubTexture otherTex = other.mappings.get(entry.getKey());
+            tex.transform(mine, 0);
+            otherTex.transform(theirs, 0);
+            if (tex.rect.page != otherTex.rect.page || !Arrays.equals(mine, theirs)) {
+                return false;
+            }
         }
-        return 0;
+        return true;
     }
 
     boolean isFlatMaterial(String mtlName) {
@@ -248,29 +485,60 @@ public class OBJTextureSheet {
     }
 
     void freeGL() {
-        texture.freeGL();
-        icon.freeGL();
+        for (GLTexture[] page : levels) {
+            for (GLTexture level : page) {
+                level.freeGL();
+            }
+        }
     }
 
     public void dealloc() {
-        texture.dealloc();
-        icon.dealloc();
+        for (GLTexture[] page : levels) {
+            for (GLTexture level : page) {
+                level.dealloc();
+            }
+        }
     }
 
-    OpenGL.With bind() {
-        if (!texture.isLoaded()) {
-            icon.tryUpload(); //hit the queue first
-        }
+    OpenGL.With bind(double distance, double size) {
+        return bind(0, distance, size);
+    }
 
-        if (texture.tryUpload()) {
-            return texture.bind(false);
-        }
-        //System.out.println("DEFER... " + texture.info());
-        return bindIcon();
+    /**
+     * Bind the sharpest loaded level of the page
+     *
+     * Loading is left to SheetStreamer, which picks the level from the distance and size of the model.
+     */
+    OpenGL.With bind(int page, double distance, double size) {
+        SheetStreamer.request(levels[page], distance, size);
+        return bindLoaded(page, 0);
     }
 
     OpenGL.With bindIcon() {
-        if (!icon.tryUpload()) {
+        return bindIcon(0);
+    }
+
+    /** Bind a level of at most ICON_AREA texels (or a smaller one while it loads) */
+    OpenGL.With bindIcon(int page) {
+        GLTexture[] pyramid = levels[page];
+        int icon = 0;
+        while (icon < pyramid.length - 1 && (long) pageWidths[page] * pageHeights[page] >> (2 * icon) > ICON_AREA) {
+            icon++;
+        }
+        pyramid[icon].tryUpload();
+        return bindLoaded(page, icon);
+    }
+
+    /** Sharpest loaded level no sharper than finest, the smallest level is loaded on demand */
+    private OpenGL.With bindLoaded(int page, int finest) {
+        GLTexture[] pyramid = levels[page];
+        for (int level = finest; level < pyramid.length - 1; level++) {
+            if (pyramid[level].isLoaded()) {
+                return pyramid[level].bind(false);
+            }
+        }
+        GLTexture base = pyramid[pyramid.length - 1];
+        if (!base.tryUpload()) {
             if (empty == null) {
                 BufferedImage ei = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
                 Graphics gfx = ei.getGraphics();
@@ -280,7 +548,7 @@ public class OBJTextureSheet {
             }
             return empty.bind(true);
         }
-        return icon.bind(false);
+        return base.bind(false);
     }
 
     private class SubTexture {
@@ -295,26 +563,20 @@ public class OBJTextureSheet {
         private int maxU = 1;
         private int maxV = 1;
         private boolean isFlatMaterial;
+        private TexturePacker.Rect rect;
+        // Encoded source image, until decoded or the cached layout is used
+        private byte[] data;
 
         SubTexture(Identifier tex, Identifier fallback) throws IOException {
-            InputStream input;
-            try {
-                input = tex.getLastResourceStream();
-            } catch (FileNotFoundException ex) {
-                input = fallback.getLastResourceStream();
+            InputStream input = open(tex, fallback);
+            // Hash the encoded bytes, decoding is only needed if the cached sheet is stale
+            try (InputStream stream = input) {
+                data = ByteStreams.toByteArray(stream);
             }
-            HashingInputStream hashed = new HashingInputStream(Hashing.sha256(), input);
-            BufferedImage image = TextureUtil.readBufferedImage(hashed);
-            hash += hashed.hash().asLong();
-
-
-            realWidth = image.getWidth();
-            realHeight = image.getHeight();
+            hash += Hashing.sha256().hashBytes(data).asLong();
 
             this.tex = tex;
             isFlatMaterial = false;
-
-            this.image = image;
         }
 
         SubTexture(String name, int r, int g, int b, int a) {
@@ -336,6 +598,21 @@ public class OBJTextureSheet {
             isFlatMaterial = true;
         }
 
+        void decode() {
+            if (data == null) {
+                return;
+            }
+            try {
+                image = TextureUtil.readBufferedImage(new ByteArrayInputStream(data));
+            } catch (IOException e) {
+                ModCore.warn("Unable to decode texture %s: %s", tex, e.getMessage());
+                image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB);
+            }
+            data = null;
+            realWidth = image.getWidth();
+            realHeight = image.getHeight();
+        }
+
         Vec2f extendSpace(List<Vec2f> vts) {
             float vminU = vts.get(0).x;
             float vmaxU = vts.get(0).x;
@@ -366,30 +643,41 @@ public class OBJTextureSheet {
             return offset;
         }
 
-        void upload(Graphics2D graphics, int originX, int originY) {
-            this.originX = originX;
-            this.originY = originY;
-
-            if (isCached) {
-                image = null;
-                return;
+        void upload(Graphics2D graphics) {
+            this.originX = rect.x;
+            this.originY = rect.y;
+
+            Graphics2D target = graphics;
+            // Space left on the page, in the entry's own (unrotated) orientation
+            int limitX = pageWidths[rect.page] - originX;
+            int limitY = pageHeights[rect.page] - originY;
+            if (rect.rotated) {
+                // Stored transposed, transform swaps the axes to match
+                target = (Graphics2D) graphics.create();
+                target.transform(new AffineTransform(0, 1, 1, 0, originX, originY));
+                limitX = pageHeights[rect.page] - originY;
+                limitY = pageWidths[rect.page] - originX;
+            } else {
+                target = (Graphics2D) graphics.create();
+                target.translate(originX, originY);
             }
 
             for (int cU = 0; cU < copiesU(); cU++) {
                 for (int cV = 0; cV < copiesV(); cV++) {
-                    int offX = originX + this.realWidth * cU;
-                    int offY = originY + this.realHeight * cV;
+                    int offX = this.realWidth * cU;
+                    int offY = this.realHeight * cV;
 
-                    if (offX + realWidth > sheetWidth) {
-                        return;
+                    if (offX + realWidth > limitX) {
+                        continue;
                     }
-                    if (offY + realHeight > sheetHeight) {
-                        return;
+                    if (offY + realHeight > limitY) {
+                        continue;
                     }
 
-                    graphics.drawImage(this.image, null, offX, offY);
+                    target.drawImage(this.image, null, offX, offY);
                 }
             }
+            target.dispose();
 
             this.image = null;
         }
@@ -410,18 +698,27 @@ public class OBJTextureSheet {
             return realHeight * copiesV();
         }
 
-        float convertU(float relativeU) {
+        void transform(float[] dst, int offset) {
+            float pageWidth = pageWidths[rect.page];
+            float pageHeight = pageHeights[rect.page];
+            // Texels per unit of u/v, transposed entries swap the axes
+            float scaleX = rect.rotated ? realHeight : realWidth;
+            float scaleY = rect.rotated ? realWidth : realHeight;
+            float minX = rect.rotated ? minV : minU;
+            float minY = rect.rotated ? minU : minV;
             if (isFlatMaterial) {
-                relativeU = 0.5f;
-            }
-            return originX / (float) sheetWidth + (relativeU - minU) * ((float) this.realWidth / sheetWidth);
-        }
-
-        float convertV(float relativeV) {
-            if (isFlatMaterial) {
-                relativeV = 0.5f;
+                // Every uv samples the middle of the entry
+                Arrays.fill(dst, offset, offset + 6, 0);
+                dst[offset + 2] = (originX + (0.5f - minX) * scaleX) / pageWidth;
+                dst[offset + 5] = (originY + (0.5f - minY) * scaleY) / pageHeight;
+                return;
             }
-            return originY / (float) sheetHeight + (relativeV - minV) * ((float) this.realHeight / sheetHeight);
+            dst[offset] = rect.rotated ? 0 : scaleX / pageWidth;
+            dst[offset + 1] = rect.rotated ? scaleX / pageWidth : 0;
+            dst[offset + 2] = (originX - minX * scaleX) / pageWidth;
+            dst[offset + 3] = rect.rotated ? scaleY / pageHeight : 0;
+            dst[offset + 4] = rect.rotated ? 0 : scaleY / pageHeight;
+            dst[offset + 5] = (originY - minY * scaleY) / pageHeight;
         }
 
         public Integer size() {
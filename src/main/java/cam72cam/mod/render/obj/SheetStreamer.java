@@ -0,0 +1,158 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.event.ClientEvents;
+import cam72cam.mod.render.GLTexture;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which pyramid level of each texture sheet page should be loaded
+ *
+ * Binds only record the page along with how far away and how large the model is.  At the start of the next frame the
+ * recorded pages are sorted by apparent size (size / distance) and each gets a target level: full resolution up close,
+ * one level smaller every time the apparent size halves, and smaller still once the memory budget is used up.
+ * Pages step one level sharper at a time until they reach their target (uploads stop when the frame's time budget is
+ * used up), sharper levels than needed are freed.  The smallest level is left to the sheet, which keeps it loaded.
+ */
+final class SheetStreamer {
+    private SheetStreamer() {}
+
+    // Full resolution while the model is closer than this many times its size
+    private static final double FULL_RESOLUTION = 1;
+    // Loaded levels are kept until this much further away, keeps pages right at the edge from thrashing
+    private static final double HYSTERESIS = 1.25;
+
+    private static final Map<GLTexture[], Request> requests = new IdentityHashMap<>();
+    private static long memoryBudget = 1024L * 1024 * 1024;
+    private static long frameNanos = 4_000_000;
+    private static double maxDistance = 256;
+
+    private static class Request {
+        private final GLTexture[] levels;
+        private double distance;
+        private double priority;
+
+        private Request(GLTexture[] levels, double distance, double priority) {
+            this.levels = levels;
+            this.distance = distance;
+            this.priority = priority;
+        }
+    }
+
+    static {
+        ClientEvents.FRAME.subscribe(SheetStreamer::schedule);
+    }
+
+    static void setMemoryBudgetMB(int mb) {
+        memoryBudget = mb * 1024L * 1024L;
+    }
+
+    static void setFrameBudget(float millis) {
+        frameNanos = (long) (millis * 1_000_000);
+    }
+
+    static void setMaxDistance(double distance) {
+        maxDistance = distance;
+    }
+
+    /** Record a page (its pyramid, sharpest first) bound this frame, render thread only */
+    static void request(GLTexture[] levels, double distance, double size) {
+        // Lower is sooner, roughly the inverse of the size on screen
+        double priority = distance / Math.max(size, 0.001);
+        Request request = requests.get(levels);
+        if (request == null) {
+            requests.put(levels, new Request(levels, distance, priority));
+        } else {
+            request.distance = Math.min(request.distance, distance);
+            request.priority = Math.min(request.priority, priority);
+        }
+    }
+
+    /** Level matching the apparent size */
+    private static int target(double priority, int coarsest) {
+        int level = 0;
+        for (double limit = FULL_RESOLUTION; priority > limit && level < coarsest; limit *= 2) {
+            level++;
+        }
+        return level;
+    }
+
+    private static long bytes(GLTexture[] levels, int level) {
+        long bytes = levels[level].gpuBytes();
+        if (bytes == 0) {
+            // Not read yet, estimate from the smallest level
+            int coarsest = levels.length - 1;
+            bytes = levels[coarsest].gpuBytes() << (2 * (coarsest - level));
+        }
+        return bytes;
+    }
+
+    private static int sharpestLoaded(GLTexture[] levels) {
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level].isLoaded()) {
+                return level;
+            }
+        }
+        return levels.length;
+    }
+
+    private static void schedule() {
+        if (requests.isEmpty()) {
+            return;
+        }
+        List<Request> sorted = new ArrayList<>(requests.values());
+        requests.clear();
+        sorted.sort((a, b) -> Double.compare(a.priority, b.priority));
+
+        long deadline = System.nanoTime() + frameNanos;
+        long resident = 0;
+        for (Request request : sorted) {
+            GLTexture[] levels = request.levels;
+            int coarsest = levels.length - 1;
+
+            int wanted = request.distance > maxDistance ? coarsest : target(request.priority, coarsest);
+            int keep = request.distance > maxDistance * HYSTERESIS ? coarsest : target(request.priority / HYSTERESIS, coarsest);
+            if (wanted < coarsest && resident + bytes(levels, wanted) > memoryBudget) {
+                // Too many larger pages in view
+                while (wanted < coarsest && resident + bytes(levels, wanted) > memoryBudget) {
+                    wanted++;
+                }
+                keep = wanted;
+            } else {
+                keep = Math.min(keep, wanted);
+            }
+
+            for (int level = 0; level < keep; level++) {
+                levels[level].dealloc();
+            }
+
+            int loaded = sharpestLoaded(levels);
+            if (loaded <= wanted) {
+                // Sharp enough, drop the levels loaded on the way here (the smallest always stays)
+                for (int level = loaded + 1; level < coarsest; level++) {
+                    levels[level].dealloc();
+                }
+                resident += bytes(levels, loaded);
+                continue;
+            }
+            resident += bytes(levels, wanted);
+
+            if (loaded > coarsest) {
+                // Waiting on the smallest level, which the sheet loads
+                continue;
+            }
+            GLTexture next = levels[loaded - 1];
+            if (next.isRead()) {
+                if (System.nanoTime() < deadline) {
+                    next.tryUpload();
+                }
+            } else {
+                // False while the IO queue is full, retried next frame
+                next.prefetch();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package cam72cam.mod.render.obj;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * MaxRects (best short side fit) rectangle packer used to lay out texture sheets
+ *
+ * Finds the smallest square-ish sheet that holds every rectangle.  If that would exceed maxSize the rectangles spill
+ * over into additional maxSize pages.
+ *
+ * With an alignment every rectangle starts on a multiple of it and keeps the rest of its last (partial) cell to itself,
+ * so rectangles stay apart in mip levels down to a texel per cell.
+ */
+class TexturePacker {
+    /** Input width/height, output page/x/y/rotated (rotated rectangles are stored transposed) */
+    static class Rect {
+        final int width;
+        final int height;
+        int page;
+        int x;
+        int y;
+        boolean rotated;
+
+        Rect(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        int packedWidth() {
+            return rotated ? height : width;
+        }
+
+        int packedHeight() {
+            return rotated ? width : height;
+        }
+    }
+
+    // In cells of align x align texels
+    private final int maxSize;
+    private final int align;
+    private final boolean allowRotation;
+    private final List<int[]> pageSizes = new ArrayList<>();
+    private long usedArea;
+
+    TexturePacker(int maxSize, boolean allowRotation) {
+        this(maxSize, allowRotation, 1);
+    }
+
+    /** @param align power of two (<= maxSize) every rect is placed on */
+    TexturePacker(int maxSize, boolean allowRotation, int align) {
+        this.maxSize = maxSize / align;
+        this.align = align;
+        this.allowRotation = allowRotation;
+    }
+
+    /** Assign every rect a page and position */
+    void pack(List<Rect> rects) {
+        if (align == 1) {
+            packCells(rects);
+            return;
+        }
+        List<Rect> cells = new ArrayList<>();
+        for (Rect rect : rects) {
+            cells.add(new Rect((rect.width + align - 1) / align, (rect.height + align - 1) / align));
+        }
+        packCells(cells);
+        usedArea = 0;
+        for (int i = 0; i < rects.size(); i++) {
+            Rect rect = rects.get(i);
+            Rect cell = cells.get(i);
+            rect.page = cell.page;
+            rect.x = cell.x * align;
+            rect.y = cell.y * align;
+            rect.rotated = cell.rotated;
+            usedArea += (long) rect.width * rect.height;
+        }
+    }
+
+    private void packCells(List<Rect> rects) {
+        List<Rect> sorted = new ArrayList<>(rects);
+        // Largest first packs tighter
+        sorted.sort(Comparator.comparingInt((Rect r) -> Math.max(r.width, r.height)).thenComparingInt(r -> r.width * r.height).reversed());
+
+        long area = 0;
+        int minSide = 1;
+        for (Rect rect : sorted) {
+            area += (long) rect.width * rect.height;
+            minSide = Math.max(minSide, allowRotation ? Math.min(rect.width, rect.height) : Math.max(rect.width, rect.height));
+        }
+        usedArea = area;
+
+        // Grow a single sheet until everything fits
+        int side = Math.max(minSide, (int) Math.ceil(Math.sqrt(area)));
+        while (side <= maxSize) {
+            // Try a wide sheet before a square one
+            int height = Math.max(minSide, (int) Math.ceil(area / (double) side));
+            for (int h = height; h <= side; h = nextSize(h, side)) {
+                if (tryPack(sorted, side, h)) {
+                    return;
+                }
+            }
+            if (side == maxSize) {
+                break;
+            }
+            side = Math.min(maxSize, nextSize(side, maxSize + 1));
+        }
+
+        // Spill over into multiple pages
+        List<Rect> remaining = sorted;
+        int page = 0;
+        while (!remaining.isEmpty()) {
+            Bin bin = new Bin(maxSize, maxSize);
+            List<Rect> next = new ArrayList<>();
+            for (Rect rect : remaining) {
+                if (!bin.insert(rect)) {
+                    next.add(rect);
+                }
+            }
+            if (next.size() == remaining.size()) {
+                // Larger than a page, give it one of its own and let it be cropped
+                Rect rect = next.remove(0);
+                rect.x = 0;
+                rect.y = 0;
+                rect.rotated = false;
+                bin.place(rect, Math.min(rect.width, maxSize), Math.min(rect.height, maxSize));
+            }
+            for (Rect rect : remaining) {
+                if (!next.contains(rect)) {
+                    rect.page = page;
+                }
+            }
+            pageSizes.add(new int[]{bin.usedWidth, bin.usedHeight});
+            remaining = next;
+            page++;
+        }
+    }
+
+    private static int nextSize(int size, int limit) {
+        int next = size + Math.max(1, size / 16);
+        return next > limit && size < limit ? limit : next;
+    }
+
+    private boolean tryPack(List<Rect> sorted, int width, int height) {
+        Bin bin = new Bin(width, height);
+        for (Rect rect : sorted) {
+            if (!bin.insert(rect)) {
+                return false;
+            }
+            rect.page = 0;
+        }
+        pageSizes.clear();
+        pageSizes.add(new int[]{bin.usedWidth, bin.usedHeight});
+        return true;
+    }
+
+    int pages() {
+        return pageSizes.size();
+    }
+
+    int pageWidth(int page) {
+        return pageSizes.get(page)[0] * align;
+    }
+
+    int pageHeight(int page) {
+        return pageSizes.get(page)[1] * align;
+    }
+
+    /** Fraction of the sheet area covered by rectangles */
+    float efficiency() {
+        long total = 0;
+        for (int page = 0; page < pageSizes.size(); page++) {
+            total += (long) pageWidth(page) * pageHeight(page);
+        }
+        return total == 0 ? 1 : Math.min(1, usedArea / (float) total);
+    }
+
+    private class Bin {
+        private final List<int[]> free = new ArrayList<>();
+        private int usedWidth = 1;
+        private int usedHeight = 1;
+
+        private Bin(int width, int height) {
+            free.add(new int[]{0, 0, width, height});
+        }
+
+        private boolean insert(Rect rect) {
+            int bestShort = Integer.MAX_VALUE;
+            int bestLong = Integer.MAX_VALUE;
+            int bestX = 0;
+            int bestY = 0;
+            boolean bestRotated = false;
+            for (int[] f : free) {
+                for (int r = 0; r < (allowRotation && rect.width != rect.height ? 2 : 1); r++) {
+                    int w = r == 0 ? rect.width : rect.height;
+                    int h = r == 0 ? rect.height : rect.width;
+                    if (w <= f[2] && h <= f[3]) {
+                        int leftoverX = f[2] - w;
+                        int leftoverY = f[3] - h;
+                        int shortSide = Math.min(leftoverX, leftoverY);
+                        int longSide = Math.max(leftoverX, leftoverY);
+                        if (shortSide < bestShort || shortSide == bestShort && longSide < bestLong) {
+                            bestShort = shortSide;
+                            bestLong = longSide;
+                            bestX = f[0];
+                            bestY = f[1];
+                            bestRotated = r == 1;
+                        }
+                    }
+                }
+            }
+            if (bestShort == Integer.MAX_VALUE) {
+                return false;
+            }
+            rect.x = bestX;
+            rect.y = bestY;
+            rect.rotated = bestRotated;
+            place(rect, rect.packedWidth(), rect.packedHeight());
+            return true;
+        }
+
+        private void place(Rect rect, int w, int h) {
+            usedWidth = Math.max(usedWidth, rect.x + w);
+            usedHeight = Math.max(usedHeight, rect.y + h);
+
+            int x = rect.x;
+            int y = rect.y;
+            List<int[]> split = new ArrayList<>();
+            for (int i = free.size() - 1; i >= 0; i--) {
+                int[] f = free.get(i);
+                if (x >= f[0] + f[2] || x + w <= f[0] || y >= f[1] + f[3] || y + h <= f[1]) {
+                    continue;
+                }
+                free.remove(i);
+                // Up to four maximal rectangles around the placed one
+                if (x > f[0]) {
+                    split.add(new int[]{f[0], f[1], x - f[0], f[3]});
+                }
+                if (x + w < f[0] + f[2]) {
+                    split.add(new int[]{x + w, f[1], f[0] + f[2] - (x + w), f[3]});
+                }
+                if (y > f[1]) {
+                    split.add(new int[]{f[0], f[1], f[2], y - f[1]});
+                }
+                if (y + h < f[1] + f[3]) {
+                    split.add(new int[]{f[0], y + h, f[2], f[1] + f[3] - (y + h)});
+                }
+            }
+            free.addAll(split);
+
+            // Drop free rectangles contained in others
+            for (int i = 0; i < free.size(); i++) {
+                int[] a = free.get(i);
+                for (int j = i + 1; j < free.size(); j++) {
+                    int[] b = free.get(j);
+                    if (contains(b, a)) {
+                        free.remove(i);
+                        i--;
+                        break;
+                    }
+                    if (contains(a, b)) {
+                        free.remove(j);
+                        j--;
+                    }
+                }
+            }
+        }
+
+        private boolean contains(int[] outer, int[] inner) {
+            return inner[0] >= outer[0] && inner[1] >= outer[1] &&
+                    inner[0] + inner[2] <= outer[0] + outer[2] &&
+                    inner[1] + inner[3] <= outer[1] + outer[3];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package cam72cam.mod.util;
+
+import java.util.Arrays;
+
+/** Growable float[] which avoids boxing when the final size is not known up front */
+public class FloatList {
+    private float[] data;
+    private int size;
+
+    public FloatList() {
+        this(16);
+    }
+
+    public FloatList(int capacity) {
+        this.data = new float[Math.max(capacity, 1)];
+    }
+
+    public void add(float value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = value;
+    }
+
+    public float get(int idx) {
+        return data[idx];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Copy of the used portion of the backing array */
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
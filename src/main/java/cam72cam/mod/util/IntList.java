@@ -0,0 +1,41 @@
+package cam72cam.mod.util;
+
+import java.util.Arrays;
+
+/** Growable int[] which avoids boxing when the final size is not known up front */
+public class IntList {
+    private int[] data;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        this.data = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = value;
+    }
+
+    public int get(int idx) {
+        return data[idx];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Copy of the used portion of the backing array */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,134 @@
+package cam72cam.mod.model.obj;
+
+import junit.framework.TestCase;
+
+public class MeshSimplifierTest extends TestCase {
+
+    /** size x size quads in the XZ plane, 2 triangles each */
+    private static float[] gridVertices(int size) {
+        float[] vertices = new float[(size + 1) * (size + 1) * 3];
+        for (int x = 0; x <= size; x++) {
+            for (int z = 0; z <= size; z++) {
+                int v = (x * (size + 1) + z) * 3;
+                vertices[v] = x;
+                vertices[v + 2] = z;
+            }
+        }
+        return vertices;
+    }
+
+    private static int[] gridTriangles(int size) {
+        int[] tris = new int[size * size * 6];
+        int i = 0;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                int a = x * (size + 1) + z;
+                int b = a + 1;
+                int c = a + size + 1;
+                int d = c + 1;
+                tris[i++] = a;
+                tris[i++] = b;
+                tris[i++] = d;
+                tris[i++] = a;
+                tris[i++] = d;
+                tris[i++] = c;
+            }
+        }
+        return tris;
+    }
+
+    private static double area(float[] vertices, int a, int b, int c) {
+        double ux = vertices[b * 3] - vertices[a * 3];
+        double uy = vertices[b * 3 + 1] - vertices[a * 3 + 1];
+        double uz = vertices[b * 3 + 2] - vertices[a * 3 + 2];
+        double vx = vertices[c * 3] - vertices[a * 3];
+        double vy = vertices[c * 3 + 1] - vertices[a * 3 + 1];
+        double vz = vertices[c * 3 + 2] - vertices[a * 3 + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        return Math.sqrt(nx * nx + ny * ny + nz * nz) / 2;
+    }
+
+    public void testPlane() {
+        int size = 20;
+        float[] vertices = gridVertices(size);
+        int[] tris = gridTriangles(size);
+        int target = tris.length / 3 / 4;
+
+        int[] result = MeshSimplifier.simplify(vertices, tris, target);
+        int count = result.length / 4;
+        assertTrue(count <= target);
+        assertTrue(count > 0);
+
+        double area = 0;
+        boolean[] used = new boolean[tris.length / 3];
+        for (int i = 0; i < result.length; i += 4) {
+            int source = result[i];
+            assertFalse(used[source]);
+            used[source] = true;
+            double triArea = area(vertices, result[i + 1], result[i + 2], result[i + 3]);
+            assertTrue(triArea > 0);
+            area += triArea;
+        }
+        // Flat, outline preserved, nothing folded over
+        assertEquals(size * size, area, 0.0001);
+    }
+
+    public void testKeepsAllWhenTargetIsHigh() {
+        float[] vertices = gridVertices(4);
+        int[] tris = gridTriangles(4);
+
+        int[] result = MeshSimplifier.simplify(vertices, tris, tris.length / 3);
+        assertEquals(tris.length / 3, result.length / 4);
+        for (int i = 0; i < result.length; i += 4) {
+            int source = result[i];
+            assertEquals(tris[source * 3], result[i + 1]);
+            assertEquals(tris[source * 3 + 1], result[i + 2]);
+            assertEquals(tris[source * 3 + 2], result[i + 3]);
+        }
+    }
+
+    public void testSphere() {
+        int rings = 24;
+        int segments = 48;
+        float[] vertices = new float[(rings + 1) * segments * 3];
+        for (int r = 0; r <= rings; r++) {
+            double phi = Math.PI * r / rings;
+            for (int s = 0; s < segments; s++) {
+                double theta = 2 * Math.PI * s / segments;
+                int v = (r * segments + s) * 3;
+                vertices[v] = (float) (Math.sin(phi) * Math.cos(theta));
+                vertices[v + 1] = (float) Math.cos(phi);
+                vertices[v + 2] = (float) (Math.sin(phi) * Math.sin(theta));
+            }
+        }
+        int[] tris = new int[rings * segments * 6];
+        int i = 0;
+        for (int r = 0; r < rings; r++) {
+            for (int s = 0; s < segments; s++) {
+                int a = r * segments + s;
+                int b = r * segments + (s + 1) % segments;
+                int c = a + segments;
+                int d = b + segments;
+                tris[i++] = a;
+                tris[i++] = c;
+                tris[i++] = b;
+                tris[i++] = b;
+                tris[i++] = c;
+                tris[i++] = d;
+            }
+        }
+
+        int target = tris.length / 3 / 10;
+        int[] result = MeshSimplifier.simplify(vertices, tris, target);
+        assertTrue(result.length / 4 <= target);
+
+        double area = 0;
+        for (int j = 0; j < result.length; j += 4) {
+            area += area(vertices, result[j + 1], result[j + 2], result[j + 3]);
+        }
+        // Surface is still roughly a unit sphere
+        assertEquals(4 * Math.PI, area, 4 * Math.PI * 0.15);
+    }
+}
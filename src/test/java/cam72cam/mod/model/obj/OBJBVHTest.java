@@ -0,0 +1,168 @@
+package cam72cam.mod.model.obj;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class OBJBVHTest extends TestCase {
+    private float[] vertices;
+    private int[] faceVerts;
+    private Map<String, int[]> groups;
+
+    @Override
+    protected void setUp() {
+        // Small random triangles scattered through a cube, split over a few groups
+        Random random = new Random(42);
+        int faces = 2000;
+        vertices = new float[faces * 9];
+        faceVerts = new int[faces * 9];
+        for (int face = 0; face < faces; face++) {
+            float cx = random.nextFloat() * 100;
+            float cy = random.nextFloat() * 100;
+            float cz = random.nextFloat() * 100;
+            for (int c = 0; c < 3; c++) {
+                int v = face * 3 + c;
+                vertices[v * 3] = cx + random.nextFloat() * 4 - 2;
+                vertices[v * 3 + 1] = cy + random.nextFloat() * 4 - 2;
+                vertices[v * 3 + 2] = cz + random.nextFloat() * 4 - 2;
+                faceVerts[face * 9 + c * 3] = v;
+                faceVerts[face * 9 + c * 3 + 1] = -1;
+                faceVerts[face * 9 + c * 3 + 2] = -1;
+            }
+        }
+        groups = new LinkedHashMap<>();
+        for (int g = 0; g < 4; g++) {
+            int[] ids = new int[faces / 4];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = g * ids.length + i;
+            }
+            groups.put("group_" + g, ids);
+        }
+    }
+
+    public void testRaycastMatchesBruteForce() {
+        OBJBVH bvh = new OBJBVH(vertices, faceVerts, groups, groups.keySet());
+        OBJBVH single = new OBJBVH(vertices, faceVerts, groups, Collections.singletonList("group_1"));
+        OBJBVH.Hit hit = new OBJBVH.Hit();
+        Random random = new Random(7);
+        int hits = 0;
+        for (int i = 0; i < 500; i++) {
+            double ox = random.nextDouble() * 100;
+            double oy = random.nextDouble() * 100;
+            double oz = -10;
+            double dx = random.nextDouble() - 0.5;
+            double dy = random.nextDouble() - 0.5;
+            double dz = 1;
+
+            int expected = bruteRaycast(ox, oy, oz, dx, dy, dz, groups.keySet());
+            assertEquals(expected != -1, bvh.raycast(ox, oy, oz, dx, dy, dz, 1000, hit));
+            if (expected != -1) {
+                hits++;
+                assertEquals(expected, hit.face);
+                assertEquals("group_" + expected / 500, hit.group);
+            }
+
+            int expectedSingle = bruteRaycast(ox, oy, oz, dx, dy, dz, Collections.singletonList("group_1"));
+            assertEquals(expectedSingle != -1, single.raycast(ox, oy, oz, dx, dy, dz, 1000, hit));
+            if (expectedSingle != -1) {
+                assertEquals(expectedSingle, hit.face);
+            }
+        }
+        assertTrue(hits > 50);
+    }
+
+    public void testNearestMatchesBruteForce() {
+        OBJBVH bvh = new OBJBVH(vertices, faceVerts, groups, groups.keySet());
+        OBJBVH.Hit hit = new OBJBVH.Hit();
+        Random random = new Random(9);
+        for (int i = 0; i < 100; i++) {
+            double px = random.nextDouble() * 120 - 10;
+            double py = random.nextDouble() * 120 - 10;
+            double pz = random.nextDouble() * 120 - 10;
+
+            double best = Double.POSITIVE_INFINITY;
+            for (int face = 0; face < faceVerts.length / 9; face++) {
+                best = Math.min(best, sampledDistance(face, px, py, pz));
+            }
+            assertTrue(bvh.nearest(px, py, pz, 1000, hit));
+            // Brute force samples the triangle, so it can only be slightly further away
+            assertTrue(hit.distance <= best + 1e-4);
+            assertTrue(hit.distance >= best - 0.25);
+            assertEquals(hit.distance, Math.sqrt(sq(hit.x - px) + sq(hit.y - py) + sq(hit.z - pz)), 1e-6);
+        }
+        assertFalse(bvh.nearest(1000, 1000, 1000, 1, hit));
+        assertNull(bvh.nearestGroup(1000, 1000, 1000, 1, hit));
+    }
+
+    public void testEmpty() {
+        OBJBVH bvh = new OBJBVH(vertices, faceVerts, groups, Collections.<String>emptyList());
+        OBJBVH.Hit hit = new OBJBVH.Hit();
+        assertFalse(bvh.raycast(0, 0, 0, 1, 1, 1, 1000, hit));
+        assertFalse(bvh.nearest(0, 0, 0, 1000, hit));
+    }
+
+    private int bruteRaycast(double ox, double oy, double oz, double dx, double dy, double dz, Collection<String> include) {
+        int found = -1;
+        double best = Double.POSITIVE_INFINITY;
+        for (String group : include) {
+            for (int face : groups.get(group)) {
+                double[] a = vertex(face, 0);
+                double[] b = vertex(face, 1);
+                double[] c = vertex(face, 2);
+                double[] e1 = {b[0] - a[0], b[1] - a[1], b[2] - a[2]};
+                double[] e2 = {c[0] - a[0], c[1] - a[1], c[2] - a[2]};
+                double[] p = cross(new double[]{dx, dy, dz}, e2);
+                double det = dot(e1, p);
+                if (Math.abs(det) < 1e-12) {
+                    continue;
+                }
+                double[] s = {ox - a[0], oy - a[1], oz - a[2]};
+                double u = dot(s, p) / det;
+                double[] q = cross(s, e1);
+                double v = dot(new double[]{dx, dy, dz}, q) / det;
+                double t = dot(e2, q) / det;
+                if (u >= 0 && v >= 0 && u + v <= 1 && t >= 0 && t < best) {
+                    best = t;
+                    found = face;
+                }
+            }
+        }
+        return found;
+    }
+
+    private double sampledDistance(int face, double px, double py, double pz) {
+        double[] a = vertex(face, 0);
+        double[] b = vertex(face, 1);
+        double[] c = vertex(face, 2);
+        double best = Double.POSITIVE_INFINITY;
+        int steps = 20;
+        for (int i = 0; i <= steps; i++) {
+            for (int j = 0; i + j <= steps; j++) {
+                double u = i / (double) steps;
+                double v = j / (double) steps;
+                double x = a[0] + (b[0] - a[0]) * u + (c[0] - a[0]) * v;
+                double y = a[1] + (b[1] - a[1]) * u + (c[1] - a[1]) * v;
+                double z = a[2] + (b[2] - a[2]) * u + (c[2] - a[2]) * v;
+                best = Math.min(best, Math.sqrt(sq(x - px) + sq(y - py) + sq(z - pz)));
+            }
+        }
+        return best;
+    }
+
+    private double[] vertex(int face, int corner) {
+        int v = faceVerts[face * 9 + corner * 3] * 3;
+        return new double[]{vertices[v], vertices[v + 1], vertices[v + 2]};
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double sq(double v) {
+        return v * v;
+    }
+}
@@ -0,0 +1,87 @@
+package cam72cam.mod.model.obj;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+public class OBJParserTest extends TestCase {
+
+    private static OBJParser parse(String obj, double scale) throws IOException {
+        OBJParser parser = new OBJParser(new StringReader(obj));
+        parser.parse(scale);
+        return parser;
+    }
+
+    public void testParseFloat() {
+        String[] cases = new String[]{
+                "0", "-0", "1", "-1", "0.5", "-0.000001", "1.234567", "12.345678", "-123.456789",
+                "0.1", "0.2", "0.3", "3.4028235", "16777217", "123456789.123456789", "1e-3", "-2.5E+2",
+                "0.00000000001", ".5", "5.", "+1.25",
+        };
+        for (String c : cases) {
+            assertEquals(c, Float.parseFloat(c), OBJParser.parseFloat(c.toCharArray(), c.length()));
+        }
+
+        Random rand = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String c = String.format("%." + rand.nextInt(9) + "f", (rand.nextDouble() - 0.5) * Math.pow(10, rand.nextInt(8)));
+            assertEquals(c, Float.floatToIntBits(Float.parseFloat(c)), Float.floatToIntBits(OBJParser.parseFloat(c.toCharArray(), c.length())));
+        }
+    }
+
+    public void testParseInt() {
+        String[] cases = new String[]{"0", "1", "-1", "+7", "123456789", "2147483647", "-2147483648"};
+        for (String c : cases) {
+            assertEquals(c, Integer.parseInt(c), OBJParser.parseInt(c.toCharArray(), 0, c.length()));
+        }
+    }
+
+    public void testParse() throws IOException {
+        String obj = "# comment\n" +
+                "mtllib test.mtl\n" +
+                "v 0 0 0\n" +
+                "v 1.5 0 0\r\n" +
+                "v 1 1 0\n" +
+                "v  0\t1 0\n" +
+                "vt 0 0\n" +
+                "vt 1 1\n" +
+                "vn 0 0 1\n" +
+                "\n" +
+                "g first\n" +
+                "usemtl red\n" +
+                "f 1/1/1 2/2/1 3//1\n" +
+                "s off\n" +
+                "o second\n" +
+                "usemtl blue\n" +
+                "f 1 2 3 4\n" +
+                "f 1/1 2/2 3/1 4/2 1/1";
+        OBJParser parser = parse(obj, 2);
+
+        assertEquals(Arrays.asList("test.mtl"), parser.materialPaths);
+        assertTrue(Arrays.equals(new float[]{0, 0, 0, 3, 0, 0, 2, 2, 0, 0, 2, 0}, parser.vertices));
+        assertTrue(Arrays.equals(new float[]{0, 0, 1, 1}, parser.vertexTextures));
+        assertTrue(Arrays.equals(new float[]{0, 0, 1}, parser.vertexNormals));
+
+        assertEquals(Arrays.asList("first", "second"), Arrays.asList(parser.groups.keySet().toArray()));
+        assertTrue(Arrays.equals(new int[]{0}, parser.groups.get("first")));
+        assertTrue(Arrays.equals(new int[]{1, 2, 3, 4, 5}, parser.groups.get("second")));
+        // Index 0 is reserved for faces without a usemtl
+        assertTrue(Arrays.equals(new String[]{null, "red", "blue"}, parser.mtlNames));
+        assertTrue(Arrays.equals(new int[]{1, 2, 2, 2, 2, 2}, parser.faceMTLIdx));
+
+        assertTrue(Arrays.equals(new int[]{
+                // g first
+                0, 0, 0, 1, 1, 0, 2, -1, 0,
+                // quad
+                0, -1, -1, 1, -1, -1, 2, -1, -1,
+                2, -1, -1, 3, -1, -1, 0, -1, -1,
+                // fan
+                0, 0, -1, 1, 1, -1, 2, 0, -1,
+                0, 0, -1, 2, 0, -1, 3, 1, -1,
+                0, 0, -1, 3, 1, -1, 0, 0, -1,
+        }, parser.faceVerts));
+    }
+}
@@ -0,0 +1,97 @@
+package cam72cam.mod.render;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class BlockCompressionTest extends TestCase {
+    private static int[] roundTrip(int[] argb, int width, int height, boolean bc3) {
+        ByteBuffer blocks = ByteBuffer.allocate(BlockCompression.size(width, height, bc3)).order(ByteOrder.LITTLE_ENDIAN);
+        BlockCompression.encode(argb, width, height, bc3, blocks);
+        assertFalse(blocks.hasRemaining());
+        blocks.flip();
+        return BlockCompression.decode(blocks, width, height, bc3);
+    }
+
+    private static int channel(int texel, int shift) {
+        return (texel >>> shift) & 0xFF;
+    }
+
+    /** Smooth gradient with some noise, the kind of content BC handles well */
+    private static int[] gradient(int width, int height, boolean alpha) {
+        Random random = new Random(1);
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, x * 255 / width + random.nextInt(8));
+                int g = Math.min(255, y * 255 / height + random.nextInt(8));
+                int b = 128;
+                int a = alpha ? (x + y) * 255 / (width + height) : 255;
+                argb[y * width + x] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+        return argb;
+    }
+
+    private static double rmse(int[] a, int[] b, int shift) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = channel(a[i], shift) - channel(b[i], shift);
+            sum += d * d;
+        }
+        return Math.sqrt(sum / a.length);
+    }
+
+    public void testSize() {
+        assertEquals(8, BlockCompression.size(4, 4, false));
+        assertEquals(16, BlockCompression.size(4, 4, true));
+        assertEquals(4 * 8, BlockCompression.size(5, 7, false));
+        assertEquals(16, BlockCompression.size(1, 1, true));
+    }
+
+    public void testBC1() {
+        int[] argb = gradient(64, 40, false);
+        int[] decoded = roundTrip(argb, 64, 40, false);
+        assertTrue(rmse(argb, decoded, 16) < 8);
+        assertTrue(rmse(argb, decoded, 8) < 8);
+        for (int texel : decoded) {
+            assertEquals(255, texel >>> 24);
+        }
+    }
+
+    public void testBC1PunchThrough() {
+        int[] argb = new int[16];
+        for (int i = 0; i < 16; i++) {
+            argb[i] = i % 3 == 0 ? 0 : 0xFF00FF00;
+        }
+        int[] decoded = roundTrip(argb, 4, 4, false);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i % 3 == 0 ? 0 : 255, decoded[i] >>> 24);
+            if (i % 3 != 0) {
+                assertEquals(0xFF00FF00, decoded[i]);
+            }
+        }
+    }
+
+    public void testBC3() {
+        int[] argb = gradient(30, 18, true);
+        assertFalse(BlockCompression.isBinaryAlpha(argb));
+        int[] decoded = roundTrip(argb, 30, 18, true);
+        assertTrue(rmse(argb, decoded, 24) < 4);
+        // Steeper gradient than testBC1, a single color line per block fits it less well
+        assertTrue(rmse(argb, decoded, 16) < 12);
+    }
+
+    public void testSolid() {
+        int[] argb = new int[8 * 8];
+        java.util.Arrays.fill(argb, 0xFF336699);
+        // 565 quantization is the only loss
+        for (int texel : roundTrip(argb, 8, 8, false)) {
+            assertTrue(Math.abs(channel(texel, 16) - 0x33) <= 4);
+            assertTrue(Math.abs(channel(texel, 8) - 0x66) <= 2);
+            assertTrue(Math.abs(channel(texel, 0) - 0x99) <= 4);
+        }
+    }
+}
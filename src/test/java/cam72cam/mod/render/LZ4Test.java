@@ -0,0 +1,80 @@
+package cam72cam.mod.render;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class LZ4Test extends TestCase {
+    private static void assertRoundTrip(byte[] data) {
+        ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data);
+        src.flip();
+
+        byte[] compressed = new byte[LZ4.maxCompressedLength(data.length)];
+        int length = LZ4.compress(src, compressed);
+        assertTrue(length <= compressed.length);
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+        LZ4.decompress(ByteBuffer.wrap(compressed, 0, length), dst);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], dst.get(i));
+        }
+    }
+
+    public void testSmall() {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip(new byte[]{1});
+        assertRoundTrip(new byte[]{1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4});
+    }
+
+    public void testRandom() {
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        assertRoundTrip(data);
+    }
+
+    public void testTextureLike() {
+        // Mostly transparent sheet with repeated tiles, should compress well
+        Random random = new Random(2);
+        byte[] tile = new byte[64 * 4];
+        random.nextBytes(tile);
+        byte[] data = new byte[512 * 512 * 4];
+        for (int i = 0; i < data.length / 2; i += tile.length) {
+            System.arraycopy(tile, 0, data, i, tile.length);
+        }
+        assertRoundTrip(data);
+
+        ByteBuffer src = ByteBuffer.wrap(data);
+        int length = LZ4.compress(src, new byte[LZ4.maxCompressedLength(data.length)]);
+        assertTrue(length < data.length / 10);
+    }
+
+    public void testBounded() {
+        // Random data never fits in 3/4 of its size, compressible data still does
+        byte[] data = new byte[100000];
+        new Random(4).nextBytes(data);
+        assertEquals(-1, LZ4.compress(ByteBuffer.wrap(data), new byte[data.length * 3 / 4]));
+
+        byte[] zeros = new byte[100000];
+        byte[] compressed = new byte[zeros.length * 3 / 4];
+        int length = LZ4.compress(ByteBuffer.wrap(zeros), compressed);
+        assertTrue(length > 0);
+        ByteBuffer dst = ByteBuffer.allocate(zeros.length);
+        LZ4.decompress(ByteBuffer.wrap(compressed, 0, length), dst);
+        assertEquals(0, dst.get(zeros.length - 1));
+    }
+
+    public void testCorrupt() {
+        byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+        byte[] compressed = new byte[LZ4.maxCompressedLength(data.length)];
+        int length = LZ4.compress(ByteBuffer.wrap(data), compressed);
+        try {
+            LZ4.decompress(ByteBuffer.wrap(compressed, 0, length - 10), ByteBuffer.allocate(data.length));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
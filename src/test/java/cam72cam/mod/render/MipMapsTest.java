@@ -0,0 +1,71 @@
+package cam72cam.mod.render;
+
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.List;
+
+public class MipMapsTest extends TestCase {
+    private static final int RED = 0xFFFF0000;
+    private static final int BLUE = 0xFF0000FF;
+
+    public void testLevels() {
+        assertEquals(1, MipMaps.levels(64, 64, 1));
+        assertEquals(7, MipMaps.levels(64, 64, 10));
+        assertEquals(3, MipMaps.levels(64, 4, 10));
+        assertEquals(4, MipMaps.levels(64, 64, 4));
+    }
+
+    public void testRegionsDoNotBleed() {
+        // Two 6 wide entries in 8 wide cells (aligned for 3 levels), with transparent padding between them
+        int width = 16;
+        int height = 8;
+        Rectangle red = new Rectangle(0, 0, 6, 8);
+        Rectangle blue = new Rectangle(8, 0, 6, 8);
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                argb[y * width + x] = red.contains(x, y) ? RED : blue.contains(x, y) ? BLUE : 0;
+            }
+        }
+
+        List<int[]> chain = MipMaps.generate(argb, width, height, Arrays.asList(red, blue), 3);
+        assertEquals(3, chain.size());
+        assertSame(argb, chain.get(0));
+
+        // Every texel of each region keeps that region's color at every level
+        for (int level = 1; level < chain.size(); level++) {
+            int levelWidth = width >> level;
+            List<Rectangle> regions = MipMaps.regions(Arrays.asList(red, blue), width, height, level);
+            assertFalse(regions.get(0).intersects(regions.get(1)));
+            int[] colors = {RED, BLUE};
+            for (int i = 0; i < regions.size(); i++) {
+                Rectangle region = regions.get(i);
+                for (int y = region.y; y < region.y + region.height; y++) {
+                    for (int x = region.x; x < region.x + region.width; x++) {
+                        int texel = chain.get(level)[y * levelWidth + x];
+                        assertEquals("level " + level + " " + x + "," + y + " " + Integer.toHexString(texel), colors[i], texel);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testAlphaWeighted() {
+        // Transparent black must not darken the opaque white next to it
+        int[] argb = {0xFFFFFFFF, 0x00000000, 0x00000000, 0xFFFFFFFF};
+        int[] level1 = MipMaps.generate(argb, 2, 2, null, 2).get(1);
+        assertEquals(0x80FFFFFF, level1[0]);
+    }
+
+    public void testRegions() {
+        assertNull(MipMaps.regions(null, 16, 16, 2));
+
+        // Odd edges grow to cover every texel they touch
+        List<Rectangle> level1 = MipMaps.regions(Arrays.asList(new Rectangle(3, 5, 6, 7)), 16, 16, 1);
+        assertEquals(new Rectangle(1, 2, 4, 4), level1.get(0));
+        List<Rectangle> level2 = MipMaps.regions(Arrays.asList(new Rectangle(3, 5, 6, 7)), 16, 16, 2);
+        assertEquals(new Rectangle(0, 1, 3, 2), level2.get(0));
+    }
+}
@@ -0,0 +1,167 @@
+package cam72cam.mod.render;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class SpriteArchiveTest extends TestCase {
+    private static final int TODAY = 20000;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("sprites", ".umcs");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private static ByteBuffer sprite(int size, int seed) {
+        ByteBuffer buff = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buff.put((byte) (i * 31 + seed));
+        }
+        buff.flip();
+        return buff;
+    }
+
+    private static void assertSprite(SpriteArchive archive, String key, int size, int seed) {
+        ByteBuffer read = ByteBuffer.allocateDirect(size);
+        assertTrue(key, archive.read(key, read));
+        assertEquals(sprite(size, seed), read);
+    }
+
+    public void testRoundTrip() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        archive.put("a", sprite(4096, 1));
+        archive.put("b/\u00fc", sprite(4096, 2));
+        assertSprite(archive, "a", 4096, 1);
+        assertSprite(archive, "b/\u00fc", 4096, 2);
+        assertFalse(archive.read("c", ByteBuffer.allocateDirect(4096)));
+        // Wrong size
+        assertFalse(archive.read("a", ByteBuffer.allocateDirect(1024)));
+        archive.close();
+
+        archive = new SpriteArchive(file, TODAY);
+        assertEquals(2, archive.size());
+        assertSprite(archive, "a", 4096, 1);
+        assertSprite(archive, "b/\u00fc", 4096, 2);
+        archive.close();
+    }
+
+    public void testReplace() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        archive.put("a", sprite(4096, 1));
+        archive.put("b", sprite(4096, 2));
+        long bytes = archive.dataBytes();
+
+        // Same size, in place
+        archive.put("a", sprite(4096, 3));
+        assertEquals(bytes, archive.dataBytes());
+        assertSprite(archive, "a", 4096, 3);
+
+        // Larger, appended
+        archive.put("a", sprite(8192, 4));
+        assertTrue(archive.dataBytes() > bytes);
+        assertSprite(archive, "a", 8192, 4);
+        assertSprite(archive, "b", 4096, 2);
+        archive.close();
+    }
+
+    public void testGrowIndex() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        for (int i = 0; i < 3000; i++) {
+            archive.put("sprite" + i, sprite(64, i));
+        }
+        for (int i = 0; i < 3000; i++) {
+            assertSprite(archive, "sprite" + i, 64, i);
+        }
+        archive.close();
+
+        archive = new SpriteArchive(file, TODAY);
+        assertEquals(3000, archive.size());
+        for (int i = 0; i < 3000; i++) {
+            assertSprite(archive, "sprite" + i, 64, i);
+        }
+        archive.close();
+    }
+
+    public void testCompact() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        for (int i = 0; i < 10; i++) {
+            archive.put("sprite" + i, sprite(1024, i));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            archive.put("sprite" + i, sprite(2048, i + 100));
+        }
+        long bytes = archive.dataBytes();
+        archive.compact();
+        assertTrue(archive.dataBytes() < bytes);
+        for (int i = 0; i < 10; i++) {
+            if (i % 2 == 0) {
+                assertSprite(archive, "sprite" + i, 2048, i + 100);
+            } else {
+                assertSprite(archive, "sprite" + i, 1024, i);
+            }
+        }
+        archive.close();
+
+        archive = new SpriteArchive(file, TODAY);
+        assertEquals(10, archive.size());
+        assertSprite(archive, "sprite1", 1024, 1);
+        assertSprite(archive, "sprite2", 2048, 102);
+        archive.close();
+    }
+
+    public void testExpire() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        archive.put("old", sprite(64, 1));
+        archive.close();
+
+        archive = new SpriteArchive(file, TODAY + 20);
+        archive.put("new", sprite(64, 2));
+        archive.close();
+
+        archive = new SpriteArchive(file, TODAY + 40);
+        assertFalse(archive.read("old", ByteBuffer.allocateDirect(64)));
+        assertSprite(archive, "new", 64, 2);
+        archive.close();
+    }
+
+    public void testDamaged() throws IOException {
+        SpriteArchive archive = new SpriteArchive(file, TODAY);
+        archive.put("a", sprite(4096, 1));
+        archive.put("b", sprite(4096, 2));
+        archive.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Last byte of the last record
+            long end = 32 + 1024 * 32 + 2 * (1 + 4096);
+            raf.seek(end - 1);
+            int last = raf.read();
+            raf.seek(end - 1);
+            raf.write(last ^ 0xFF);
+        }
+        archive = new SpriteArchive(file, TODAY);
+        assertSprite(archive, "a", 4096, 1);
+        assertFalse(archive.read("b", ByteBuffer.allocateDirect(4096)));
+        archive.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(0);
+            raf.writeInt(0);
+        }
+        archive = new SpriteArchive(file, TODAY);
+        assertEquals(0, archive.size());
+        archive.put("c", sprite(64, 3));
+        assertSprite(archive, "c", 64, 3);
+        archive.close();
+    }
+}
@@ -0,0 +1,99 @@
+package cam72cam.mod.render;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TextureIOTest extends TestCase {
+    private static TextureIO.Job<Object> block(CountDownLatch started, CountDownLatch release) {
+        return TextureIO.submit(TextureIO.Priority.VISIBLE, 0, () -> {
+            started.countDown();
+            release.await();
+            return null;
+        }, null);
+    }
+
+    public void testPriorityOrder() throws InterruptedException {
+        // Park all but one worker, then hold the last one while the jobs are queued
+        CountDownLatch parked = new CountDownLatch(TextureIO.THREADS);
+        CountDownLatch releaseParked = new CountDownLatch(1);
+        CountDownLatch releaseLast = new CountDownLatch(1);
+        for (int i = 0; i < TextureIO.THREADS - 1; i++) {
+            block(parked, releaseParked);
+        }
+        block(parked, releaseLast);
+        assertTrue(parked.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        TextureIO.submit(TextureIO.Priority.BACKGROUND, 0, () -> order.add("write"), null);
+        TextureIO.submit(TextureIO.Priority.PREFETCH, 0, () -> order.add("prefetch"), null);
+        TextureIO.submit(TextureIO.Priority.VISIBLE, 0, () -> order.add("visible"), null);
+        TextureIO.Job<Boolean> promoted = TextureIO.submit(TextureIO.Priority.BACKGROUND, 0, () -> order.add("promoted"), null);
+        promoted.promote(TextureIO.Priority.VISIBLE);
+
+        releaseLast.countDown();
+        // Not awaited, that would promote it
+        CountDownLatch finished = new CountDownLatch(1);
+        TextureIO.submit(TextureIO.Priority.BACKGROUND, 0, () -> {
+            order.add("last");
+            finished.countDown();
+            return null;
+        }, null);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        releaseParked.countDown();
+
+        assertEquals(5, order.size());
+        assertEquals("visible", order.get(0));
+        assertEquals("promoted", order.get(1));
+        assertEquals("prefetch", order.get(2));
+        assertEquals("write", order.get(3));
+    }
+
+    public void testBackpressure() throws InterruptedException {
+        TextureIO.setBudgetMB(1);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            TextureIO.submit(TextureIO.Priority.BACKGROUND, 1024 * 1024, () -> {
+                started.countDown();
+                release.await();
+                return null;
+            }, null);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            CountDownLatch submitted = new CountDownLatch(1);
+            Thread producer = new Thread(() -> {
+                TextureIO.submit(TextureIO.Priority.BACKGROUND, 1024 * 1024, () -> null, null);
+                submitted.countDown();
+            });
+            producer.start();
+            assertFalse("Over budget submit should wait", submitted.await(200, TimeUnit.MILLISECONDS));
+
+            // Visible work never waits on the budget
+            assertTrue(TextureIO.submit(TextureIO.Priority.VISIBLE, 1024 * 1024, () -> null, null).await(5000));
+
+            release.countDown();
+            assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        } finally {
+            TextureIO.setBudgetMB(256);
+        }
+    }
+
+    public void testCallback() {
+        AtomicReference<Object> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        assertTrue(TextureIO.submit(TextureIO.Priority.VISIBLE, 0, () -> "done", (value, e) -> result.set(value)).await(5000));
+        assertEquals("done", result.get());
+
+        assertTrue(TextureIO.<Object>submit(TextureIO.Priority.VISIBLE, 0, () -> {
+            throw new IllegalStateException("broken");
+        }, (value, e) -> error.set(e)).await(5000));
+        assertTrue(error.get() instanceof IllegalStateException);
+    }
+}
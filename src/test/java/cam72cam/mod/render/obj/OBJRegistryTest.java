@@ -0,0 +1,52 @@
+package cam72cam.mod.render.obj;
+
+import cam72cam.mod.model.obj.Material;
+import cam72cam.mod.resource.Identifier;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+public class OBJRegistryTest extends TestCase {
+    private static final long MODEL_HASH = 1234;
+
+    /** Texture served from memory */
+    private static class Texture extends Identifier {
+        private final byte[] data;
+
+        private Texture(String ident, String data) {
+            super(ident);
+            this.data = data.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public InputStream getLastResourceStream() {
+            return new ByteArrayInputStream(data);
+        }
+    }
+
+    /** The materials of one model text, with map_Kd resolved next to the model */
+    private static List<Material> materials(String folder, String texture) {
+        Material mtl = new Material();
+        mtl.name = "body";
+        mtl.texKd = new Texture("test:" + folder + "/body.png", texture);
+        return Collections.singletonList(mtl);
+    }
+
+    public void testSameTextOtherTextures() {
+        // Same OBJ and MTL in two packs, only the PNGs differ
+        long first = OBJRegistry.contentHash(MODEL_HASH, materials("pack_a", "red"), null);
+        long second = OBJRegistry.contentHash(MODEL_HASH, materials("pack_b", "blue"), null);
+        assertTrue(first != second);
+    }
+
+    public void testSameTextSameTextures() {
+        // Identical copies are still shared
+        long first = OBJRegistry.contentHash(MODEL_HASH, materials("pack_a", "red"), null);
+        long second = OBJRegistry.contentHash(MODEL_HASH, materials("pack_b", "red"), null);
+        assertEquals(first, second);
+    }
+}
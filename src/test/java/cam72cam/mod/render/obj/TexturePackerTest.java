@@ -0,0 +1,108 @@
+package cam72cam.mod.render.obj;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TexturePackerTest extends TestCase {
+    private static List<TexturePacker.Rect> randomRects(int count, int maxSide, long seed) {
+        Random random = new Random(seed);
+        List<TexturePacker.Rect> rects = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rects.add(new TexturePacker.Rect(1 + random.nextInt(maxSide), 1 + random.nextInt(maxSide)));
+        }
+        return rects;
+    }
+
+    private static void assertValid(TexturePacker packer, List<TexturePacker.Rect> rects) {
+        for (int i = 0; i < rects.size(); i++) {
+            TexturePacker.Rect a = rects.get(i);
+            assertTrue(a.page < packer.pages());
+            assertTrue(a.x >= 0 && a.y >= 0);
+            assertTrue(a.x + a.packedWidth() <= packer.pageWidth(a.page));
+            assertTrue(a.y + a.packedHeight() <= packer.pageHeight(a.page));
+            for (int j = i + 1; j < rects.size(); j++) {
+                TexturePacker.Rect b = rects.get(j);
+                boolean overlaps = a.page == b.page &&
+                        a.x < b.x + b.packedWidth() && b.x < a.x + a.packedWidth() &&
+                        a.y < b.y + b.packedHeight() && b.y < a.y + a.packedHeight();
+                assertFalse(overlaps);
+            }
+        }
+    }
+
+    public void testSingleSheet() {
+        List<TexturePacker.Rect> rects = randomRects(200, 64, 1);
+        TexturePacker packer = new TexturePacker(4096, true);
+        packer.pack(rects);
+        assertEquals(1, packer.pages());
+        assertValid(packer, rects);
+        assertTrue("efficiency " + packer.efficiency(), packer.efficiency() > 0.8);
+    }
+
+    public void testRotation() {
+        // Two tall strips only fit side by side in a wide sheet when rotated
+        List<TexturePacker.Rect> rects = new ArrayList<>();
+        rects.add(new TexturePacker.Rect(16, 128));
+        rects.add(new TexturePacker.Rect(128, 16));
+        TexturePacker packer = new TexturePacker(128, true);
+        packer.pack(rects);
+        assertEquals(1, packer.pages());
+        assertValid(packer, rects);
+        assertEquals(1.0f, packer.efficiency(), 0.0001f);
+    }
+
+    public void testSpillsIntoPages() {
+        List<TexturePacker.Rect> rects = randomRects(100, 100, 2);
+        TexturePacker packer = new TexturePacker(256, false);
+        packer.pack(rects);
+        assertTrue(packer.pages() > 1);
+        assertValid(packer, rects);
+        for (TexturePacker.Rect rect : rects) {
+            assertFalse(rect.rotated);
+        }
+    }
+
+    public void testAligned() {
+        List<TexturePacker.Rect> rects = randomRects(100, 40, 3);
+        TexturePacker packer = new TexturePacker(1024, true, 16);
+        packer.pack(rects);
+        assertValid(packer, rects);
+        for (TexturePacker.Rect rect : rects) {
+            assertEquals(0, rect.x % 16);
+            assertEquals(0, rect.y % 16);
+        }
+        for (int page = 0; page < packer.pages(); page++) {
+            assertEquals(0, packer.pageWidth(page) % 16);
+            assertEquals(0, packer.pageHeight(page) % 16);
+        }
+        // Cells are never shared, the rounded up sizes don't overlap either
+        for (int i = 0; i < rects.size(); i++) {
+            TexturePacker.Rect a = rects.get(i);
+            for (int j = i + 1; j < rects.size(); j++) {
+                TexturePacker.Rect b = rects.get(j);
+                boolean overlaps = a.page == b.page &&
+                        a.x < b.x + roundUp(b.packedWidth()) && b.x < a.x + roundUp(a.packedWidth()) &&
+                        a.y < b.y + roundUp(b.packedHeight()) && b.y < a.y + roundUp(a.packedHeight());
+                assertFalse(overlaps);
+            }
+        }
+    }
+
+    private static int roundUp(int size) {
+        return (size + 15) / 16 * 16;
+    }
+
+    public void testOversized() {
+        List<TexturePacker.Rect> rects = new ArrayList<>();
+        rects.add(new TexturePacker.Rect(300, 20));
+        rects.add(new TexturePacker.Rect(10, 10));
+        TexturePacker packer = new TexturePacker(256, false);
+        packer.pack(rects);
+        assertEquals(2, packer.pages());
+        assertEquals(256, packer.pageWidth(rects.get(0).page));
+        assertEquals(0, rects.get(0).x);
+    }
+}